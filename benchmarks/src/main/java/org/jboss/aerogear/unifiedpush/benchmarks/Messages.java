@@ -0,0 +1,55 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+
+/**
+ * Messages shared by the benchmarks, shaped like a typical notification.
+ */
+final class Messages {
+
+    private Messages() {
+        // no-op
+    }
+
+    static UnifiedMessage message(int i) {
+        return UnifiedMessage.withMessage()
+                .alert("Hello from the benchmarks " + i)
+                .sound("default")
+                .badge("1")
+                .userData("campaign", "benchmark")
+                .userData("id", Integer.toString(i))
+                .criteria()
+                    .aliases("user-" + i + "@example.com")
+                    .categories("sport", "world cup")
+                .config()
+                    .timeToLive(3600)
+                .build();
+    }
+
+    static List<UnifiedMessage> batch(int size) {
+        final List<UnifiedMessage> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            batch.add(message(i));
+        }
+        return batch;
+    }
+}
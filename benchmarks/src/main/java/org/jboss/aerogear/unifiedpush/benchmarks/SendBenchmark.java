@@ -0,0 +1,93 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of sending through {@link DefaultPushSender}, against the in-process {@link StubUnifiedPushServer}
+ * accepting every request, so network latency does not hide the client's own overhead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+
+    @Param({"100"})
+    public int batchSize;
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    private StubUnifiedPushServer server;
+    private DefaultPushSender sender;
+    private UnifiedMessage unifiedMessage;
+    private List<UnifiedMessage> batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).threads(4).start();
+
+        sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .build();
+        unifiedMessage = Messages.message(42);
+        batch = Messages.batch(batchSize);
+
+        // the sender logs every response code
+        java.util.logging.Logger.getLogger(DefaultPushSender.class.getName()).setLevel(java.util.logging.Level.WARNING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void send() {
+        sender.send(unifiedMessage);
+    }
+
+    @Benchmark
+    public void sendBatch() {
+        sender.send(batch, null);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+
+/**
+ * The outcome of a batch send, which may have been split into several requests ("chunks") against the
+ * batch endpoint of the UnifiedPush Server.
+ */
+public class BatchResult {
+
+    private final List<ChunkResult> chunks;
+
+    BatchResult(List<ChunkResult> chunks) {
+        final List<ChunkResult> sorted = new ArrayList<>(chunks);
+        sorted.sort(Comparator.comparingInt(ChunkResult::getFromIndex));
+        this.chunks = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * @return the result of every request, ordered by the position of their messages in the batch
+     */
+    public List<ChunkResult> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the results of the requests that failed
+     */
+    public List<ChunkResult> getFailedChunks() {
+        final List<ChunkResult> failed = new ArrayList<>();
+        for (ChunkResult chunk : chunks) {
+            if (!chunk.isSuccess()) {
+                failed.add(chunk);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return {@code true} if all messages of the batch were accepted by the Push Server
+     */
+    public boolean isSuccess() {
+        for (ChunkResult chunk : chunks) {
+            if (!chunk.isSuccess()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The outcome of a single request of a batch send.
+     */
+    public static class ChunkResult {
+
+        private final int fromIndex;
+        private final int toIndex;
+        private final long contentLength;
+        private final PushSenderException failure;
+
+        ChunkResult(int fromIndex, int toIndex, long contentLength, PushSenderException failure) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.contentLength = contentLength;
+            this.failure = failure;
+        }
+
+        /**
+         * @return the index of the first message of this chunk in the batch (inclusive)
+         */
+        public int getFromIndex() {
+            return fromIndex;
+        }
+
+        /**
+         * @return the index of the last message of this chunk in the batch (exclusive)
+         */
+        public int getToIndex() {
+            return toIndex;
+        }
+
+        /**
+         * @return the number of messages sent with this request
+         */
+        public int getMessageCount() {
+            return toIndex - fromIndex;
+        }
+
+        /**
+         * @return the size of the request body in bytes, or {@code -1} if it was streamed
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * @return {@code true} if the Push Server accepted the messages of this chunk
+         */
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * @return the reason this chunk failed, or {@code null} if it succeeded
+         */
+        public PushSenderException getFailure() {
+            return failure;
+        }
+    }
+}
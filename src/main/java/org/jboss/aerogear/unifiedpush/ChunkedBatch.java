@@ -0,0 +1,303 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.message.MessageTemplate;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.utils.JsonUtils;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
+
+/**
+ * Splits a batch of messages into chunks respecting a maximum number of messages and bytes per request, and collects
+ * the results of the chunks sent by one or more workers. Chunks may complete in any order and on any thread, e.g. after
+ * a scheduled retry.
+ * <p>
+ * Chunks are created lazily, one per {@link #nextChunk()} call, so only the chunks currently being sent are held in
+ * memory. Without a byte limit the chunks are streamed; with a byte limit each message has to be serialized upfront
+ * to measure it.
+ */
+class ChunkedBatch {
+
+    private final Messages messages;
+    private final int maxMessages;
+    private final long maxBytes;
+
+    // not a monitor, as the workers may be virtual threads and the next chunk is serialized while holding the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<BatchResult.ChunkResult> results = new ArrayList<>();
+    private boolean started;
+    private int nextIndex;
+    private byte[] pendingMessage;
+    private int outstandingChunks;
+    private final CompletableFuture<BatchResult> result = new CompletableFuture<>();
+
+    /**
+     * @param unifiedMessages the batch to split
+     * @param maxMessages the maximum number of messages per chunk, or {@code 0} if not limited
+     * @param maxBytes the maximum request body size per chunk, or {@code 0} if not limited
+     */
+    ChunkedBatch(List<UnifiedMessage> unifiedMessages, int maxMessages, long maxBytes) {
+        this(Messages.of(unifiedMessages), maxMessages, maxBytes);
+    }
+
+    /**
+     * @param messages the batch to split
+     * @param maxMessages the maximum number of messages per chunk, or {@code 0} if not limited
+     * @param maxBytes the maximum request body size per chunk, or {@code 0} if not limited
+     */
+    ChunkedBatch(Messages messages, int maxMessages, long maxBytes) {
+        this.messages = messages;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the next chunk to send, or {@code null} if all messages were handed out
+     */
+    Chunk nextChunk() {
+        lock.lock();
+        try {
+            final int size = messages.size();
+            // an empty batch is still sent once, as before chunking existed
+            if (started && nextIndex >= size) {
+                return null;
+            }
+            started = true;
+
+            final int fromIndex = nextIndex;
+            final RequestBody body;
+            if (maxBytes <= 0) {
+                nextIndex = maxMessages > 0 ? Math.min(size, fromIndex + maxMessages) : size;
+                body = messages.batchBody(fromIndex, nextIndex);
+            } else {
+                body = serializeChunk();
+            }
+            outstandingChunks++;
+            return new Chunk(fromIndex, nextIndex, body);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the result of a chunk returned by {@link #nextChunk()}.
+     */
+    void complete(Chunk chunk, PushSenderException failure) {
+        final BatchResult batchResult;
+        lock.lock();
+        try {
+            results.add(new BatchResult.ChunkResult(chunk.fromIndex, chunk.toIndex, chunk.body.getContentLength(), failure));
+            outstandingChunks--;
+            if (outstandingChunks > 0 || nextIndex < messages.size()) {
+                return;
+            }
+            batchResult = new BatchResult(results);
+        } finally {
+            lock.unlock();
+        }
+        result.complete(batchResult);
+    }
+
+    /**
+     * Aborts the batch, e.g. because a message could not be serialized or no worker could be started.
+     */
+    void fail(PushSenderException failure) {
+        result.completeExceptionally(failure);
+    }
+
+    /**
+     * @return the messages of the batch
+     */
+    Messages getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return a future completing with the aggregated result, once every chunk was handed out and completed
+     */
+    CompletableFuture<BatchResult> getResult() {
+        return result;
+    }
+
+    private RequestBody serializeChunk() {
+        final ChunkBuffer buffer = new ChunkBuffer();
+        buffer.write('[');
+        int count = 0;
+        while (nextIndex < messages.size() && (maxMessages <= 0 || count < maxMessages)) {
+            final byte[] json = pendingMessage != null ? pendingMessage : messages.toJsonBytes(nextIndex);
+            pendingMessage = null;
+            // a chunk holds at least one message, even if that one alone exceeds the limit
+            if (count > 0 && buffer.size() + 1 + json.length + 1 > maxBytes) {
+                pendingMessage = json;
+                break;
+            }
+            if (count > 0) {
+                buffer.write(',');
+            }
+            buffer.write(json, 0, json.length);
+            count++;
+            nextIndex++;
+        }
+        buffer.write(']');
+        return buffer;
+    }
+
+    /**
+     * The messages of a batch, serialized on demand.
+     */
+    interface Messages {
+
+        /**
+         * @return the number of messages
+         */
+        int size();
+
+        /**
+         * Serializes a single message.
+         *
+         * @throws PushSenderException if the message can not be serialized
+         */
+        byte[] toJsonBytes(int index);
+
+        /**
+         * Creates a streamed request body holding the JSON array of the given range of messages.
+         */
+        RequestBody batchBody(int fromIndex, int toIndex);
+
+        static Messages of(final List<UnifiedMessage> unifiedMessages) {
+            return new Messages() {
+                @Override
+                public int size() {
+                    return unifiedMessages.size();
+                }
+
+                @Override
+                public byte[] toJsonBytes(int index) {
+                    try {
+                        return JsonUtils.toJsonBytes(unifiedMessages.get(index));
+                    } catch (IOException e) {
+                        throw new PushSenderException("Could not serialize the message", e);
+                    }
+                }
+
+                @Override
+                public RequestBody batchBody(int fromIndex, int toIndex) {
+                    return JsonUtils.batchBody(unifiedMessages.subList(fromIndex, toIndex));
+                }
+            };
+        }
+
+        /**
+         * Creates the messages rendered from the given template. Every map of values is checked up front, as a
+         * streamed batch body failing on a missing value would leave a truncated JSON array on the wire.
+         *
+         * @throws PushSenderException if a placeholder has no value in any of the maps
+         */
+        static Messages of(final MessageTemplate template, final List<? extends Map<String, ?>> values) {
+            for (int i = 0; i < values.size(); i++) {
+                for (String placeholder : template.getPlaceholderNames()) {
+                    if (values.get(i).get(placeholder) == null) {
+                        throw new PushSenderException("No value for placeholder '" + placeholder + "' in message " + i);
+                    }
+                }
+            }
+            return new Messages() {
+                @Override
+                public int size() {
+                    return values.size();
+                }
+
+                @Override
+                public byte[] toJsonBytes(int index) {
+                    try {
+                        return template.render(values.get(index));
+                    } catch (IllegalArgumentException e) {
+                        throw new PushSenderException("Could not render the message", e);
+                    }
+                }
+
+                @Override
+                public RequestBody batchBody(int fromIndex, int toIndex) {
+                    return new RequestBody() {
+                        @Override
+                        public long getContentLength() {
+                            return -1;
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            out.write('[');
+                            for (int i = fromIndex; i < toIndex; i++) {
+                                if (i > fromIndex) {
+                                    out.write(',');
+                                }
+                                template.writeTo(values.get(i), out);
+                            }
+                            out.write(']');
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * A part of the batch, sent with a single request.
+     */
+    static final class Chunk {
+
+        private final int fromIndex;
+        private final int toIndex;
+        private final RequestBody body;
+
+        private Chunk(int fromIndex, int toIndex, RequestBody body) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.body = body;
+        }
+
+        RequestBody getBody() {
+            return body;
+        }
+
+        int getMessageCount() {
+            return toIndex - fromIndex;
+        }
+    }
+
+    /**
+     * A serialized chunk, written to the request by {@link ByteArrayOutputStream#writeTo(OutputStream)} without
+     * copying the buffer first.
+     */
+    private static final class ChunkBuffer extends ByteArrayOutputStream implements RequestBody {
+
+        @Override
+        public long getContentLength() {
+            return size();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderCircuitOpenException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+
+/**
+ * Stops sending to a Push Server endpoint that keeps failing, so callers fail fast with a
+ * {@link PushSenderCircuitOpenException} instead of waiting for connect and read timeouts.
+ * <p>
+ * Every endpoint starts {@link State#CLOSED}. The outcome of its last requests is kept in a sliding window; once the
+ * window holds the minimum number of calls and the rate of failed calls (network errors and {@code 5xx} responses) or
+ * of slow calls reaches its threshold, the endpoint turns {@link State#OPEN} and rejects every request. After the open
+ * duration it turns {@link State#HALF_OPEN} and lets a few trial requests through: if all of them succeed, the endpoint
+ * is closed again, otherwise it is opened for another period.
+ * <p>
+ * A circuit breaker can be shared by several senders, which then share the state of their endpoints.
+ *
+ * <pre>
+ * {@code
+ *     DefaultPushSender.withRootServerURL("http://localhost:8080/ag-push")
+ *             .circuitBreaker(CircuitBreaker.withFailureRateThreshold(50)
+ *                     .slowCallThreshold(80, 5000)
+ *                     .openDuration(30000)
+ *                     .listener((endpoint, from, to) -> alert(endpoint, to))
+ *                     .build())
+ *             ...
+ * }
+ * </pre>
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * The states of an endpoint.
+     */
+    public enum State {
+        /** Requests are sent and their outcome recorded. */
+        CLOSED,
+        /** Requests are rejected without being sent. */
+        OPEN,
+        /** A limited number of trial requests is sent to probe the endpoint. */
+        HALF_OPEN
+    }
+
+    private final float failureRateThreshold;
+    private final float slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+    private final int slidingWindowSize;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+    private final CircuitBreakerListener listener;
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private CircuitBreaker(Builder builder) {
+        failureRateThreshold = builder.failureRateThreshold;
+        slowCallRateThreshold = builder.slowCallRateThreshold;
+        slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(builder.slowCallDurationMillis);
+        slidingWindowSize = builder.slidingWindowSize;
+        minimumCalls = Math.min(builder.minimumCalls, builder.slidingWindowSize);
+        openDurationNanos = TimeUnit.MILLISECONDS.toNanos(builder.openDurationMillis);
+        halfOpenCalls = builder.halfOpenCalls;
+        listener = builder.listener;
+    }
+
+    /**
+     * Starts a {@link Builder} for a circuit breaker opening once the given percentage of calls failed.
+     *
+     * @param failureRateThreshold the failure rate in percent, between 1 and 100
+     * @return a {@link Builder} instance
+     */
+    public static Builder withFailureRateThreshold(float failureRateThreshold) {
+        return new Builder(failureRateThreshold);
+    }
+
+    /**
+     * Builder to build a {@link CircuitBreaker}.
+     */
+    public static class Builder {
+
+        private final float failureRateThreshold;
+        private float slowCallRateThreshold = 100;
+        private long slowCallDurationMillis = 60000;
+        private int slidingWindowSize = 20;
+        private int minimumCalls = 10;
+        private long openDurationMillis = 30000;
+        private int halfOpenCalls = 3;
+        private CircuitBreakerListener listener;
+
+        private Builder(float failureRateThreshold) {
+            if (failureRateThreshold <= 0 || failureRateThreshold > 100) {
+                throw new IllegalArgumentException("failureRateThreshold must be greater than 0 and at most 100");
+            }
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        /**
+         * Also opens the circuit once the given percentage of calls took longer than the given duration. By default
+         * only calls taking longer than a minute count as slow, and only if all calls of the window are slow.
+         *
+         * @param slowCallRateThreshold the slow call rate in percent, between 1 and 100
+         * @param slowCallDurationMillis the duration in ms above which a call is slow
+         * @return the current {@link Builder} instance
+         */
+        public Builder slowCallThreshold(float slowCallRateThreshold, long slowCallDurationMillis) {
+            if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 100 || slowCallDurationMillis < 1) {
+                throw new IllegalArgumentException("slowCallRateThreshold must be greater than 0 and at most 100, slowCallDuration positive");
+            }
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.slowCallDurationMillis = slowCallDurationMillis;
+            return this;
+        }
+
+        /**
+         * @param slidingWindowSize the number of most recent calls the rates are computed from, 20 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder slidingWindowSize(int slidingWindowSize) {
+            if (slidingWindowSize < 1) {
+                throw new IllegalArgumentException("slidingWindowSize must be greater than zero");
+            }
+            this.slidingWindowSize = slidingWindowSize;
+            return this;
+        }
+
+        /**
+         * @param minimumCalls the number of calls recorded before the rates are evaluated, 10 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder minimumCalls(int minimumCalls) {
+            if (minimumCalls < 1) {
+                throw new IllegalArgumentException("minimumCalls must be greater than zero");
+            }
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * @param openDurationMillis how long in ms an open circuit rejects calls before probing the endpoint, 30000 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder openDuration(long openDurationMillis) {
+            if (openDurationMillis < 0) {
+                throw new IllegalArgumentException("openDuration must not be negative");
+            }
+            this.openDurationMillis = openDurationMillis;
+            return this;
+        }
+
+        /**
+         * @param halfOpenCalls the number of successful trial calls closing a half-open circuit, 3 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder halfOpenCalls(int halfOpenCalls) {
+            if (halfOpenCalls < 1) {
+                throw new IllegalArgumentException("halfOpenCalls must be greater than zero");
+            }
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        /**
+         * @param listener notified of every state change
+         * @return the current {@link Builder} instance
+         */
+        public Builder listener(CircuitBreakerListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Build the {@link CircuitBreaker}.
+         *
+         * @return the built up {@link CircuitBreaker}
+         */
+        public CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+    }
+
+    /**
+     * @param endpoint a Push Server URL
+     * @return the current state of the endpoint
+     */
+    public State getState(String endpoint) {
+        final Endpoint current = endpoints.get(endpoint);
+        return current == null ? State.CLOSED : current.getState();
+    }
+
+    /**
+     * Asks for permission to send a request to the given endpoint. Every permitted call must be followed by
+     * {@link #onResult(String, long, PushSenderException)}.
+     *
+     * @param endpoint a Push Server URL
+     * @throws PushSenderCircuitOpenException if the circuit of the endpoint is open
+     */
+    void acquirePermission(String endpoint) {
+        endpoint(endpoint).acquirePermission();
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     *
+     * @param endpoint a Push Server URL
+     * @param durationNanos how long the call took
+     * @param failure the failure of the call, or {@code null} if it succeeded
+     */
+    void onResult(String endpoint, long durationNanos, PushSenderException failure) {
+        endpoint(endpoint).onResult(durationNanos, isFailure(failure));
+    }
+
+    /**
+     * Only failures indicating that the Push Server is unhealthy count, a rejected request (e.g. a {@code 401}) does not.
+     */
+    private static boolean isFailure(PushSenderException failure) {
+        if (failure == null) {
+            return false;
+        }
+        if (failure instanceof PushSenderHttpException) {
+            return ((PushSenderHttpException) failure).getStatusCode() >= 500;
+        }
+        return true;
+    }
+
+    private Endpoint endpoint(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, Endpoint::new);
+    }
+
+    private void notifyListener(String endpoint, State from, State to) {
+        logger.log(to == State.OPEN ? Level.WARNING : Level.INFO,
+                String.format("Circuit breaker for '%s' changed from %s to %s", endpoint, from, to));
+        if (listener != null) {
+            try {
+                listener.onStateChange(endpoint, from, to);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Circuit breaker listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * The state machine of a single endpoint, with a ring buffer of the outcomes of its last calls.
+     */
+    private final class Endpoint {
+
+        private static final byte FAILED = 1;
+        private static final byte SLOW = 2;
+
+        private final String url;
+        private final byte[] outcomes = new byte[slidingWindowSize];
+        private int calls;
+        private int nextOutcome;
+        private int failedCalls;
+        private int slowCalls;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private State state = State.CLOSED;
+        private long openedAt;
+        private int halfOpenPermits;
+        private int halfOpenSuccesses;
+
+        private Endpoint(String url) {
+            this.url = url;
+        }
+
+        private State getState() {
+            lock.lock();
+            try {
+                return state;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void acquirePermission() {
+            State from = null;
+            lock.lock();
+            try {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < openDurationNanos) {
+                        throw new PushSenderCircuitOpenException(url);
+                    }
+                    from = transition(State.HALF_OPEN);
+                }
+                if (state == State.HALF_OPEN) {
+                    if (halfOpenPermits == 0) {
+                        throw new PushSenderCircuitOpenException(url);
+                    }
+                    halfOpenPermits--;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (from != null) {
+                notifyListener(url, from, State.HALF_OPEN);
+            }
+        }
+
+        private void onResult(long durationNanos, boolean failed) {
+            final boolean slow = durationNanos > slowCallDurationNanos;
+            State from = null;
+            State to = null;
+            lock.lock();
+            try {
+                if (state == State.HALF_OPEN) {
+                    if (failed || slow) {
+                        to = State.OPEN;
+                    } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                        to = State.CLOSED;
+                    }
+                } else if (state == State.CLOSED) {
+                    record(failed, slow);
+                    if (calls >= minimumCalls
+                            && (failedCalls * 100f / calls >= failureRateThreshold || slowCalls * 100f / calls >= slowCallRateThreshold)) {
+                        to = State.OPEN;
+                    }
+                }
+                // calls permitted before the circuit opened are ignored
+                if (to != null) {
+                    from = transition(to);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (from != null) {
+                notifyListener(url, from, to);
+            }
+        }
+
+        private void record(boolean failed, boolean slow) {
+            if (calls == outcomes.length) {
+                final byte evicted = outcomes[nextOutcome];
+                failedCalls -= evicted & FAILED;
+                slowCalls -= (evicted & SLOW) >> 1;
+            } else {
+                calls++;
+            }
+            outcomes[nextOutcome] = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+            nextOutcome = (nextOutcome + 1) % outcomes.length;
+            if (failed) {
+                failedCalls++;
+            }
+            if (slow) {
+                slowCalls++;
+            }
+        }
+
+        private State transition(State to) {
+            final State from = state;
+            state = to;
+            if (to == State.OPEN) {
+                openedAt = System.nanoTime();
+            } else if (to == State.HALF_OPEN) {
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+            } else {
+                calls = 0;
+                nextOutcome = 0;
+                failedCalls = 0;
+                slowCalls = 0;
+            }
+            return from;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+/**
+ * Callback notified when the {@link CircuitBreaker} of a Push Server endpoint changes its state.
+ */
+public interface CircuitBreakerListener {
+
+    /**
+     * Called after the state changed, on the thread whose send caused the change.
+     * Implementations must be fast and must not throw.
+     *
+     * @param endpoint the Push Server URL
+     * @param from the previous state
+     * @param to the new state
+     */
+    void onStateChange(String endpoint, CircuitBreaker.State from, CircuitBreaker.State to);
+}
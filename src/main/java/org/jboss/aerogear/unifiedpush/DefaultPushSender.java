@@ -17,46 +17,173 @@
 package org.jboss.aerogear.unifiedpush;
 
 import net.iharder.Base64;
+import org.jboss.aerogear.unifiedpush.deadletter.DeadLetter;
+import org.jboss.aerogear.unifiedpush.deadletter.DeadLetterSink;
+import org.jboss.aerogear.unifiedpush.deadletter.FileDeadLetterSink;
 import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
 import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
 import org.jboss.aerogear.unifiedpush.utils.HttpRequestUtil;
+import org.jboss.aerogear.unifiedpush.utils.JsonUtils;
 import org.jboss.aerogear.unifiedpush.message.MessageResponseCallback;
+import org.jboss.aerogear.unifiedpush.message.MessageTemplate;
 import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.metrics.PushMetrics;
 import org.jboss.aerogear.unifiedpush.model.ProxyConfig;
 import org.jboss.aerogear.unifiedpush.model.TrustStoreConfig;
+import org.jboss.aerogear.unifiedpush.outbox.Outbox;
+import org.jboss.aerogear.unifiedpush.transport.PushResponse;
+import org.jboss.aerogear.unifiedpush.transport.PushTransport;
+import org.jboss.aerogear.unifiedpush.transport.UrlConnectionTransport;
+import org.jboss.aerogear.unifiedpush.utils.ConnectionPool;
 import org.jboss.aerogear.unifiedpush.utils.PushConfiguration;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.Proxy;
+import java.net.URL;
 import java.nio.charset.Charset;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import static org.jboss.aerogear.unifiedpush.utils.ValidationUtils.isEmpty;
 
 
-public class DefaultPushSender implements PushSender {
+public class DefaultPushSender implements PushSender, Closeable {
 
     private static final Logger logger = Logger.getLogger(DefaultPushSender.class.getName());
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
+    /**
+     * Default number of threads used for asynchronous sends, if no executor was configured.
+     */
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+
+    /**
+     * Default number of asynchronous sends that may wait for a free thread, if no executor was configured.
+     */
+    public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Default time in ms a permanent redirect of the Push Server is remembered.
+     */
+    public static final long DEFAULT_REDIRECT_CACHE_TTL = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Maximum number of redirects followed by a single request.
+     */
+    public static final int MAX_REDIRECTS = 10;
+
+    /**
+     * Maximum number of requests being resent at the same time by {@link #replayOutbox()} and
+     * {@link #replayDeadLetters(double)}.
+     */
+    public static final int REPLAY_WINDOW = 64;
+
     private final PushConfiguration pushConfiguration;
     private final ProxyConfig proxy;
     private final TrustStoreConfig customTrustStore;
+    private final PushTransport transport;
+    private final boolean ownedTransport;
+
+    private final int maxBatchMessages;
+    private final long maxBatchBytes;
+    private final int batchParallelism;
+
+    private final MessageCoalescer coalescer;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final RateLimiter rateLimiter;
+    private final PushMetrics metrics;
+    private final RedirectCache redirectCache;
+    private final long gzipThreshold;
+    private final int gzipLevel;
+    private final Outbox outbox;
+    private final DeadLetterSink deadLetterSink;
+    private final DuplicateFilter duplicateFilter;
+    private final int maxShardAliases;
+    private final int maxShardVariants;
+
+    private final Executor configuredAsyncExecutor;
+    private final int asyncThreads;
+    private final int asyncQueueCapacity;
+    private final ReentrantLock asyncExecutorLock = new ReentrantLock();
+    private volatile ExecutorService ownedAsyncExecutor;
+    private volatile ScheduledExecutorService scheduler;
+    private volatile RequestHeaders requestHeaders;
 
 
     /**
      * Only called by builder.
      */
     private DefaultPushSender(Builder builder) {
+        if (builder.virtualThreads && builder.asyncExecutor == null) {
+            // does not start any thread until the first send
+            ownedAsyncExecutor = virtualThreadExecutor();
+        }
         pushConfiguration = builder.pushConfiguration;
         proxy = builder.proxy;
         customTrustStore = builder.customTrustStore;
+        ownedTransport = builder.transport == null;
+        transport = builder.transport != null ? builder.transport
+                : builder.http2 ? http2Transport(proxy, customTrustStore, pushConfiguration.getConnectionSettings())
+                : new UrlConnectionTransport(proxy, customTrustStore, pushConfiguration.getConnectionSettings());
+        maxBatchMessages = builder.maxBatchMessages;
+        maxBatchBytes = builder.maxBatchBytes;
+        batchParallelism = builder.batchParallelism;
+        configuredAsyncExecutor = builder.asyncExecutor;
+        asyncThreads = builder.asyncThreads;
+        asyncQueueCapacity = builder.asyncQueueCapacity;
+        retryPolicy = builder.retryPolicy;
+        circuitBreaker = builder.circuitBreaker;
+        rateLimiter = builder.rateLimiter;
+        metrics = builder.metrics;
+        redirectCache = new RedirectCache(builder.redirectCacheTtl, MAX_REDIRECTS);
+        gzipThreshold = builder.gzipThreshold;
+        gzipLevel = builder.gzipLevel;
+        outbox = builder.outbox;
+        deadLetterSink = builder.deadLetterSink;
+        duplicateFilter = builder.duplicateFilter;
+        maxShardAliases = builder.maxShardAliases;
+        maxShardVariants = builder.maxShardVariants;
+        coalescer = builder.coalesceMaxMessages > 0
+                ? new MessageCoalescer(builder.coalesceMaxDelayMillis, builder.coalesceMaxMessages,
+                        unifiedMessages -> sendBatchAsync(new ChunkedBatch(unifiedMessages, maxBatchMessages, maxBatchBytes), false),
+                        new SenderThreadFactory())
+                : null;
+        requestHeaders = new RequestHeaders(pushConfiguration.getPushApplicationId(), pushConfiguration.getMasterSecret());
     }
 
     /**
@@ -93,7 +220,29 @@ public class DefaultPushSender implements PushSender {
         private PushConfiguration pushConfiguration;
         private ProxyConfig proxy;
         private TrustStoreConfig customTrustStore;
-
+        private Executor asyncExecutor;
+        private int asyncThreads = DEFAULT_ASYNC_THREADS;
+        private int asyncQueueCapacity = DEFAULT_ASYNC_QUEUE_CAPACITY;
+        private int maxBatchMessages;
+        private long maxBatchBytes;
+        private int batchParallelism = 1;
+        private long coalesceMaxDelayMillis;
+        private int coalesceMaxMessages;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private CircuitBreaker circuitBreaker;
+        private RateLimiter rateLimiter;
+        private PushMetrics metrics = PushMetrics.NOOP;
+        private long redirectCacheTtl = DEFAULT_REDIRECT_CACHE_TTL;
+        private long gzipThreshold = -1;
+        private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+        private PushTransport transport;
+        private boolean http2;
+        private boolean virtualThreads;
+        private Outbox outbox;
+        private DeadLetterSink deadLetterSink;
+        private DuplicateFilter duplicateFilter;
+        private int maxShardAliases;
+        private int maxShardVariants;
 
         private Builder(String rootServerURL) {
             pushConfiguration = new PushConfiguration();
@@ -148,6 +297,33 @@ public class DefaultPushSender implements PushSender {
             return this;
         }
 
+        /**
+         * Limits the number of pooled connections used concurrently against the Push Server. Sends exceeding it wait for
+         * a connection to be released, at most for the connect timeout. Not limited by default.
+         *
+         * @param maxConnectionsPerRoute Maximum number of connections in use per scheme, host and port.
+         * @return the current {@link Builder} instance
+         * @see ConnectionPool
+         */
+        public Builder maxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+            pushConfiguration.getConnectionSettings().setMaxConnectionsPerRoute(maxConnectionsPerRoute);
+            return this;
+        }
+
+        /**
+         * Sends request bodies up to the given size in one write with the request headers, instead of streaming them,
+         * which avoids a delayed ACK round trip per small request. Bodies are always streamed by default. Buffered
+         * requests may be retried once by the JDK on a stale pooled connection, see
+         * {@link HttpRequestUtil.ConnectionSettings#setMaxBufferedBodySize(Integer)}.
+         *
+         * @param maxBufferedBodySize Maximum size in bytes of buffered bodies, e.g. 8192.
+         * @return the current {@link Builder} instance
+         */
+        public Builder maxBufferedBodySize(Integer maxBufferedBodySize) {
+            pushConfiguration.getConnectionSettings().setMaxBufferedBodySize(maxBufferedBodySize);
+            return this;
+        }
+
         /**
          * Set a custom trustStore.
          *
@@ -219,6 +395,321 @@ public class DefaultPushSender implements PushSender {
             return this;
         }
 
+        /**
+         * Use the given executor for {@link #sendAsync(UnifiedMessage)} and {@link #sendAsync(List)}.
+         * The executor is owned by the caller and is not shut down when the sender is closed.
+         *
+         * @param asyncExecutor the {@link Executor} running asynchronous sends
+         * @return the current {@link Builder} instance
+         */
+        public Builder asyncExecutor(Executor asyncExecutor) {
+            this.asyncExecutor = asyncExecutor;
+            return this;
+        }
+
+        /**
+         * Size of the thread pool created by the sender for asynchronous sends, ignored if an
+         * {@link #asyncExecutor(Executor)} is configured. Defaults to {@value DefaultPushSender#DEFAULT_ASYNC_THREADS}.
+         *
+         * @param asyncThreads the number of threads
+         * @return the current {@link Builder} instance
+         */
+        public Builder asyncThreads(int asyncThreads) {
+            if (asyncThreads < 1) {
+                throw new IllegalArgumentException("asyncThreads must be greater than zero");
+            }
+            this.asyncThreads = asyncThreads;
+            return this;
+        }
+
+        /**
+         * Maximum number of asynchronous sends waiting for a free thread of the pool created by the sender.
+         * Further sends are rejected with a {@link PushSenderException}. Ignored if an {@link #asyncExecutor(Executor)}
+         * is configured. Defaults to {@value DefaultPushSender#DEFAULT_ASYNC_QUEUE_CAPACITY}.
+         *
+         * @param asyncQueueCapacity the capacity of the pending sends queue
+         * @return the current {@link Builder} instance
+         */
+        public Builder asyncQueueCapacity(int asyncQueueCapacity) {
+            if (asyncQueueCapacity < 1) {
+                throw new IllegalArgumentException("asyncQueueCapacity must be greater than zero");
+            }
+            this.asyncQueueCapacity = asyncQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Splits batch sends into several requests of at most the given number of messages. Not limited by default.
+         *
+         * @param maxBatchMessages the maximum number of messages per batch request
+         * @return the current {@link Builder} instance
+         * @see DefaultPushSender#sendBatch(List)
+         */
+        public Builder maxBatchMessages(int maxBatchMessages) {
+            if (maxBatchMessages < 1) {
+                throw new IllegalArgumentException("maxBatchMessages must be greater than zero");
+            }
+            this.maxBatchMessages = maxBatchMessages;
+            return this;
+        }
+
+        /**
+         * Splits batch sends into several requests with a body of at most the given size. A single message exceeding
+         * the limit is sent on its own. Not limited by default.
+         *
+         * @param maxBatchBytes the maximum size of a batch request body in bytes
+         * @return the current {@link Builder} instance
+         * @see DefaultPushSender#sendBatch(List)
+         */
+        public Builder maxBatchBytes(long maxBatchBytes) {
+            if (maxBatchBytes < 1) {
+                throw new IllegalArgumentException("maxBatchBytes must be greater than zero");
+            }
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * Maximum number of requests of a split batch send that are in flight at the same time. The calling thread
+         * sends chunks itself, additional requests run on the asynchronous send executor. Defaults to 1.
+         *
+         * @param batchParallelism the maximum number of concurrent requests per batch send
+         * @return the current {@link Builder} instance
+         */
+        public Builder batchParallelism(int batchParallelism) {
+            if (batchParallelism < 1) {
+                throw new IllegalArgumentException("batchParallelism must be greater than zero");
+            }
+            this.batchParallelism = batchParallelism;
+            return this;
+        }
+
+        /**
+         * Enables coalescing of single messages: instead of one request per {@link #send(UnifiedMessage)} or
+         * {@link #sendAsync(UnifiedMessage)} call, messages are buffered and sent together through the batch endpoint,
+         * once {@code maxMessages} are buffered or the oldest one waited for {@code maxDelayMillis}. Each send completes
+         * when the batch carrying its message was accepted, trading a little latency for far fewer requests.
+         *
+         * @param maxDelayMillis the maximum time in ms a message waits for others before being sent
+         * @param maxMessages the maximum number of messages sent in one batch
+         * @return the current {@link Builder} instance
+         */
+        public Builder coalesce(long maxDelayMillis, int maxMessages) {
+            if (maxDelayMillis < 0 || maxMessages < 1) {
+                throw new IllegalArgumentException("maxDelayMillis must not be negative and maxMessages greater than zero");
+            }
+            this.coalesceMaxDelayMillis = maxDelayMillis;
+            this.coalesceMaxMessages = maxMessages;
+            return this;
+        }
+
+        /**
+         * Retries requests failing with a transient error according to the given policy. Synchronous single sends wait
+         * for the retry on the calling thread; retries of asynchronous sends and of batch requests are scheduled and
+         * run on the asynchronous send executor, without blocking a thread while waiting. Requests are not retried by
+         * default.
+         *
+         * @param retryPolicy the {@link RetryPolicy} to apply
+         * @return the current {@link Builder} instance
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            if (retryPolicy == null) {
+                throw new IllegalArgumentException("retryPolicy can not be null");
+            }
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Guards the Push Server with the given circuit breaker: once it keeps failing, sends fail fast with a
+         * {@link org.jboss.aerogear.unifiedpush.exception.PushSenderCircuitOpenException} instead of waiting for
+         * timeouts. Every attempt of a retried request counts as one call. Not enabled by default.
+         *
+         * @param circuitBreaker the {@link CircuitBreaker} to apply, may be shared between senders
+         * @return the current {@link Builder} instance
+         */
+        public Builder circuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Limits the messages and requests sent per second for the push application of this sender. Every request
+         * counts, including retries and the requests of a split batch. Not limited by default.
+         *
+         * @param rateLimiter the {@link RateLimiter} to apply, may be shared between senders
+         * @return the current {@link Builder} instance
+         */
+        public Builder rateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Reports timing and size events of every request to the given listener, e.g. a
+         * {@link org.jboss.aerogear.unifiedpush.metrics.DefaultPushMetrics}. Nothing is recorded by default.
+         *
+         * @param metrics the {@link PushMetrics} to notify
+         * @return the current {@link Builder} instance
+         */
+        public Builder metrics(PushMetrics metrics) {
+            if (metrics == null) {
+                throw new IllegalArgumentException("metrics can not be null");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * How long a permanent (301) redirect of the Push Server is remembered, so that later requests go to the final
+         * URL directly. A cached redirect is forgotten as soon as a request to its target fails. Defaults to
+         * {@value DefaultPushSender#DEFAULT_REDIRECT_CACHE_TTL} ms.
+         *
+         * @param redirectCacheTtl the time to live in ms, or 0 to follow every redirect again
+         * @return the current {@link Builder} instance
+         */
+        public Builder redirectCacheTtl(long redirectCacheTtl) {
+            if (redirectCacheTtl < 0) {
+                throw new IllegalArgumentException("redirectCacheTtl must not be negative");
+            }
+            this.redirectCacheTtl = redirectCacheTtl;
+            return this;
+        }
+
+        /**
+         * Compresses request payloads of at least the given size with gzip, sending them with a
+         * {@code Content-Encoding: gzip} header. The payload is compressed while it is written to the connection.
+         * Batches streamed without a byte limit (see {@link #maxBatchBytes(long)}) have no known size and are always
+         * compressed. Requests are not compressed by default.
+         *
+         * @param thresholdBytes the minimum payload size in bytes to compress
+         * @param level the compression level, from 0 (none) to 9 (best), or -1 for the default level
+         * @return the current {@link Builder} instance
+         */
+        public Builder gzip(long thresholdBytes, int level) {
+            if (thresholdBytes < 0) {
+                throw new IllegalArgumentException("thresholdBytes must not be negative");
+            }
+            if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("level must be between -1 and 9");
+            }
+            this.gzipThreshold = thresholdBytes;
+            this.gzipLevel = level;
+            return this;
+        }
+
+        /**
+         * Sends the requests through the given {@link PushTransport} instead of the default
+         * {@link UrlConnectionTransport}. The proxy, TrustStore and connection settings of this builder only apply to
+         * the default transports, and a given transport is not closed by {@link DefaultPushSender#close()}.
+         *
+         * @param transport the {@link PushTransport} to use
+         * @return the current {@link Builder} instance
+         */
+        public Builder transport(PushTransport transport) {
+            if (transport == null) {
+                throw new IllegalArgumentException("transport can not be null");
+            }
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Sends the requests through {@code java.net.http.HttpClient}, multiplexing concurrent requests over a single
+         * HTTP/2 connection if the Push Server supports it, and without blocking a thread per asynchronous send.
+         * The proxy, TrustStore and connection settings of this builder apply. Requires Java 11 or later.
+         *
+         * @return the current {@link Builder} instance
+         */
+        public Builder http2() {
+            this.http2 = true;
+            return this;
+        }
+
+        /**
+         * Runs every asynchronous send and batch worker on its own virtual thread, instead of the bounded pool
+         * configured by {@link #asyncThreads(int)} and {@link #asyncQueueCapacity(int)}. A virtual thread waiting
+         * for the Push Server releases its carrier thread, so tens of thousands of pushes can be in flight without
+         * sizing a pool; limit them with {@link #maxConnectionsPerRoute(Integer)} or a {@link #rateLimiter(RateLimiter)}
+         * instead. Blocking sends keep running on the calling thread, which may itself be a virtual thread.
+         * Ignored if an {@link #asyncExecutor(Executor)} is configured. Requires Java 21 or later.
+         *
+         * @return the current {@link Builder} instance
+         */
+        public Builder virtualThreads() {
+            this.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Appends every message to the given {@link Outbox} before sending it, and acknowledges it once the Push Server
+         * accepted it, or rejected it for good (a {@code 4xx} status other than {@code 408} and {@code 429}). Messages
+         * that could not be delivered, e.g. because the Push Server is unreachable, stay in the outbox and are resent
+         * by {@link DefaultPushSender#replayOutbox()}, also after a restart. The outbox is owned by the caller and is
+         * not closed when the sender is closed.
+         *
+         * @param outbox the opened {@link Outbox}
+         * @return the current {@link Builder} instance
+         */
+        public Builder outbox(Outbox outbox) {
+            this.outbox = outbox;
+            return this;
+        }
+
+        /**
+         * Writes every request that failed for good, after the last attempt allowed by the {@link RetryPolicy}, to
+         * the given {@link DeadLetterSink}, with its payload, URL, status code, number of attempts and timestamps.
+         * Dead letters are resent by {@link DefaultPushSender#replayDeadLetters(double)}. A request failing again is
+         * written to the sink again. If an {@link #outbox(Outbox) outbox} is configured as well, the messages it holds
+         * are not written to the sink, as they stay in the outbox to be resent by
+         * {@link DefaultPushSender#replayOutbox()}.
+         *
+         * @param deadLetterSink the sink of failed requests, e.g. a {@link FileDeadLetterSink}
+         * @return the current {@link Builder} instance
+         */
+        public Builder deadLetterSink(DeadLetterSink deadLetterSink) {
+            this.deadLetterSink = deadLetterSink;
+            return this;
+        }
+
+        /**
+         * Drops a single message if the same message, serialized to the same JSON, was already sent within the window
+         * of the given {@link DuplicateFilter}. A message dropped because it was sent before counts as sent: the
+         * callback is completed and the future of {@link DefaultPushSender#sendAsync(UnifiedMessage)} completes
+         * normally. A message dropped because the same message is still in flight gets the outcome of that send, so
+         * it fails if that send fails. A message that could not be sent is forgotten, so sending it again is not
+         * dropped. Batches are sent as they are.
+         *
+         * @param duplicateFilter the filter remembering the messages sent recently
+         * @return the current {@link Builder} instance
+         */
+        public Builder duplicateFilter(DuplicateFilter duplicateFilter) {
+            this.duplicateFilter = duplicateFilter;
+            return this;
+        }
+
+        /**
+         * Splits a single message whose criteria hold more aliases or variants than the given limits into messages
+         * with the same content and disjoint shards of the aliases and variants, see
+         * {@link UnifiedMessage#shard(int, int)}. The shards are sent through the batch endpoint, one shard per request
+         * unless {@link #maxBatchMessages(int)} or {@link #maxBatchBytes(long)} are configured, up to
+         * {@link #batchParallelism(int)} requests at the same time. They are reported as one send, which fails if any
+         * shard failed; sending the message again then sends the shards that were delivered again as well.
+         * Not limited by default.
+         *
+         * @param maxAliases the maximum number of aliases of a request, or 0 to not split them
+         * @param maxVariants the maximum number of variants of a request, or 0 to not split them
+         * @return the current {@link Builder} instance
+         */
+        public Builder shardTargets(int maxAliases, int maxVariants) {
+            if (maxAliases < 0 || maxVariants < 0) {
+                throw new IllegalArgumentException("shard limits must not be negative");
+            }
+            this.maxShardAliases = maxAliases;
+            this.maxShardVariants = maxVariants;
+            return this;
+        }
+
         /**
          * Build the {@link DefaultPushSender}.
          *
@@ -244,90 +735,1328 @@ public class DefaultPushSender implements PushSender {
 
     @Override
     public void send(UnifiedMessage unifiedMessage, MessageResponseCallback callback) {
-        final String jsonString = unifiedMessage.getObject().toJsonString();
-        // fire!
-        submitPayload(buildUrl(), pushConfiguration.getConnectionSettings(), jsonString, pushConfiguration.getPushApplicationId(), pushConfiguration.getMasterSecret(), callback, new ArrayList<>());
+        final List<UnifiedMessage> shards = shards(unifiedMessage);
+        if (duplicateFilter == null) {
+            sendShards(unifiedMessage, shards, callback);
+            return;
+        }
+
+        final UnifiedMessage snapshot = snapshot(unifiedMessage);
+        final long fingerprint = DuplicateFilter.fingerprint(snapshotJson(snapshot));
+        final CompletableFuture<Void> send = new CompletableFuture<>();
+        final CompletableFuture<Void> inFlight = duplicateFilter.startSend(fingerprint, send);
+        if (inFlight != null) {
+            // gets the outcome of the same message still being sent
+            dropDuplicate();
+            try {
+                inFlight.join();
+            } catch (CompletionException | CancellationException e) {
+                throw asPushSenderException(e);
+            }
+            if (callback != null) {
+                callback.onComplete();
+            }
+            return;
+        }
+        if (!duplicateFilter.add(fingerprint)) {
+            duplicateFilter.endSend(fingerprint, send);
+            dropDuplicate();
+            if (callback != null) {
+                callback.onComplete();
+            }
+            return;
+        }
+        try {
+            sendShards(snapshot, shards, callback);
+        } catch (RuntimeException e) {
+            // may be sent again
+            duplicateFilter.remove(fingerprint);
+            duplicateFilter.endSend(fingerprint, send);
+            send.completeExceptionally(e);
+            throw e;
+        }
+        duplicateFilter.endSend(fingerprint, send);
+        send.complete(null);
     }
 
-    @Override
-    public void send(List<UnifiedMessage> unifiedMessages, MessageResponseCallback callback) {
+    /**
+     * Sends the given shards of the message as one send, or the message itself if it was not split.
+     */
+    private void sendShards(UnifiedMessage unifiedMessage, List<UnifiedMessage> shards, MessageResponseCallback callback) {
+        if (shards == null) {
+            sendDurably(unifiedMessage, callback);
+            return;
+        }
+        final BatchResult result = sendBatch(shardBatch(shards));
+        if (!result.isSuccess()) {
+            throw batchFailure(result);
+        }
+        if (callback != null) {
+            callback.onComplete();
+        }
+    }
+
+    private void sendDurably(UnifiedMessage unifiedMessage, MessageResponseCallback callback) {
+        if (outbox == null) {
+            sendNow(unifiedMessage, callback);
+            return;
+        }
+
+        final UnifiedMessage snapshot = snapshot(unifiedMessage);
+        final long sequence = appendToOutbox(snapshotJson(snapshot));
+        try {
+            sendNow(snapshot, callback);
+        } catch (PushSenderException pse) {
+            settle(sequence, pse);
+            throw pse;
+        } catch (RuntimeException e) {
+            // the message was sent, the callback failed
+            outbox.acknowledge(sequence);
+            throw e;
+        }
+        outbox.acknowledge(sequence);
+    }
 
-        final String jsonString = unifiedMessages.stream()
-                .map(unifiedMessage -> unifiedMessage.getObject().toJsonString())
-                .collect(Collectors.toList()).toString();
+    private void sendNow(UnifiedMessage unifiedMessage, MessageResponseCallback callback) {
+        if (coalescer != null) {
+            await(coalescer.add(unifiedMessage));
+            if (callback != null) {
+                callback.onComplete();
+            }
+            return;
+        }
 
-        // fire!
-        submitPayload(buildUrl()+"batch/", pushConfiguration.getConnectionSettings(), jsonString, pushConfiguration.getPushApplicationId(), pushConfiguration.getMasterSecret(), callback, new ArrayList<>());
+        final RequestBody body = messageBody(unifiedMessage);
+        final String url = buildUrl();
+        final long firstAttemptMillis = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(pushConfiguration.getPushApplicationId(), 1);
+                }
+                // fire!
+                attempt(url, body, callback);
+                return;
+            } catch (PushSenderException pse) {
+                final long delay = retryPolicy.retryDelay(attempt, pse);
+                if (delay < 0) {
+                    deadLetterUntracked(url, body, attempt, firstAttemptMillis, pse);
+                    throw pse;
+                }
+                logRetry(attempt, delay, pse);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pse.addSuppressed(e);
+                    deadLetterUntracked(url, body, attempt, firstAttemptMillis, pse);
+                    throw pse;
+                }
+            }
+        }
     }
 
     @Override
-    public void send(UnifiedMessage unifiedMessage) {
-        send(unifiedMessage, null);
+    public void send(List<UnifiedMessage> unifiedMessages, MessageResponseCallback callback) {
+        final BatchResult result = sendBatch(unifiedMessages);
+
+        if (!result.isSuccess()) {
+            throw batchFailure(result);
+        }
+        if (callback != null) {
+            callback.onComplete();
+        }
     }
 
     /**
-     * The actual method that does the real send and connection handling
+     * Sends the given payloads to installations of the referenced PushApplication through the batch endpoint.
+     * If {@link Builder#maxBatchMessages(int)} or {@link Builder#maxBatchBytes(long)} are configured, the batch is
+     * split into several requests, up to {@link Builder#batchParallelism(int)} of them running concurrently.
+     * A failing request does not stop the remaining ones.
      *
-     * @param url the URL to use for the HTTP POST request.
-     * @param connectionSettings additional settings to use for the underlying {@link java.net.URLConnection}.
-     * @param jsonPayloadObject the JSON payload of the POST request
-     * @param pushApplicationId the registered applications identifier.
-     * @param masterSecret the master secret for the push server.
-     * @param callback the {@link org.jboss.aerogear.unifiedpush.message.MessageResponseCallback} that will be called once the POST request completes.
-     * @param redirectUrls a list containing the previous redirectUrls, used to detect an infinite loop
-     * @throws org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException when delivering push message to Unified Push Server fails.
-     * @throws org.jboss.aerogear.unifiedpush.exception.PushSenderException when generic error during sending occurs, such as an infinite redirect loop.
+     * @param unifiedMessages collection of {@link UnifiedMessage} to send.
+     * @return the {@link BatchResult} holding the outcome of every request
      */
-    private void submitPayload(String url, HttpRequestUtil.ConnectionSettings connectionSettings, String jsonPayloadObject, String pushApplicationId, String masterSecret,
-                               MessageResponseCallback callback, List<String> redirectUrls) {
-        if (redirectUrls.contains(url)) {
-            throw new PushSenderException("The site contains an infinite redirect loop! Duplicate url: " +
-                    url);
-        } else {
-            redirectUrls.add(url);
+    public BatchResult sendBatch(List<UnifiedMessage> unifiedMessages) {
+        return sendBatch(new ChunkedBatch(snapshots(unifiedMessages, false), maxBatchMessages, maxBatchBytes));
+    }
+
+    /**
+     * Sends one message per entry of the given values through the batch endpoint, rendered from the given template.
+     * The batch is split and sent like the one of {@link #sendBatch(List)}, but the messages are rendered by copying
+     * the pre-encoded template segments instead of being serialized one by one.
+     *
+     * @param template the compiled {@link MessageTemplate}
+     * @param values the placeholder values of every message
+     * @return the {@link BatchResult} holding the outcome of every request
+     * @throws PushSenderException if a placeholder has no value, checked for every message before any request is made
+     */
+    public BatchResult sendBatch(MessageTemplate template, List<? extends Map<String, ?>> values) {
+        return sendBatch(new ChunkedBatch(ChunkedBatch.Messages.of(template, values), maxBatchMessages, maxBatchBytes));
+    }
+
+    private BatchResult sendBatch(ChunkedBatch batch) {
+        final long[] sequences = appendToOutbox(batch);
+        final Runnable worker = batchWorker(buildUrl() + "batch/", batch);
+
+        // helpers that only start once the batch was fully handed out find nothing left to do, so a saturated
+        // executor never blocks the calling thread
+        for (int i = 1; i < batchParallelism; i++) {
+            tryExecute(worker);
         }
+        worker.run();
 
-        HttpURLConnection httpURLConnection = null;
+        final BatchResult result;
         try {
-            final String credentials = pushApplicationId + ':' + masterSecret;
-            final String encoded = Base64.encodeBytes(credentials.getBytes(UTF_8));
+            result = await(batch.getResult());
+        } catch (PushSenderException pse) {
+            settle(sequences, null, pse);
+            throw pse;
+        }
+        settle(sequences, result, null);
+        return result;
+    }
 
-            // POST the payload to the UnifiedPush Server
-            httpURLConnection = (HttpURLConnection) HttpRequestUtil.post(url, encoded, jsonPayloadObject, UTF_8, proxy,
-                    customTrustStore, connectionSettings);
-
-            final int statusCode = httpURLConnection.getResponseCode();
-            logger.log(Level.INFO, String.format("HTTP Response code from UnifiedPush Server: %s", statusCode));
-
-            // if we got a redirect, let's extract the 'Location' header from the response
-            // and submit the payload again
-            if (isRedirect(statusCode)) {
-                String redirectURL = httpURLConnection.getHeaderField("Location");
-                logger.log(Level.INFO, String.format("Performing redirect to '%s'", redirectURL));
-                // execute the 'redirect'
-                submitPayload(redirectURL, pushConfiguration.getConnectionSettings(), jsonPayloadObject, pushApplicationId, masterSecret, callback, redirectUrls);
-            } else if (statusCode >= 400) {
-                // treating any 400/500 error codes an an exception to a sending attempt:
-                logger.log(Level.SEVERE, "The Unified Push Server returned status code: " + statusCode);
-                throw new PushSenderHttpException(statusCode);
-            } else {
-                if (callback != null) {
-                    callback.onComplete();
-                }
-            }
-        } catch (PushSenderHttpException pshe) {
-            throw pshe;
-        } catch (Exception e) {
-            logger.log(Level.INFO, "Error happening while trying to send the push delivery request", e);
+    /**
+     * Asynchronous variant of {@link #sendBatch(List)}, sending the requests on the asynchronous send executor.
+     * Snapshots of the messages are taken before returning, so the caller may change or reuse the messages and the
+     * list right away.
+     *
+     * @param unifiedMessages collection of {@link UnifiedMessage} to send.
+     * @return a future completing with the {@link BatchResult} holding the outcome of every request
+     */
+    public CompletableFuture<BatchResult> sendBatchAsync(List<UnifiedMessage> unifiedMessages) {
+        final List<UnifiedMessage> snapshots;
+        try {
+            snapshots = snapshots(unifiedMessages, true);
+        } catch (PushSenderException pse) {
+            final CompletableFuture<BatchResult> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(pse);
+            return rejected;
+        }
+        return sendBatchAsync(new ChunkedBatch(snapshots, maxBatchMessages, maxBatchBytes), true);
+    }
 
-            throw new PushSenderException(e.getMessage(), e);
+    /**
+     * Asynchronous variant of {@link #sendBatch(MessageTemplate, List)}, sending the requests on the asynchronous
+     * send executor. The list of values is copied before returning, but the messages are rendered while they are
+     * sent, so the maps of values must not be changed until the future completed.
+     *
+     * @param template the compiled {@link MessageTemplate}
+     * @param values the placeholder values of every message
+     * @return a future completing with the {@link BatchResult} holding the outcome of every request, or failing with
+     *         a {@link PushSenderException} without any request being made if a placeholder has no value
+     */
+    public CompletableFuture<BatchResult> sendBatchAsync(MessageTemplate template, List<? extends Map<String, ?>> values) {
+        final ChunkedBatch.Messages messages;
+        try {
+            messages = ChunkedBatch.Messages.of(template, new ArrayList<>(values));
+        } catch (PushSenderException pse) {
+            final CompletableFuture<BatchResult> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(pse);
+            return rejected;
+        }
+        return sendBatchAsync(new ChunkedBatch(messages, maxBatchMessages, maxBatchBytes), true);
+    }
+
+    private CompletableFuture<BatchResult> sendBatchAsync(ChunkedBatch batch, boolean durable) {
+        final long[] sequences;
+        try {
+            sequences = durable ? appendToOutbox(batch) : null;
+        } catch (PushSenderException pse) {
+            batch.fail(pse);
+            return batch.getResult();
+        }
+        final CompletableFuture<BatchResult> result = sequences == null ? batch.getResult() : new CompletableFuture<>();
+        if (sequences != null) {
+            // settled before the caller learns the outcome
+            batch.getResult().whenComplete((batchResult, failure) -> {
+                settle(sequences, batchResult, failure);
+                if (failure != null) {
+                    result.completeExceptionally(unwrap(failure));
+                } else {
+                    result.complete(batchResult);
+                }
+            });
+        }
+        final Runnable worker = batchWorker(buildUrl() + "batch/", batch);
+
+        boolean started = false;
+        for (int i = 0; i < batchParallelism; i++) {
+            started |= tryExecute(worker);
+        }
+        if (!started) {
+            batch.fail(new PushSenderException("Asynchronous send rejected, too many pending sends"));
+        }
+        return result;
+    }
+
+    /**
+     * Sends chunks of the given batch until all of them were handed out. Chunks failing with a retryable error are
+     * scheduled for a retry, while the worker moves on to the next chunk.
+     */
+    private Runnable batchWorker(String url, ChunkedBatch batch) {
+        return () -> {
+            try {
+                while (true) {
+                    final long start = System.nanoTime();
+                    final ChunkedBatch.Chunk chunk = batch.nextChunk();
+                    if (chunk == null) {
+                        break;
+                    }
+                    // only chunks limited in bytes are serialized upfront, the others are streamed
+                    if (chunk.getBody().getContentLength() >= 0) {
+                        metrics.serialized(System.nanoTime() - start, chunk.getMessageCount(), chunk.getBody().getContentLength());
+                    }
+                    submitChunk(url, batch, chunk, 1, System.currentTimeMillis());
+                }
+            } catch (PushSenderException pse) {
+                batch.fail(pse);
+            }
+        };
+    }
+
+    private void submitChunk(String url, ChunkedBatch batch, ChunkedBatch.Chunk chunk, int attempt, long firstAttemptMillis) {
+        final Consumer<PushSenderException> giveUp = failure -> {
+            deadLetterUntracked(url, chunk.getBody(), attempt, firstAttemptMillis, failure);
+            batch.complete(chunk, failure);
+        };
+        whenPermitted(chunk.getMessageCount(), () -> {
+            try {
+                // fire!
+                attempt(url, chunk.getBody(), null);
+                batch.complete(chunk, null);
+            } catch (PushSenderException pse) {
+                scheduleRetry(attempt, pse, () -> submitChunk(url, batch, chunk, attempt + 1, firstAttemptMillis), giveUp);
+            }
+        }, giveUp);
+    }
+
+    private void submitAsync(String url, RequestBody body, FailedRequestHandler onFailed, int attempt,
+                             long firstAttemptMillis, CompletableFuture<Void> result) {
+        final Consumer<PushSenderException> giveUp = failure -> {
+            if (onFailed != null) {
+                onFailed.failed(url, body, attempt, firstAttemptMillis, failure);
+            }
+            result.completeExceptionally(failure);
+        };
+        whenPermitted(1, () -> {
+            // fire!
+            attemptAsync(url, body).whenComplete((ignored, failure) -> {
+                if (failure == null) {
+                    result.complete(null);
+                } else {
+                    scheduleRetry(attempt, asPushSenderException(failure),
+                            () -> submitAsync(url, body, onFailed, attempt + 1, firstAttemptMillis, result), giveUp);
+                }
+            });
+        }, giveUp);
+    }
+
+    /**
+     * Runs the given send once the rate limiter permits it. In {@link RateLimiter.Mode#DELAY} mode the send is
+     * scheduled instead of waiting for the permits.
+     */
+    private void whenPermitted(int messages, Runnable send, Consumer<PushSenderException> onFailure) {
+        if (rateLimiter == null) {
+            send.run();
+            return;
+        }
+        final long delay;
+        try {
+            delay = rateLimiter.acquireDelayed(pushConfiguration.getPushApplicationId(), messages);
+        } catch (PushSenderException pse) {
+            onFailure.accept(pse);
+            return;
+        }
+        if (delay > 0) {
+            schedule(delay, send, onFailure);
+        } else {
+            send.run();
+        }
+    }
+
+    /**
+     * Sends a request once, unless the circuit breaker of the Push Server is open.
+     */
+    private void attempt(String url, RequestBody body, MessageResponseCallback callback) {
+        if (circuitBreaker == null) {
+            submitResolved(url, body, callback);
+            return;
+        }
+
+        final String endpoint = getServerURL();
+        circuitBreaker.acquirePermission(endpoint);
+        final long start = System.nanoTime();
+        PushSenderException failure = null;
+        try {
+            submitResolved(url, body, callback);
+        } catch (PushSenderException pse) {
+            failure = pse;
+            throw pse;
+        } finally {
+            circuitBreaker.onResult(endpoint, System.nanoTime() - start, failure);
+        }
+    }
+
+    /**
+     * Sends a request to the URL the given one is known to redirect to permanently, if any.
+     */
+    private void submitResolved(String url, RequestBody body, MessageResponseCallback callback) {
+        final String target = redirectCache.resolve(url);
+        try {
+            submitPayload(target, body, callback, 0);
+        } catch (PushSenderException pse) {
+            if (isStaleRedirect(pse)) {
+                // follow it again from the original URL next time
+                redirectCache.invalidate(url);
+            }
+            throw pse;
+        }
+    }
+
+    /**
+     * Tells whether the given failure of a request to a cached redirect target means the redirect is stale: the
+     * target could not be reached or is gone. Any other failure, e.g. a 503 while the target is busy, keeps it.
+     */
+    private static boolean isStaleRedirect(PushSenderException failure) {
+        if (failure instanceof PushSenderHttpException) {
+            final int statusCode = ((PushSenderHttpException) failure).getStatusCode();
+            return statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_GONE;
+        }
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asynchronous variant of {@link #attempt(String, RequestBody, MessageResponseCallback)}.
+     */
+    private CompletableFuture<Void> attemptAsync(String url, RequestBody body) {
+        final String endpoint = getServerURL();
+        if (circuitBreaker != null) {
+            try {
+                circuitBreaker.acquirePermission(endpoint);
+            } catch (PushSenderException pse) {
+                final CompletableFuture<Void> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(pse);
+                return rejected;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        submitPayloadAsync(redirectCache.resolve(url), body, 0).whenComplete((ignored, failure) -> {
+            final PushSenderException pse = failure != null ? asPushSenderException(failure) : null;
+            if (pse != null && isStaleRedirect(pse)) {
+                // follow it again from the original URL next time
+                redirectCache.invalidate(url);
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onResult(endpoint, System.nanoTime() - start, pse);
+            }
+            if (pse != null) {
+                result.completeExceptionally(pse);
+            } else {
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Schedules the retry of a failed request on the asynchronous send executor, or hands the failure to
+     * {@code giveUp} if the {@link RetryPolicy} does not allow another attempt or the retry can not be scheduled.
+     */
+    private void scheduleRetry(int attempt, PushSenderException failure, Runnable retry, Consumer<PushSenderException> giveUp) {
+        final long delay = retryPolicy.retryDelay(attempt, failure);
+        if (delay < 0) {
+            giveUp.accept(failure);
+            return;
+        }
+        logRetry(attempt, delay, failure);
+        schedule(delay, retry, rejection -> {
+            failure.addSuppressed(rejection);
+            giveUp.accept(failure);
+        });
+    }
+
+    /**
+     * Runs the given task on the asynchronous send executor after the given delay, or hands a failure to
+     * {@code onRejected} if it can not be scheduled or executed.
+     */
+    private void schedule(long delayMillis, Runnable task, Consumer<PushSenderException> onRejected) {
+        final Runnable execute = () -> {
+            if (!tryExecute(task)) {
+                onRejected.accept(new PushSenderException("Delayed send rejected, too many pending sends"));
+            }
+        };
+        try {
+            getScheduler().schedule(execute, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            onRejected.accept(new PushSenderException("Delayed send rejected, the sender has been closed", e));
+        }
+    }
+
+    private void logRetry(int attempt, long delay, PushSenderException failure) {
+        metrics.retried(attempt, delay, failure);
+        logger.log(Level.INFO, String.format("Push delivery request failed (%s), retrying in %d ms, attempt %d of %d",
+                failure.getMessage(), delay, attempt + 1, retryPolicy.getMaxAttempts()));
+    }
+
+    /**
+     * Combines the failures of a batch send into a new exception, caused by the first failure with the others
+     * suppressed. The failures of the chunks are left untouched, as they are shared with the dead letters and the
+     * coalesced callers. The status code of the first failure is kept, if any.
+     */
+    private static PushSenderException batchFailure(BatchResult result) {
+        final List<BatchResult.ChunkResult> failedChunks = result.getFailedChunks();
+        final PushSenderException first = failedChunks.get(0).getFailure();
+        final PushSenderException failure;
+        if (first instanceof PushSenderHttpException) {
+            final PushSenderHttpException httpFailure = (PushSenderHttpException) first;
+            failure = new PushSenderHttpException(httpFailure.getStatusCode(), httpFailure.getRetryAfterMillis());
+            failure.initCause(first);
+        } else {
+            failure = new PushSenderException(first.getMessage(), first);
+        }
+        for (BatchResult.ChunkResult failedChunk : failedChunks.subList(1, failedChunks.size())) {
+            failure.addSuppressed(failedChunk.getFailure());
+        }
+        return failure;
+    }
+
+    private RequestBody messageBody(UnifiedMessage unifiedMessage) {
+        try {
+            final long start = System.nanoTime();
+            final RequestBody body = JsonUtils.messageBody(unifiedMessage);
+            metrics.serialized(System.nanoTime() - start, 1, body.getContentLength());
+            return body;
+        } catch (IOException e) {
+            throw new PushSenderException("Could not serialize the message", e);
+        }
+    }
+
+    /**
+     * Resends the messages of the {@link Builder#outbox(Outbox) outbox} that were not delivered, e.g. because the
+     * JVM crashed or the Push Server was unreachable when they were sent. The messages are read from the outbox one
+     * after another and sent asynchronously, at most {@value #REPLAY_WINDOW} at the same time. Messages that
+     * can not be delivered this time either stay in the outbox.
+     *
+     * @return the number of messages that were delivered
+     * @throws IllegalStateException if no outbox was configured
+     */
+    public long replayOutbox() {
+        if (outbox == null) {
+            throw new IllegalStateException("No outbox was configured");
+        }
+        final Semaphore window = new Semaphore(REPLAY_WINDOW);
+        final AtomicInteger delivered = new AtomicInteger();
+        try {
+            outbox.forEachPending(entry -> {
+                window.acquireUninterruptibly();
+                // still held by the outbox if it fails, so it is not dead-lettered
+                sendPayloadAsync(buildUrl(), () -> RequestBody.of(entry.getPayload()), null).whenComplete((ignored, failure) -> {
+                    settle(entry.getSequence(), failure);
+                    if (failure == null) {
+                        delivered.incrementAndGet();
+                    }
+                    window.release();
+                });
+            });
+        } finally {
+            window.acquireUninterruptibly(REPLAY_WINDOW);
+        }
+        return delivered.get();
+    }
+
+    /**
+     * Resends the requests of the {@link Builder#deadLetterSink(DeadLetterSink) dead letter sink}, e.g. once an
+     * outage of the Push Server is over. The dead letters are drained from the sink one after another, so they are
+     * never all held in memory, and sent asynchronously at the given rate, at most {@value #REPLAY_WINDOW} at the same
+     * time. The {@link Builder#rateLimiter(RateLimiter) rate limiter} and {@link RetryPolicy} of the sender apply as
+     * well, and requests that fail again are written back to the sink. The dead letters are removed from the sink
+     * only once every one of them was delivered or written back.
+     *
+     * @param requestsPerSecond the maximum number of requests resent per second, or 0 to not limit them
+     * @return the number of requests that were delivered
+     * @throws IllegalStateException if no dead letter sink was configured
+     * @throws PushSenderException if the dead letters can not be read, or not all of them could be written back
+     */
+    public long replayDeadLetters(double requestsPerSecond) {
+        if (deadLetterSink == null) {
+            throw new IllegalStateException("No dead letter sink was configured");
+        }
+        final RateLimiter pace = RateLimiter.withLimit(0, requestsPerSecond, 1).build();
+        final Semaphore window = new Semaphore(REPLAY_WINDOW);
+        final AtomicInteger delivered = new AtomicInteger();
+        try {
+            deadLetterSink.drain(deadLetter -> {
+                pace.acquire(pushConfiguration.getPushApplicationId(), 1);
+                window.acquireUninterruptibly();
+                final CompletableFuture<Void> settled = new CompletableFuture<>();
+                final FailedRequestHandler writeBack = (url, body, attempts, firstAttemptMillis, failure) -> {
+                    try {
+                        // keeps counting from the first attempt ever made
+                        deadLetterSink.write(new DeadLetter(url, deadLetter.getPayload(), statusCode(failure),
+                                deadLetter.getAttempts() + attempts, deadLetter.getFirstAttemptAt(), Instant.now()));
+                    } catch (IOException | RuntimeException e) {
+                        logger.log(Level.SEVERE, "Could not write back the dead letter of a failed push delivery request", e);
+                        failure.addSuppressed(e);
+                        settled.completeExceptionally(e);
+                    }
+                };
+                sendPayloadAsync(deadLetter.getUrl(), () -> RequestBody.of(deadLetter.getPayload()), writeBack).whenComplete((ignored, failure) -> {
+                    if (failure == null) {
+                        delivered.incrementAndGet();
+                    }
+                    window.release();
+                    settled.complete(null);
+                });
+                return settled;
+            });
+        } catch (IOException e) {
+            throw new PushSenderException("Could not replay the dead letters", e);
+        } finally {
+            window.acquireUninterruptibly(REPLAY_WINDOW);
+        }
+        return delivered.get();
+    }
+
+    /**
+     * Writes a request that failed for good to the dead letter sink, if any. A failure to do so is added to the
+     * failure of the request.
+     */
+    private void deadLetter(String url, RequestBody body, int attempts, long firstAttemptMillis, PushSenderException failure) {
+        if (deadLetterSink == null) {
+            return;
+        }
+        try {
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream(body.getContentLength() > 0 ? (int) body.getContentLength() : 512);
+            body.writeTo(payload);
+            deadLetterSink.write(new DeadLetter(url, payload.toByteArray(), statusCode(failure), attempts,
+                    Instant.ofEpochMilli(firstAttemptMillis), Instant.now()));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not write the dead letter of a failed push delivery request", e);
+            failure.addSuppressed(e);
+        }
+    }
+
+    private static int statusCode(PushSenderException failure) {
+        return failure instanceof PushSenderHttpException ? ((PushSenderHttpException) failure).getStatusCode() : -1;
+    }
+
+    /**
+     * Handles a request that failed for good, after the last attempt allowed by the {@link RetryPolicy}.
+     */
+    private interface FailedRequestHandler {
+
+        void failed(String url, RequestBody body, int attempts, long firstAttemptMillis, PushSenderException failure);
+    }
+
+    /**
+     * Writes a request that failed for good to the dead letter sink, unless its messages are held by the outbox, which
+     * is then left to resend them.
+     */
+    private void deadLetterUntracked(String url, RequestBody body, int attempts, long firstAttemptMillis, PushSenderException failure) {
+        if (outbox == null) {
+            deadLetter(url, body, attempts, firstAttemptMillis, failure);
+        }
+    }
+
+    private static UnifiedMessage snapshot(UnifiedMessage unifiedMessage) {
+        try {
+            return unifiedMessage.snapshot();
+        } catch (IllegalStateException e) {
+            throw new PushSenderException("Could not serialize the message", e.getCause());
+        }
+    }
+
+    /**
+     * Takes snapshots of the given messages if they are sent asynchronously, so the changes made by the caller
+     * afterwards are not sent, or if they are written to the outbox, so they are serialized only once.
+     */
+    private List<UnifiedMessage> snapshots(List<UnifiedMessage> unifiedMessages, boolean async) {
+        if (outbox == null && !async) {
+            return unifiedMessages;
+        }
+        final List<UnifiedMessage> snapshots = new ArrayList<>(unifiedMessages.size());
+        for (UnifiedMessage unifiedMessage : unifiedMessages) {
+            snapshots.add(snapshot(unifiedMessage));
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return the JSON of the given snapshot, shared with the snapshot and not to be modified
+     */
+    private static byte[] snapshotJson(UnifiedMessage snapshot) {
+        try {
+            return JsonUtils.toJsonBytes(snapshot);
+        } catch (IOException e) {
+            // not thrown for a snapshot
+            throw new PushSenderException("Could not serialize the message", e);
+        }
+    }
+
+    private long appendToOutbox(byte[] json) {
+        try {
+            return outbox.append(json);
+        } catch (IOException e) {
+            throw new PushSenderException("Could not write the message to the outbox", e);
+        }
+    }
+
+    /**
+     * Appends every message of the batch to the outbox.
+     *
+     * @return the sequence numbers of the messages, or {@code null} if no outbox was configured
+     */
+    private long[] appendToOutbox(ChunkedBatch batch) {
+        if (outbox == null) {
+            return null;
+        }
+        final ChunkedBatch.Messages messages = batch.getMessages();
+        final long[] sequences = new long[messages.size()];
+        int appended = 0;
+        try {
+            for (; appended < sequences.length; appended++) {
+                sequences[appended] = appendToOutbox(messages.toJsonBytes(appended));
+            }
+        } catch (PushSenderException pse) {
+            // the caller learns the batch was not sent, so the messages appended so far are not resent either
+            for (int i = 0; i < appended; i++) {
+                outbox.acknowledge(sequences[i]);
+            }
+            throw pse;
+        }
+        return sequences;
+    }
+
+    /**
+     * Settles the messages of a batch, given its result or the failure of the whole batch.
+     */
+    private void settle(long[] sequences, BatchResult batchResult, Throwable failure) {
+        if (sequences == null) {
+            return;
+        }
+        if (failure != null) {
+            for (long sequence : sequences) {
+                settle(sequence, failure);
+            }
+            return;
+        }
+        for (BatchResult.ChunkResult chunk : batchResult.getChunks()) {
+            for (int i = chunk.getFromIndex(); i < chunk.getToIndex(); i++) {
+                settle(sequences[i], chunk.getFailure());
+            }
+        }
+    }
+
+    /**
+     * Acknowledges a message of the outbox once it was delivered or rejected for good, or releases it to be resent
+     * by the next {@link #replayOutbox()}.
+     */
+    private void settle(long sequence, Throwable failure) {
+        if (failure == null) {
+            outbox.acknowledge(sequence);
+            return;
+        }
+        final PushSenderException pse = asPushSenderException(failure);
+        if (pse instanceof PushSenderHttpException) {
+            final int statusCode = ((PushSenderHttpException) pse).getStatusCode();
+            if (statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429) {
+                outbox.acknowledge(sequence);
+                return;
+            }
+        }
+        outbox.release(sequence);
+    }
+
+    @Override
+    public void send(UnifiedMessage unifiedMessage) {
+        send(unifiedMessage, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A snapshot of the message is taken before returning, so the caller may change or reuse the message right away.
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(UnifiedMessage unifiedMessage) {
+        final List<UnifiedMessage> shards;
+        final UnifiedMessage snapshot;
+        try {
+            // taken right away, so the changes made to the message by the caller afterwards are not sent; the
+            // shards are snapshots already
+            shards = shards(unifiedMessage);
+            snapshot = shards == null || duplicateFilter != null ? snapshot(unifiedMessage) : unifiedMessage;
+        } catch (PushSenderException pse) {
+            final CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(pse);
+            return rejected;
+        }
+        if (duplicateFilter == null) {
+            return sendShardsAsync(snapshot, shards);
+        }
+        final long fingerprint = DuplicateFilter.fingerprint(snapshotJson(snapshot));
+        final CompletableFuture<Void> send = new CompletableFuture<>();
+        final CompletableFuture<Void> inFlight = duplicateFilter.startSend(fingerprint, send);
+        if (inFlight != null) {
+            // gets the outcome of the same message still being sent
+            dropDuplicate();
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            forward(inFlight, result);
+            return result;
+        }
+        if (!duplicateFilter.add(fingerprint)) {
+            duplicateFilter.endSend(fingerprint, send);
+            dropDuplicate();
+            return CompletableFuture.completedFuture(null);
+        }
+        // forgotten before the caller learns the outcome, so it may send the message again right away
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        sendShardsAsync(snapshot, shards).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                duplicateFilter.remove(fingerprint);
+            }
+            duplicateFilter.endSend(fingerprint, send);
+            // the caller first, so it learns the outcome no later than the duplicates
+            if (failure != null) {
+                result.completeExceptionally(unwrap(failure));
+                send.completeExceptionally(unwrap(failure));
+            } else {
+                result.complete(null);
+                send.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Asynchronous variant of {@link #sendShards(UnifiedMessage, List, MessageResponseCallback)}.
+     */
+    private CompletableFuture<Void> sendShardsAsync(UnifiedMessage unifiedMessage, List<UnifiedMessage> shards) {
+        if (shards == null) {
+            return sendDurablyAsync(unifiedMessage);
+        }
+        return asSingleSend(sendBatchAsync(shardBatch(shards), true));
+    }
+
+    /**
+     * Splits the given message if its aliases or variants exceed the shard limits.
+     *
+     * @return the shards, or {@code null} if the message is sent as it is
+     */
+    private List<UnifiedMessage> shards(UnifiedMessage unifiedMessage) {
+        if (maxShardAliases == 0 && maxShardVariants == 0) {
+            return null;
+        }
+        final List<UnifiedMessage> shards;
+        try {
+            shards = unifiedMessage.shard(maxShardAliases, maxShardVariants);
+        } catch (IllegalStateException e) {
+            throw new PushSenderException("Could not serialize the message", e.getCause());
+        }
+        return shards.size() > 1 ? shards : null;
+    }
+
+    private ChunkedBatch shardBatch(List<UnifiedMessage> shards) {
+        // a shard may be large already, so it gets a request of its own unless the batches are limited otherwise
+        return maxBatchMessages > 0 || maxBatchBytes > 0
+                ? new ChunkedBatch(shards, maxBatchMessages, maxBatchBytes)
+                : new ChunkedBatch(shards, 1, 0);
+    }
+
+    private CompletableFuture<Void> sendDurablyAsync(UnifiedMessage unifiedMessage) {
+        if (outbox == null) {
+            return sendNowAsync(unifiedMessage);
+        }
+
+        final UnifiedMessage snapshot;
+        final long sequence;
+        try {
+            snapshot = snapshot(unifiedMessage);
+            sequence = appendToOutbox(snapshotJson(snapshot));
+        } catch (PushSenderException pse) {
+            final CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(pse);
+            return rejected;
+        }
+        // settled before the caller learns the outcome
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        sendNowAsync(snapshot).whenComplete((ignored, failure) -> {
+            settle(sequence, failure);
+            if (failure != null) {
+                result.completeExceptionally(unwrap(failure));
+            } else {
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    private void dropDuplicate() {
+        metrics.duplicateDropped();
+        logger.log(Level.FINE, "Dropping a message already sent within the duplicate window");
+    }
+
+    private CompletableFuture<Void> sendNowAsync(UnifiedMessage unifiedMessage) {
+        if (coalescer != null) {
+            return coalescer.add(unifiedMessage);
+        }
+        return sendPayloadAsync(buildUrl(), () -> messageBody(unifiedMessage), outbox == null ? this::deadLetter : null);
+    }
+
+    /**
+     * Sends a request to the given URL on the asynchronous send executor, serialized by the given supplier on that
+     * executor. A request failing for good is handed to {@code onFailed}, if any, before the future completes.
+     */
+    private CompletableFuture<Void> sendPayloadAsync(String url, Supplier<RequestBody> body, FailedRequestHandler onFailed) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final boolean accepted = tryExecute(() -> {
+            try {
+                submitAsync(url, body.get(), onFailed, 1, System.currentTimeMillis(), result);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        if (!accepted) {
+            final PushSenderException rejected = new PushSenderException("Asynchronous send rejected, too many pending sends");
+            if (onFailed != null) {
+                try {
+                    onFailed.failed(url, body.get(), 0, System.currentTimeMillis(), rejected);
+                } catch (PushSenderException pse) {
+                    rejected.addSuppressed(pse);
+                }
+            }
+            result.completeExceptionally(rejected);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(List<UnifiedMessage> unifiedMessages) {
+        return asSingleSend(sendBatchAsync(unifiedMessages));
+    }
+
+    /**
+     * Reports a batch as one send, which fails if any request of the batch failed.
+     */
+    private static CompletableFuture<Void> asSingleSend(CompletableFuture<BatchResult> batch) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        batch.whenComplete((batchResult, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else if (!batchResult.isSuccess()) {
+                result.completeExceptionally(batchFailure(batchResult));
+            } else {
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Flushes the messages buffered for coalescing and shuts down the thread pool created for asynchronous sends, if
+     * any. Already submitted sends are completed, but retries scheduled afterwards fail. An executor configured through
+     * {@link Builder#asyncExecutor(Executor)} is left untouched.
+     */
+    @Override
+    public void close() {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        if (ownedTransport) {
+            transport.close();
+        }
+        asyncExecutorLock.lock();
+        try {
+            if (ownedAsyncExecutor != null) {
+                ownedAsyncExecutor.shutdown();
+            }
+            if (scheduler != null) {
+                scheduler.shutdown();
+            }
+        } finally {
+            asyncExecutorLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the given send to complete, rethrowing its failure.
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PushSenderException("Interrupted while waiting for the push delivery request", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PushSenderException) {
+                throw (PushSenderException) e.getCause();
+            }
+            throw new PushSenderException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Runs the given task on the asynchronous send executor.
+     *
+     * @return {@code false} if the executor rejected the task
+     */
+    private boolean tryExecute(Runnable task) {
+        try {
+            getAsyncExecutor().execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the timer scheduling retries and rate limited sends, lazily created when first needed.
+     */
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService timer = scheduler;
+        if (timer == null) {
+            asyncExecutorLock.lock();
+            try {
+                timer = scheduler;
+                if (timer == null) {
+                    final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, new SenderThreadFactory());
+                    pool.setKeepAliveTime(60L, TimeUnit.SECONDS);
+                    pool.allowCoreThreadTimeOut(true);
+                    scheduler = timer = pool;
+                }
+            } finally {
+                asyncExecutorLock.unlock();
+            }
+        }
+        return timer;
+    }
+
+
+    /**
+     * Returns the executor for asynchronous sends, lazily creating a bounded pool when none was configured,
+     * so that purely synchronous senders do not start any thread.
+     */
+    private Executor getAsyncExecutor() {
+        if (configuredAsyncExecutor != null) {
+            return configuredAsyncExecutor;
+        }
+        ExecutorService executor = ownedAsyncExecutor;
+        if (executor == null) {
+            asyncExecutorLock.lock();
+            try {
+                executor = ownedAsyncExecutor;
+                if (executor == null) {
+                    final ThreadPoolExecutor pool = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+                            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(asyncQueueCapacity), new SenderThreadFactory());
+                    pool.allowCoreThreadTimeOut(true);
+                    ownedAsyncExecutor = executor = pool;
+                }
+            } finally {
+                asyncExecutorLock.unlock();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Creates daemon threads, so a sender that was never closed does not keep the JVM alive.
+     */
+    private static class SenderThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix = "unifiedpush-sender-" + poolNumber.getAndIncrement() + "-thread-";
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * The actual method that does the real send, following redirects.
+     *
+     * @param url the URL to use for the HTTP POST request.
+     * @param body the JSON payload of the POST request
+     * @param callback the {@link org.jboss.aerogear.unifiedpush.message.MessageResponseCallback} that will be called once the POST request completes.
+     * @param redirects the number of redirects followed so far, used to detect an infinite loop
+     * @throws org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException when delivering push message to Unified Push Server fails.
+     * @throws org.jboss.aerogear.unifiedpush.exception.PushSenderException when generic error during sending occurs, such as an infinite redirect loop.
+     */
+    private void submitPayload(String url, RequestBody body, MessageResponseCallback callback, int redirects) {
+        checkRedirects(url, redirects);
+
+        final long start = System.nanoTime();
+        final RequestBody requestBody = requestBody(body);
+        final PushResponse response;
+        try {
+            // POST the payload to the UnifiedPush Server
+            response = transport.post(url, requestHeaders(), requestBody, metrics);
+        } catch (Exception e) {
+            throw requestFailed(url, e, start);
+        }
+
+        final String redirectURL = handleResponse(url, response, requestBody, start);
+        if (redirectURL != null) {
+            // execute the 'redirect'
+            submitPayload(redirectURL, body, callback, redirects + 1);
+        } else if (callback != null) {
+            callback.onComplete();
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #submitPayload(String, RequestBody, MessageResponseCallback, int)}, which does
+     * not block a thread while waiting for the response if the {@link PushTransport} is non-blocking.
+     *
+     * @return a future completing once the payload was accepted, or exceptionally with a {@link PushSenderException}
+     */
+    private CompletableFuture<Void> submitPayloadAsync(String url, RequestBody body, int redirects) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        final RequestBody requestBody;
+        final CompletableFuture<PushResponse> response;
+        try {
+            checkRedirects(url, redirects);
+            requestBody = requestBody(body);
+            response = transport.postAsync(url, requestHeaders(), requestBody, metrics);
+        } catch (PushSenderException pse) {
+            result.completeExceptionally(pse);
+            return result;
+        } catch (RuntimeException e) {
+            result.completeExceptionally(requestFailed(url, e, start));
+            return result;
+        }
+
+        response.whenComplete((pushResponse, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally(requestFailed(url, unwrap(failure), start));
+                return;
+            }
+            try {
+                final String redirectURL = handleResponse(url, pushResponse, requestBody, start);
+                if (redirectURL == null) {
+                    result.complete(null);
+                } else {
+                    // execute the 'redirect'
+                    forward(submitPayloadAsync(redirectURL, body, redirects + 1), result);
+                }
+            } catch (PushSenderException pse) {
+                result.completeExceptionally(pse);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(requestFailed(url, e, start));
+            }
+        });
+        return result;
+    }
+
+    private static void checkRedirects(String url, int redirects) {
+        if (redirects > MAX_REDIRECTS) {
+            throw new PushSenderException("The site contains an infinite redirect loop! Exceeded " + MAX_REDIRECTS +
+                    " redirects at url: " + url);
+        }
+    }
+
+    /**
+     * Evaluates the response to a request.
+     *
+     * @return the URL to follow if the response is a redirect, otherwise {@code null}
+     * @throws PushSenderHttpException if the Push Server answered with an error status code
+     */
+    private String handleResponse(String url, PushResponse response, RequestBody requestBody, long start) {
+        final int statusCode = response.getStatusCode();
+        logger.log(Level.INFO, String.format("HTTP Response code from UnifiedPush Server: %s", statusCode));
+        metrics.responseReceived(url, statusCode, System.nanoTime() - start, bytesSent(requestBody));
+
+        // if we got a redirect, let's extract the 'Location' header from the response
+        if (isRedirect(statusCode)) {
+            final String redirectURL;
+            try {
+                // the Location may be relative to the requested URL
+                redirectURL = new URL(new URL(url), response.getLocation()).toString();
+            } catch (MalformedURLException e) {
+                throw requestFailed(url, e, start);
+            }
+            logger.log(Level.INFO, String.format("Performing redirect to '%s'", redirectURL));
+            metrics.redirected(url, statusCode, redirectURL);
+            if (statusCode == HttpURLConnection.HTTP_MOVED_PERM) {
+                redirectCache.put(url, redirectURL);
+            } else {
+                // a cached redirect to this URL is stale once it moved elsewhere, even temporarily
+                redirectCache.invalidateRedirectsTo(url);
+            }
+            return redirectURL;
+        }
+        if (statusCode >= 400) {
+            // treating any 400/500 error codes an an exception to a sending attempt:
+            logger.log(Level.SEVERE, "The Unified Push Server returned status code: " + statusCode);
+            throw new PushSenderHttpException(statusCode, HttpRequestUtil.parseRetryAfter(response.getRetryAfter()));
+        }
+        return null;
+    }
+
+    private PushSenderException requestFailed(String url, Throwable e, long start) {
+        logger.log(Level.INFO, "Error happening while trying to send the push delivery request", e);
+
+        final PushSenderException failure = new PushSenderException(e.getMessage(), e);
+        metrics.requestFailed(url, failure, System.nanoTime() - start);
+        return failure;
+    }
+
+    private RequestBody requestBody(RequestBody body) {
+        final RequestBody encodedBody = compress(body);
+        return metrics != PushMetrics.NOOP && encodedBody.getContentLength() < 0 ? new CountingRequestBody(encodedBody) : encodedBody;
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static PushSenderException asPushSenderException(Throwable failure) {
+        final Throwable cause = unwrap(failure);
+        return cause instanceof PushSenderException ? (PushSenderException) cause : new PushSenderException(cause.getMessage(), cause);
+    }
+
+    private static void forward(CompletableFuture<Void> source, CompletableFuture<Void> target) {
+        source.whenComplete((result, failure) -> {
+            if (failure != null) {
+                target.completeExceptionally(unwrap(failure));
+            } else {
+                target.complete(null);
+            }
+        });
+    }
+
+    private RequestBody compress(RequestBody body) {
+        if (gzipThreshold < 0 || body.getContentEncoding() != null) {
+            return body;
+        }
+        // a body of unknown length is a streamed batch, which is worth compressing
+        final long contentLength = body.getContentLength();
+        return contentLength < 0 || contentLength >= gzipThreshold ? RequestBody.gzip(body, gzipLevel) : body;
+    }
+
+    /**
+     * Creates the {@code HttpClientTransport}, which is only part of the multi-release JAR on Java 11 and later.
+     */
+    private static PushTransport http2Transport(ProxyConfig proxy, TrustStoreConfig customTrustStore,
+                                                HttpRequestUtil.ConnectionSettings connectionSettings) {
+        try {
+            return (PushTransport) Class.forName(PushTransport.class.getPackage().getName() + ".HttpClientTransport")
+                    .getMethod("create", ProxyConfig.class, TrustStoreConfig.class, HttpRequestUtil.ConnectionSettings.class)
+                    .invoke(null, proxy, customTrustStore, connectionSettings);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The HTTP/2 transport requires Java 11 or later", e);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                    : new IllegalStateException("Could not create the HTTP/2 transport", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the HTTP/2 transport", e);
+        }
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task, which is only available on Java 21 and later.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the virtual thread executor", e);
+        }
+    }
+
+    private static long bytesSent(RequestBody body) {
+        return body instanceof CountingRequestBody ? ((CountingRequestBody) body).count : body.getContentLength();
+    }
+
+    /**
+     * Counts the bytes of a body of unknown length while it is written, for the metrics.
+     */
+    private static final class CountingRequestBody implements RequestBody {
+
+        private final RequestBody body;
+        private long count;
+
+        private CountingRequestBody(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return body.getContentEncoding();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            count = 0;
+            body.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    count++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    count += len;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the request headers for the given credentials. They are computed once and only rebuilt when the
+     * credentials of the {@link PushConfiguration} were changed.
+     */
+    private Map<String, String> requestHeaders() {
+        final String pushApplicationId = pushConfiguration.getPushApplicationId();
+        final String masterSecret = pushConfiguration.getMasterSecret();
+        RequestHeaders current = requestHeaders;
+        if (current == null || !current.isFor(pushApplicationId, masterSecret)) {
+            current = new RequestHeaders(pushApplicationId, masterSecret);
+            requestHeaders = current;
+        }
+        return current.headers;
+    }
+
+    /**
+     * Immutable request headers, together with the credentials they were built from.
+     */
+    private static final class RequestHeaders {
+
+        private final String pushApplicationId;
+        private final String masterSecret;
+        private final Map<String, String> headers;
+
+        private RequestHeaders(String pushApplicationId, String masterSecret) {
+            this.pushApplicationId = pushApplicationId;
+            this.masterSecret = masterSecret;
+            final String credentials = pushApplicationId + ':' + masterSecret;
+            this.headers = HttpRequestUtil.requestHeaders(Base64.encodeBytes(credentials.getBytes(UTF_8)));
         }
-        finally {
-            // tear down
-            if (httpURLConnection != null) {
-                httpURLConnection.disconnect();
-            }
 
+        private boolean isFor(String pushApplicationId, String masterSecret) {
+            return Objects.equals(this.pushApplicationId, pushApplicationId) && Objects.equals(this.masterSecret, masterSecret);
         }
     }
 
@@ -0,0 +1,299 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the fingerprints of the messages sent during a time window, so that a message sent again within the
+ * window, e.g. by an upstream system delivering its events at least once, can be dropped.
+ * <p>
+ * A fingerprint is the 64-bit xxHash of the serialized message. The fingerprints are kept in a fixed number of slots,
+ * each holding a fingerprint and its expiry. The slots are split into stripes, each guarded by its own lock, which is
+ * held only to probe a few slots, so concurrent senders rarely contend. A fingerprint lives in one of
+ * {@value #PROBES} neighbouring slots; if all of them are taken by fingerprints that did not expire yet, the one
+ * expiring first is evicted. The memory used is fixed, about 16 bytes per slot, and a filter too small for the rate of
+ * messages forgets some of them before the window ends, but never drops a message that was not sent before.
+ * <p>
+ * The sends in flight are tracked apart from the slots, so a duplicate of a message that is still being sent gets the
+ * outcome of that send.
+ * <p>
+ * A filter can be shared by several senders, which then drop the messages sent by each other.
+ *
+ * <pre>
+ * {@code
+ *     DuplicateFilter duplicateFilter = DuplicateFilter.withWindow(TimeUnit.MINUTES.toMillis(5))
+ *             .capacity(1 << 20)
+ *             .build();
+ * }
+ * </pre>
+ */
+public class DuplicateFilter {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * Number of neighbouring slots a fingerprint may be stored in.
+     */
+    static final int PROBES = 8;
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private final long windowNanos;
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final ConcurrentMap<Long, CompletableFuture<Void>> sendsInFlight = new ConcurrentHashMap<>();
+
+    private DuplicateFilter(Builder builder) {
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(builder.windowMillis);
+        final int capacity = powerOfTwo(Math.max(builder.capacity, PROBES));
+        final int stripeCount = Math.min(powerOfTwo(4 * Runtime.getRuntime().availableProcessors()), capacity / PROBES);
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(capacity / stripeCount);
+        }
+        // the top bits select the stripe, the bottom bits the slot
+        stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+    }
+
+    /**
+     * Starts a {@link Builder} for a filter remembering messages during the given time.
+     *
+     * @param windowMillis the time in ms a message is remembered after it was sent
+     * @return a {@link Builder} instance
+     */
+    public static Builder withWindow(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("window must be greater than zero");
+        }
+        return new Builder(windowMillis);
+    }
+
+    /**
+     * Builder to build a {@link DuplicateFilter}.
+     */
+    public static class Builder {
+
+        private final long windowMillis;
+        private int capacity = DEFAULT_CAPACITY;
+
+        private Builder(long windowMillis) {
+            this.windowMillis = windowMillis;
+        }
+
+        /**
+         * @param capacity the number of fingerprints that can be remembered at the same time, rounded up to a power
+         *                 of two, {@value DuplicateFilter#DEFAULT_CAPACITY} by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder capacity(int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity must be greater than zero and at most 2^30");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Build the {@link DuplicateFilter}.
+         *
+         * @return the built up {@link DuplicateFilter}
+         */
+        public DuplicateFilter build() {
+            return new DuplicateFilter(this);
+        }
+    }
+
+    /**
+     * Remembers the given fingerprint, unless it was already remembered within the window.
+     *
+     * @param fingerprint the {@link #fingerprint(byte[]) fingerprint} of a message
+     * @return {@code true} if the fingerprint was added, {@code false} if the message is a duplicate
+     */
+    public boolean add(long fingerprint) {
+        final long key = fingerprint != 0 ? fingerprint : 1;
+        return stripe(key).add(key, System.nanoTime(), windowNanos);
+    }
+
+    /**
+     * Forgets the given fingerprint, e.g. because the message could not be sent and may be sent again.
+     *
+     * @param fingerprint the {@link #fingerprint(byte[]) fingerprint} of a message
+     */
+    public void remove(long fingerprint) {
+        final long key = fingerprint != 0 ? fingerprint : 1;
+        stripe(key).remove(key);
+    }
+
+    /**
+     * Registers the send of a message, unless the same message is being sent already.
+     *
+     * @param fingerprint the {@link #fingerprint(byte[]) fingerprint} of the message
+     * @param send the future completing with the outcome of the send
+     * @return the future of the send of the same message in flight, or {@code null} if the given send was registered
+     */
+    CompletableFuture<Void> startSend(long fingerprint, CompletableFuture<Void> send) {
+        return sendsInFlight.putIfAbsent(fingerprint, send);
+    }
+
+    /**
+     * Forgets the given send registered by {@link #startSend(long, CompletableFuture)}, once it completed.
+     */
+    void endSend(long fingerprint, CompletableFuture<Void> send) {
+        sendsInFlight.remove(fingerprint, send);
+    }
+
+    private Stripe stripe(long key) {
+        return stripeShift == 64 ? stripes[0] : stripes[(int) (key >>> stripeShift)];
+    }
+
+    /**
+     * Computes the 64-bit xxHash of the given payload.
+     *
+     * @param payload the serialized message
+     * @return the fingerprint of the message
+     */
+    public static long fingerprint(byte[] payload) {
+        final ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        final int length = payload.length;
+        int offset = 0;
+        long hash;
+        if (length >= 32) {
+            long v1 = PRIME64_1 + PRIME64_2;
+            long v2 = PRIME64_2;
+            long v3 = 0;
+            long v4 = -PRIME64_1;
+            for (; offset <= length - 32; offset += 32) {
+                v1 = round(v1, buffer.getLong(offset));
+                v2 = round(v2, buffer.getLong(offset + 8));
+                v3 = round(v3, buffer.getLong(offset + 16));
+                v4 = round(v4, buffer.getLong(offset + 24));
+            }
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += length;
+
+        for (; offset <= length - 8; offset += 8) {
+            hash ^= round(0, buffer.getLong(offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (offset <= length - 4) {
+            hash ^= (buffer.getInt(offset) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+        for (; offset < length; offset++) {
+            hash ^= (payload[offset] & 0xFFL) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        return Long.rotateLeft(accumulator + input * PRIME64_2, 31) * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        return (accumulator ^ round(0, value)) * PRIME64_1 + PRIME64_4;
+    }
+
+    private static int powerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * An open addressing table of fingerprints and their expiries, stored next to each other.
+     */
+    private static final class Stripe {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] slots;
+        private final int mask;
+
+        private Stripe(int capacity) {
+            slots = new long[2 * capacity];
+            mask = capacity - 1;
+        }
+
+        private boolean add(long key, long now, long windowNanos) {
+            final int start = (int) key & mask;
+            lock.lock();
+            try {
+                int free = -1;
+                int oldest = -1;
+                for (int probe = 0; probe < PROBES; probe++) {
+                    final int slot = 2 * ((start + probe) & mask);
+                    final long expiry = slots[slot + 1];
+                    if (slots[slot] == 0 || expiry - now <= 0) {
+                        if (free < 0) {
+                            free = slot;
+                        }
+                    } else if (slots[slot] == key) {
+                        return false;
+                    } else if (oldest < 0 || expiry - slots[oldest + 1] < 0) {
+                        oldest = slot;
+                    }
+                }
+                final int slot = free >= 0 ? free : oldest;
+                slots[slot] = key;
+                slots[slot + 1] = now + windowNanos;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(long key) {
+            final int start = (int) key & mask;
+            lock.lock();
+            try {
+                for (int probe = 0; probe < PROBES; probe++) {
+                    final int slot = 2 * ((start + probe) & mask);
+                    if (slots[slot] == key) {
+                        slots[slot] = 0;
+                        slots[slot + 1] = 0;
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+
+/**
+ * Buffers single messages and flushes them as one batch request, once the buffer holds the maximum number of
+ * messages or the oldest buffered message waited for the maximum delay. The future of every buffered message
+ * completes with the outcome of the batch request (or the chunk of it) carrying that message.
+ */
+class MessageCoalescer {
+
+    private static final Logger logger = Logger.getLogger(MessageCoalescer.class.getName());
+
+    private final long maxDelayMillis;
+    private final int maxMessages;
+    private final Function<List<UnifiedMessage>, CompletableFuture<BatchResult>> batchSender;
+    private final ScheduledExecutorService timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<PendingMessage> buffer = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param maxDelayMillis the maximum time a message waits in the buffer
+     * @param maxMessages the maximum number of messages per flushed batch
+     * @param batchSender starts sending a batch, without blocking
+     * @param threadFactory creates the timer thread
+     */
+    MessageCoalescer(long maxDelayMillis, int maxMessages, Function<List<UnifiedMessage>, CompletableFuture<BatchResult>> batchSender,
+                     ThreadFactory threadFactory) {
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxMessages = maxMessages;
+        this.batchSender = batchSender;
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.timer = scheduler;
+    }
+
+    /**
+     * Adds a message to the current batch. The message is kept until the batch is flushed, so it must be a
+     * {@link UnifiedMessage#snapshot() snapshot}.
+     *
+     * @param unifiedMessage the {@link UnifiedMessage} to send
+     * @return a future completing once the batch carrying the message was sent
+     */
+    CompletableFuture<Void> add(UnifiedMessage unifiedMessage) {
+        final PendingMessage pending = new PendingMessage(unifiedMessage);
+        List<PendingMessage> full = null;
+        lock.lock();
+        try {
+            if (closed) {
+                pending.future.completeExceptionally(new PushSenderException("The sender has been closed"));
+                return pending.future;
+            }
+            buffer.add(pending);
+            if (buffer.size() >= maxMessages) {
+                full = buffer;
+                buffer = new ArrayList<>();
+            } else if (buffer.size() == 1) {
+                final List<PendingMessage> scheduled = buffer;
+                timer.schedule(() -> flushIfCurrent(scheduled), maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Flushes the buffered messages and stops accepting new ones.
+     */
+    void close() {
+        final List<PendingMessage> remaining;
+        lock.lock();
+        try {
+            closed = true;
+            remaining = buffer;
+            buffer = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        timer.shutdownNow();
+        if (!remaining.isEmpty()) {
+            dispatch(remaining);
+        }
+    }
+
+    private void flushIfCurrent(List<PendingMessage> scheduled) {
+        lock.lock();
+        try {
+            // the batch may already have been flushed because it filled up
+            if (buffer != scheduled) {
+                return;
+            }
+            buffer = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        dispatch(scheduled);
+    }
+
+    private void dispatch(List<PendingMessage> batch) {
+        final List<UnifiedMessage> unifiedMessages = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            unifiedMessages.add(pending.unifiedMessage);
+        }
+
+        CompletableFuture<BatchResult> result;
+        try {
+            result = batchSender.apply(unifiedMessages);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((batchResult, failure) -> {
+            if (failure != null) {
+                final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                logger.log(Level.INFO, "Error happening while trying to send a coalesced batch", cause);
+                for (PendingMessage pending : batch) {
+                    pending.future.completeExceptionally(cause);
+                }
+                return;
+            }
+            for (BatchResult.ChunkResult chunk : batchResult.getChunks()) {
+                for (int i = chunk.getFromIndex(); i < chunk.getToIndex(); i++) {
+                    if (chunk.isSuccess()) {
+                        batch.get(i).future.complete(null);
+                    } else {
+                        batch.get(i).future.completeExceptionally(chunk.getFailure());
+                    }
+                }
+            }
+        });
+    }
+
+    private static final class PendingMessage {
+
+        private final UnifiedMessage unifiedMessage;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingMessage(UnifiedMessage unifiedMessage) {
+            this.unifiedMessage = unifiedMessage;
+        }
+    }
+}
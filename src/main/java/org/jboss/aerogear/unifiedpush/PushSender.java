@@ -22,6 +22,7 @@ import org.jboss.aerogear.unifiedpush.model.ProxyConfig;
 import org.jboss.aerogear.unifiedpush.model.TrustStoreConfig;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface PushSender {
 
@@ -51,6 +52,32 @@ public interface PushSender {
      */
     void send(UnifiedMessage unifiedMessage);
 
+    /**
+     * Sends the given payload to installations of the referenced PushApplication without blocking the caller.
+     * <p>
+     * The default implementation runs {@link #send(UnifiedMessage)} on the common fork-join pool, implementations
+     * are encouraged to use a dedicated executor.
+     *
+     * @param unifiedMessage the {@link UnifiedMessage} to send.
+     * @return a {@link CompletableFuture} that completes once the Push Server accepted the message, or completes
+     * exceptionally with a {@link org.jboss.aerogear.unifiedpush.exception.PushSenderException} if sending failed.
+     */
+    default CompletableFuture<Void> sendAsync(UnifiedMessage unifiedMessage) {
+        return CompletableFuture.runAsync(() -> send(unifiedMessage));
+    }
+
+    /**
+     * Sends the given payloads to installations of the referenced PushApplication without blocking the caller.
+     *
+     * @param unifiedMessages collection of {@link UnifiedMessage} to send.
+     * @return a {@link CompletableFuture} that completes once the Push Server accepted the messages, or completes
+     * exceptionally with a {@link org.jboss.aerogear.unifiedpush.exception.PushSenderException} if sending failed.
+     * @see #sendAsync(UnifiedMessage)
+     */
+    default CompletableFuture<Void> sendAsync(List<UnifiedMessage> unifiedMessages) {
+        return CompletableFuture.runAsync(() -> send(unifiedMessages, null));
+    }
+
     /**
      * Returns the current configured server URL
      *
@@ -0,0 +1,322 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderRateLimitedException;
+
+/**
+ * Client-side rate limit of the messages and requests sent per push application, so that a burst of one application
+ * (e.g. a batch job) does not exhaust the Push Server quota.
+ * <p>
+ * Each push application has a token bucket for messages and one for requests, each refilled at its rate per second and
+ * holding at most {@code burst} tokens. A request larger than the burst passes once the bucket is full, the following
+ * ones then wait until the debt is paid back. The buckets are implemented with the generic cell rate algorithm: a
+ * bucket is a single timestamp updated by compare-and-set, so acquiring permits never takes a lock.
+ * <p>
+ * What happens to a send exceeding the limit depends on the {@link Mode}. A limiter can be shared by several senders,
+ * which then share the buckets of their push applications.
+ *
+ * <pre>
+ * {@code
+ *     RateLimiter rateLimiter = RateLimiter.withLimit(500, 20, 100)
+ *             .limit("batch-job-application-id", 100, 2, 100)
+ *             .mode(RateLimiter.Mode.DELAY)
+ *             .build();
+ * }
+ * </pre>
+ */
+public class RateLimiter {
+
+    /**
+     * What to do with a send exceeding the limit.
+     */
+    public enum Mode {
+        /** Wait on the calling thread until the send is permitted. */
+        BLOCK,
+        /** Fail the send right away with a {@link PushSenderRateLimitedException}. */
+        REJECT,
+        /**
+         * Delay asynchronous sends and batch requests with a timer, without blocking a thread; synchronous single sends
+         * wait like in {@link #BLOCK} mode.
+         */
+        DELAY
+    }
+
+    private final Limit defaultLimit;
+    private final Map<String, Limit> limits;
+    private final Mode mode;
+    private final long maxWaitNanos;
+
+    private final ConcurrentMap<String, Buckets> buckets = new ConcurrentHashMap<>();
+
+    private RateLimiter(Builder builder) {
+        defaultLimit = builder.defaultLimit;
+        limits = Collections.unmodifiableMap(new HashMap<>(builder.limits));
+        mode = builder.mode;
+        maxWaitNanos = builder.maxWaitMillis == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(builder.maxWaitMillis);
+    }
+
+    /**
+     * Starts a {@link Builder} for a limiter applying the given limit to every push application.
+     *
+     * @param messagesPerSecond the messages sent per second, or 0 to not limit them
+     * @param requestsPerSecond the requests sent per second, or 0 to not limit them
+     * @param burst the number of messages, and of requests, that may be sent at once after an idle period
+     * @return a {@link Builder} instance
+     */
+    public static Builder withLimit(double messagesPerSecond, double requestsPerSecond, int burst) {
+        return new Builder(new Limit(messagesPerSecond, requestsPerSecond, burst));
+    }
+
+    /**
+     * Builder to build a {@link RateLimiter}.
+     */
+    public static class Builder {
+
+        private final Limit defaultLimit;
+        private final Map<String, Limit> limits = new HashMap<>();
+        private Mode mode = Mode.BLOCK;
+        private long maxWaitMillis = Long.MAX_VALUE;
+
+        private Builder(Limit defaultLimit) {
+            this.defaultLimit = defaultLimit;
+        }
+
+        /**
+         * Overrides the limit of the given push application.
+         *
+         * @param pushApplicationId the push application
+         * @param messagesPerSecond the messages sent per second, or 0 to not limit them
+         * @param requestsPerSecond the requests sent per second, or 0 to not limit them
+         * @param burst the number of messages, and of requests, that may be sent at once after an idle period
+         * @return the current {@link Builder} instance
+         */
+        public Builder limit(String pushApplicationId, double messagesPerSecond, double requestsPerSecond, int burst) {
+            limits.put(pushApplicationId, new Limit(messagesPerSecond, requestsPerSecond, burst));
+            return this;
+        }
+
+        /**
+         * @param mode what to do with sends exceeding the limit, {@link Mode#BLOCK} by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder mode(Mode mode) {
+            if (mode == null) {
+                throw new IllegalArgumentException("mode can not be null");
+            }
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Rejects sends that would have to wait longer than the given time in {@link Mode#BLOCK} and
+         * {@link Mode#DELAY} mode. Not limited by default.
+         *
+         * @param maxWaitMillis the maximum wait in ms
+         * @return the current {@link Builder} instance
+         */
+        public Builder maxWait(long maxWaitMillis) {
+            if (maxWaitMillis < 0) {
+                throw new IllegalArgumentException("maxWait must not be negative");
+            }
+            this.maxWaitMillis = maxWaitMillis;
+            return this;
+        }
+
+        /**
+         * Build the {@link RateLimiter}.
+         *
+         * @return the built up {@link RateLimiter}
+         */
+        public RateLimiter build() {
+            return new RateLimiter(this);
+        }
+    }
+
+    /**
+     * @return what happens to sends exceeding the limit
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Takes permits for a request carrying the given number of messages, or fails right away if it exceeds the limit.
+     *
+     * @param pushApplicationId the push application sending
+     * @param messages the number of messages of the request
+     * @return {@code true} if the request may be sent
+     */
+    public boolean tryAcquire(String pushApplicationId, int messages) {
+        return reserve(pushApplicationId, messages, 0) >= 0;
+    }
+
+    /**
+     * Takes permits for a request carrying the given number of messages, applying the {@link Mode} of the limiter.
+     *
+     * @param pushApplicationId the push application sending
+     * @param messages the number of messages of the request
+     * @throws PushSenderRateLimitedException if the request is rejected
+     */
+    public void acquire(String pushApplicationId, int messages) {
+        final long waitNanos = reserveOrReject(pushApplicationId, messages);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PushSenderException("Interrupted while waiting for the rate limiter", e);
+            }
+        }
+    }
+
+    /**
+     * Takes permits for a request that can be delayed without blocking. In {@link Mode#DELAY} mode the permits are
+     * reserved and the delay is returned, in the other modes this is the same as {@link #acquire(String, int)}.
+     *
+     * @param pushApplicationId the push application sending
+     * @param messages the number of messages of the request
+     * @return the delay in ms before the request may be sent
+     * @throws PushSenderRateLimitedException if the request is rejected
+     */
+    long acquireDelayed(String pushApplicationId, int messages) {
+        if (mode != Mode.DELAY) {
+            acquire(pushApplicationId, messages);
+            return 0;
+        }
+        // rounded up, a request must not be sent before its permits are available
+        return (reserveOrReject(pushApplicationId, messages) + 999999) / 1000000;
+    }
+
+    private long reserveOrReject(String pushApplicationId, int messages) {
+        final long waitNanos = reserve(pushApplicationId, messages, mode == Mode.REJECT ? 0 : maxWaitNanos);
+        if (waitNanos < 0) {
+            throw new PushSenderRateLimitedException(pushApplicationId, TimeUnit.NANOSECONDS.toMillis(-waitNanos - 1) + 1);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Reserves the permits if they are available within the given time.
+     *
+     * @return the time in ns to wait for the reserved permits, or {@code -wait - 1} if they were not reserved
+     */
+    private long reserve(String pushApplicationId, int messages, long maxWaitNanos) {
+        final Buckets current = buckets.computeIfAbsent(String.valueOf(pushApplicationId),
+                id -> new Buckets(limits.getOrDefault(id, defaultLimit)));
+
+        final long messagesWait = current.messages != null ? current.messages.reserve(messages, maxWaitNanos) : 0;
+        if (messagesWait < 0) {
+            return messagesWait;
+        }
+        final long requestsWait = current.requests != null ? current.requests.reserve(1, maxWaitNanos) : 0;
+        if (requestsWait < 0) {
+            if (current.messages != null) {
+                current.messages.cancel(messages);
+            }
+            return requestsWait;
+        }
+        return Math.max(messagesWait, requestsWait);
+    }
+
+    /**
+     * A rate and burst.
+     */
+    private static final class Limit {
+
+        private final double messagesPerSecond;
+        private final double requestsPerSecond;
+        private final int burst;
+
+        private Limit(double messagesPerSecond, double requestsPerSecond, int burst) {
+            if (messagesPerSecond < 0 || requestsPerSecond < 0 || burst < 1) {
+                throw new IllegalArgumentException("rates must not be negative and burst must be greater than zero");
+            }
+            this.messagesPerSecond = messagesPerSecond;
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = burst;
+        }
+    }
+
+    /**
+     * The buckets of a push application, {@code null} if the dimension is not limited.
+     */
+    private static final class Buckets {
+
+        private final Bucket messages;
+        private final Bucket requests;
+
+        private Buckets(Limit limit) {
+            messages = limit.messagesPerSecond > 0 ? new Bucket(limit.messagesPerSecond, limit.burst) : null;
+            requests = limit.requestsPerSecond > 0 ? new Bucket(limit.requestsPerSecond, limit.burst) : null;
+        }
+    }
+
+    /**
+     * A token bucket in its generic cell rate algorithm form: instead of a token count refilled over time, it keeps
+     * the "theoretical arrival time" at which the bucket is full again. Taking {@code n} tokens pushes that time
+     * {@code n} emission intervals into the future; the tokens are available once it is at most {@code burst}
+     * intervals ahead of now.
+     */
+    static final class Bucket {
+
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong theoreticalArrival;
+
+        Bucket(double permitsPerSecond, int burst) {
+            intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+            burstNanos = intervalNanos * burst;
+            theoreticalArrival = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * @return the time in ns to wait for the reserved permits, or {@code -wait - 1} if they were not reserved
+         */
+        long reserve(int permits, long maxWaitNanos) {
+            while (true) {
+                final long now = System.nanoTime();
+                final long current = theoreticalArrival.get();
+                final long next = Math.max(current, now) + permits * intervalNanos;
+                // a full bucket lets any request pass, even one larger than the burst
+                final long waitNanos = current - now <= 0 ? 0 : Math.max(0, next - now - burstNanos);
+                if (waitNanos > maxWaitNanos) {
+                    return -waitNanos - 1;
+                }
+                if (theoreticalArrival.compareAndSet(current, next)) {
+                    return waitNanos;
+                }
+            }
+        }
+
+        /**
+         * Gives back reserved permits that are not used.
+         */
+        void cancel(int permits) {
+            theoreticalArrival.addAndGet(-permits * intervalNanos);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers permanent (301) redirects of the Push Server, so that later requests are sent to the final URL directly
+ * instead of sending the payload twice. Entries expire after a time to live, and are dropped when a cached target can
+ * not be reached, answers 404 or 410, or redirects elsewhere itself, so a stale redirect is followed again from the
+ * original URL. Other failures, e.g. a 503 of a busy target, keep the entry.
+ */
+class RedirectCache {
+
+    private final long ttlNanos;
+    private final int maxHops;
+    private final ConcurrentMap<String, Redirect> redirects = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis how long in ms a redirect is remembered, {@code 0} to disable the cache
+     * @param maxHops the maximum number of cached redirects followed in a row
+     */
+    RedirectCache(long ttlMillis, int maxHops) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxHops = maxHops;
+    }
+
+    /**
+     * @param url a requested URL
+     * @return the URL the request should be sent to
+     */
+    String resolve(String url) {
+        String current = url;
+        for (int hops = 0; hops < maxHops; hops++) {
+            final Redirect redirect = redirects.get(current);
+            if (redirect == null) {
+                break;
+            }
+            if (System.nanoTime() - redirect.expiresAt > 0) {
+                redirects.remove(current, redirect);
+                break;
+            }
+            current = redirect.location;
+        }
+        return current;
+    }
+
+    /**
+     * Remembers a permanent redirect.
+     *
+     * @param url the requested URL
+     * @param location the absolute redirect target
+     */
+    void put(String url, String location) {
+        if (ttlNanos > 0 && !url.equals(location)) {
+            redirects.put(url, new Redirect(location, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /**
+     * Forgets the redirects followed when resolving the given URL.
+     *
+     * @param url a requested URL
+     */
+    void invalidate(String url) {
+        String current = url;
+        for (int hops = 0; hops < maxHops && current != null; hops++) {
+            final Redirect redirect = redirects.remove(current);
+            current = redirect == null ? null : redirect.location;
+        }
+    }
+
+    /**
+     * Forgets the redirects to the given URL, e.g. because it redirects elsewhere now.
+     *
+     * @param location a redirect target
+     */
+    void invalidateRedirectsTo(String location) {
+        if (!redirects.isEmpty()) {
+            redirects.values().removeIf(redirect -> redirect.location.equals(location));
+        }
+    }
+
+    private static final class Redirect {
+
+        private final String location;
+        private final long expiresAt;
+
+        private Redirect(String location, long expiresAt) {
+            this.location = location;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+
+/**
+ * Decides whether and when a failed push delivery request is sent again.
+ * <p>
+ * A request is retried if it failed with one of the retryable status codes ({@code 429, 502, 503, 504} by default) or
+ * because of one of the retryable exceptions ({@link IOException} by default), until the maximum number of attempts
+ * is reached. The delay before the n-th retry is drawn uniformly between zero and
+ * {@code min(maxBackoff, initialBackoff * multiplier^(n-1))} ("full jitter"), so that senders failing at the same time
+ * do not retry at the same time. If the Push Server sent a {@code Retry-After} header, that delay is used instead,
+ * unless it exceeds the maximum backoff, in which case the failure is not retried.
+ *
+ * <pre>
+ * {@code
+ *     DefaultPushSender.withRootServerURL("http://localhost:8080/ag-push")
+ *             .retryPolicy(RetryPolicy.withMaxAttempts(5).initialBackoff(200).maxBackoff(10000).build())
+ *             ...
+ * }
+ * </pre>
+ */
+public class RetryPolicy {
+
+    /**
+     * Sends every request once, the default of {@link DefaultPushSender}.
+     */
+    public static final RetryPolicy NONE = withMaxAttempts(1).build();
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final Set<Integer> retryableStatusCodes;
+    private final List<Class<? extends Throwable>> retryableExceptions;
+    private final boolean honorRetryAfter;
+
+    private RetryPolicy(Builder builder) {
+        maxAttempts = builder.maxAttempts;
+        initialBackoffMillis = builder.initialBackoffMillis;
+        maxBackoffMillis = builder.maxBackoffMillis;
+        multiplier = builder.multiplier;
+        retryableStatusCodes = Collections.unmodifiableSet(new HashSet<>(builder.retryableStatusCodes));
+        retryableExceptions = Collections.unmodifiableList(new ArrayList<>(builder.retryableExceptions));
+        honorRetryAfter = builder.honorRetryAfter;
+    }
+
+    /**
+     * Starts a {@link Builder} for a policy sending every request at most the given number of times.
+     *
+     * @param maxAttempts the maximum number of attempts, including the first one
+     * @return a {@link Builder} instance
+     */
+    public static Builder withMaxAttempts(int maxAttempts) {
+        return new Builder(maxAttempts);
+    }
+
+    /**
+     * Builder to build a {@link RetryPolicy}.
+     */
+    public static class Builder {
+
+        private final int maxAttempts;
+        private long initialBackoffMillis = 100;
+        private long maxBackoffMillis = 30000;
+        private double multiplier = 2.0;
+        private Set<Integer> retryableStatusCodes = new HashSet<>(Arrays.asList(429, 502, 503, 504));
+        private List<Class<? extends Throwable>> retryableExceptions = new ArrayList<>(Collections.singletonList(IOException.class));
+        private boolean honorRetryAfter = true;
+
+        private Builder(int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be greater than zero");
+            }
+            this.maxAttempts = maxAttempts;
+        }
+
+        /**
+         * @param initialBackoffMillis upper bound in ms of the delay before the first retry, 100 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder initialBackoff(long initialBackoffMillis) {
+            if (initialBackoffMillis < 0) {
+                throw new IllegalArgumentException("initialBackoff must not be negative");
+            }
+            this.initialBackoffMillis = initialBackoffMillis;
+            return this;
+        }
+
+        /**
+         * @param maxBackoffMillis upper bound in ms of the delay before any retry, 30000 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder maxBackoff(long maxBackoffMillis) {
+            if (maxBackoffMillis < 0) {
+                throw new IllegalArgumentException("maxBackoff must not be negative");
+            }
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        /**
+         * @param multiplier factor the backoff grows by with every retry, 2 by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder multiplier(double multiplier) {
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("multiplier must be at least 1");
+            }
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Replaces the status codes that are retried, {@code 429, 502, 503} and {@code 504} by default.
+         *
+         * @param statusCodes the retryable HTTP status codes
+         * @return the current {@link Builder} instance
+         */
+        public Builder retryOnStatusCodes(Integer... statusCodes) {
+            this.retryableStatusCodes = new HashSet<>(Arrays.asList(statusCodes));
+            return this;
+        }
+
+        /**
+         * Replaces the exceptions that are retried, {@link IOException} by default. A failure is retried if it or any of
+         * its causes is an instance of one of the given types.
+         *
+         * @param exceptions the retryable exception types
+         * @return the current {@link Builder} instance
+         */
+        @SafeVarargs
+        public final Builder retryOnExceptions(Class<? extends Throwable>... exceptions) {
+            this.retryableExceptions = new ArrayList<>(Arrays.asList(exceptions));
+            return this;
+        }
+
+        /**
+         * @param honorRetryAfter whether the {@code Retry-After} header of the Push Server replaces the computed
+         *                        backoff, {@code true} by default
+         * @return the current {@link Builder} instance
+         */
+        public Builder honorRetryAfter(boolean honorRetryAfter) {
+            this.honorRetryAfter = honorRetryAfter;
+            return this;
+        }
+
+        /**
+         * Build the {@link RetryPolicy}.
+         *
+         * @return the built up {@link RetryPolicy}
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+
+    /**
+     * @return the maximum number of attempts per request, including the first one
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param failure the failure of a push delivery request
+     * @return whether the failure is transient and worth retrying
+     */
+    public boolean isRetryable(PushSenderException failure) {
+        if (failure instanceof PushSenderHttpException) {
+            return retryableStatusCodes.contains(((PushSenderHttpException) failure).getStatusCode());
+        }
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            for (Class<? extends Throwable> retryableException : retryableExceptions) {
+                if (retryableException.isInstance(cause)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the delay before retrying a failed request.
+     *
+     * @param attempt the number of the attempt that failed, starting with 1
+     * @param failure the failure of that attempt
+     * @return the delay in ms before the next attempt, or {@code -1} if the request must not be retried
+     */
+    public long retryDelay(int attempt, PushSenderException failure) {
+        if (attempt >= maxAttempts || !isRetryable(failure)) {
+            return -1;
+        }
+        if (honorRetryAfter && failure instanceof PushSenderHttpException) {
+            final long retryAfterMillis = ((PushSenderHttpException) failure).getRetryAfterMillis();
+            if (retryAfterMillis >= 0) {
+                return retryAfterMillis <= maxBackoffMillis ? retryAfterMillis : -1;
+            }
+        }
+        final double backoff = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, attempt - 1));
+        return (long) (ThreadLocalRandom.current().nextDouble() * backoff);
+    }
+}
@@ -18,6 +18,10 @@ package org.jboss.aerogear.unifiedpush.ca;
 
 import java.security.KeyStore;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
 public interface TrustStoreManager {
 
     /**
@@ -29,4 +33,61 @@ public interface TrustStoreManager {
      * @throws Exception
      */
     KeyStore loadTrustStore(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception;
+
+    /**
+     * Returns a socket factory for TLS connections trusting the certificates of the given TrustStore.
+     * The default implementation loads the TrustStore and initializes a new {@link SSLContext} on every call,
+     * implementations should cache the result where possible.
+     *
+     * @param trustStorePath The trustStore's path.
+     * @param trustStoreType The trustStore's type.
+     * @param trustStorePassword The trustStore's password.
+     * @return a {@link SSLSocketFactory} trusting the given TrustStore
+     * @throws Exception
+     */
+    default SSLSocketFactory getSSLSocketFactory(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        return createSSLSocketFactory(loadTrustStore(trustStorePath, trustStoreType, trustStorePassword));
+    }
+
+    /**
+     * Returns a TLS {@link SSLContext} trusting the certificates of the given TrustStore, e.g. for clients that are
+     * configured with a context rather than a socket factory. The default implementation loads the TrustStore and
+     * initializes a new {@link SSLContext} on every call, implementations should cache the result where possible.
+     * Callers may compare the returned instances to find out whether the TrustStore was reloaded.
+     *
+     * @param trustStorePath The trustStore's path.
+     * @param trustStoreType The trustStore's type.
+     * @param trustStorePassword The trustStore's password.
+     * @return a {@link SSLContext} trusting the given TrustStore
+     * @throws Exception
+     */
+    default SSLContext getSSLContext(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        return createSSLContext(loadTrustStore(trustStorePath, trustStoreType, trustStorePassword));
+    }
+
+    /**
+     * Initializes a new TLS {@link SSLContext} trusting the given TrustStore and returns its socket factory.
+     *
+     * @param trustStore The loaded trustStore.
+     * @return a {@link SSLSocketFactory} trusting the given TrustStore
+     * @throws Exception
+     */
+    static SSLSocketFactory createSSLSocketFactory(KeyStore trustStore) throws Exception {
+        return createSSLContext(trustStore).getSocketFactory();
+    }
+
+    /**
+     * Initializes a new TLS {@link SSLContext} trusting the given TrustStore.
+     *
+     * @param trustStore The loaded trustStore.
+     * @return a {@link SSLContext} trusting the given TrustStore
+     * @throws Exception
+     */
+    static SSLContext createSSLContext(KeyStore trustStore) throws Exception {
+        final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        final SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
 }
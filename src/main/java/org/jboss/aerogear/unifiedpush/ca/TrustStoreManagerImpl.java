@@ -20,9 +20,53 @@ import static org.jboss.aerogear.unifiedpush.utils.ValidationUtils.isEmpty;
 
 import java.io.FileInputStream;
 import java.security.KeyStore;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 
 public class TrustStoreManagerImpl implements TrustStoreManager {
 
+    private final ConcurrentMap<TrustStoreKey, SSLContext> sslContexts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TrustStoreKey, SSLSocketFactory> socketFactories = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a socket factory for the given TrustStore, which is loaded and turned into a {@link javax.net.ssl.SSLContext}
+     * only on the first call. Sharing the context also lets TLS sessions be resumed across connections.
+     */
+    @Override
+    public SSLSocketFactory getSSLSocketFactory(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        final TrustStoreKey key = new TrustStoreKey(trustStorePath, trustStoreType, trustStorePassword);
+        SSLSocketFactory socketFactory = socketFactories.get(key);
+        if (socketFactory == null) {
+            socketFactory = getSSLContext(trustStorePath, trustStoreType, trustStorePassword).getSocketFactory();
+            final SSLSocketFactory existing = socketFactories.putIfAbsent(key, socketFactory);
+            if (existing != null) {
+                socketFactory = existing;
+            }
+        }
+        return socketFactory;
+    }
+
+    /**
+     * Returns the {@link SSLContext} for the given TrustStore, which is loaded only on the first call.
+     */
+    @Override
+    public SSLContext getSSLContext(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        final TrustStoreKey key = new TrustStoreKey(trustStorePath, trustStoreType, trustStorePassword);
+        SSLContext sslContext = sslContexts.get(key);
+        if (sslContext == null) {
+            sslContext = TrustStoreManager.createSSLContext(loadTrustStore(trustStorePath, trustStoreType, trustStorePassword));
+            final SSLContext existing = sslContexts.putIfAbsent(key, sslContext);
+            if (existing != null) {
+                sslContext = existing;
+            }
+        }
+        return sslContext;
+    }
+
     @Override
     public KeyStore loadTrustStore(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
         if (isEmpty(trustStorePath)) {
@@ -42,4 +86,41 @@ public class TrustStoreManagerImpl implements TrustStoreManager {
             }
         }
     }
+
+    /**
+     * Cache key identifying a TrustStore by path, type and password.
+     */
+    static final class TrustStoreKey {
+
+        private final String trustStorePath;
+        private final String trustStoreType;
+        private final String trustStorePassword;
+
+        TrustStoreKey(String trustStorePath, String trustStoreType, String trustStorePassword) {
+            this.trustStorePath = trustStorePath;
+            this.trustStoreType = trustStoreType;
+            this.trustStorePassword = trustStorePassword;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TrustStoreKey)) {
+                return false;
+            }
+            final TrustStoreKey other = (TrustStoreKey) o;
+            return Objects.equals(trustStorePath, other.trustStorePath)
+                    && Objects.equals(trustStoreType, other.trustStoreType)
+                    && Objects.equals(trustStorePassword, other.trustStorePassword);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hashCode(trustStorePath);
+            result = 31 * result + Objects.hashCode(trustStoreType);
+            return 31 * result + Objects.hashCode(trustStorePassword);
+        }
+    }
 }
@@ -16,9 +16,14 @@
  */
 package org.jboss.aerogear.unifiedpush.ca;
 
+/**
+ * Holds the {@link TrustStoreManager} used for custom TrustStores. Defaults to {@link TrustStoreManagerImpl}, which
+ * loads each TrustStore once; use {@link #setTrustStoreManager(TrustStoreManager)} to plug in another implementation,
+ * such as the {@link WatchingTrustStoreManager}.
+ */
 public class TrustStoreManagerService {
 
-    private TrustStoreManager trustStoreManager = null;
+    private volatile TrustStoreManager trustStoreManager = null;
 
     private TrustStoreManagerService() {
         trustStoreManager = new TrustStoreManagerImpl();
@@ -35,4 +40,16 @@ public class TrustStoreManagerService {
     public TrustStoreManager getTrustStoreManager() {
         return this.trustStoreManager;
     }
+
+    /**
+     * Replaces the {@link TrustStoreManager} used by all senders. The previous manager is not closed.
+     *
+     * @param trustStoreManager the {@link TrustStoreManager} to use
+     */
+    public void setTrustStoreManager(TrustStoreManager trustStoreManager) {
+        if (trustStoreManager == null) {
+            throw new IllegalArgumentException("trustStoreManager can not be null");
+        }
+        this.trustStoreManager = trustStoreManager;
+    }
 }
@@ -0,0 +1,282 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.ca;
+
+import static org.jboss.aerogear.unifiedpush.utils.ValidationUtils.isEmpty;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A {@link TrustStoreManager} keeping the parsed TrustStores, their {@link SSLContext} and {@link SSLSocketFactory} in
+ * memory, and reloading them when the TrustStore file changes on disk.
+ * <p>
+ * The files are watched by a single daemon thread using a {@link WatchService}. When a file changes, the new
+ * TrustStore, context and socket factory are built on that thread and swapped in atomically, so certificates can be rotated
+ * without restarting and without any file I/O on the send path. If the new file can not be loaded (e.g. while it is
+ * still being written), the previous TrustStore stays in use.
+ * <p>
+ * A TrustStore may be a symbolic link, e.g. a Kubernetes secret mounted as {@code truststore.jks -> ..data/truststore.jks},
+ * which is rotated by swapping the {@code ..data} link without touching {@code truststore.jks} itself. So on every
+ * change within the directory of a TrustStore, or of the file its path resolves to, the real path, size and modification
+ * time of the file are compared to the loaded ones, and the TrustStore is reloaded if any of them differs.
+ * <p>
+ * To use it, plug it into the {@link TrustStoreManagerService}:
+ *
+ * <pre>
+ * {@code
+ *     TrustStoreManagerService.getInstance().setTrustStoreManager(new WatchingTrustStoreManager());
+ * }
+ * </pre>
+ */
+public class WatchingTrustStoreManager implements TrustStoreManager, Closeable {
+
+    private static final Logger logger = Logger.getLogger(WatchingTrustStoreManager.class.getName());
+
+    private final TrustStoreManager loader = new TrustStoreManagerImpl();
+    private final ConcurrentMap<TrustStoreManagerImpl.TrustStoreKey, AtomicReference<LoadedTrustStore>> trustStores = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+    // the first send using a TrustStore registers its directory, possibly on a virtual thread
+    private final ReentrantLock watchLock = new ReentrantLock();
+    private final WatchService watchService;
+
+    public WatchingTrustStoreManager() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        final Thread watcher = new Thread(this::watch, "unifiedpush-truststore-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public KeyStore loadTrustStore(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        return get(trustStorePath, trustStoreType, trustStorePassword).trustStore;
+    }
+
+    @Override
+    public SSLSocketFactory getSSLSocketFactory(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        return get(trustStorePath, trustStoreType, trustStorePassword).socketFactory;
+    }
+
+    /**
+     * Returns the {@link SSLContext} of the current TrustStore, a new instance once the file was reloaded.
+     */
+    @Override
+    public SSLContext getSSLContext(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        return get(trustStorePath, trustStoreType, trustStorePassword).sslContext;
+    }
+
+    /**
+     * Stops watching the TrustStore files. The TrustStores loaded so far remain usable but are no longer reloaded.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private LoadedTrustStore get(String trustStorePath, String trustStoreType, String trustStorePassword) throws Exception {
+        final TrustStoreManagerImpl.TrustStoreKey key = new TrustStoreManagerImpl.TrustStoreKey(trustStorePath, trustStoreType, trustStorePassword);
+        final AtomicReference<LoadedTrustStore> current = trustStores.get(key);
+        if (current != null) {
+            return current.get();
+        }
+
+        if (isEmpty(trustStorePath)) {
+            throw new IllegalArgumentException("Wrong TrustStore file path configuration");
+        }
+        final Path file = Paths.get(trustStorePath).toAbsolutePath().normalize();
+        watch(file.getParent());
+        final LoadedTrustStore loaded = load(file, trustStoreType, trustStorePassword);
+        final AtomicReference<LoadedTrustStore> existing = trustStores.putIfAbsent(key, new AtomicReference<>(loaded));
+        return existing == null ? loaded : existing.get();
+    }
+
+    private LoadedTrustStore load(Path file, String trustStoreType, String trustStorePassword) throws Exception {
+        // taken before reading, so a change while reading is seen by the next event
+        final FileVersion version = FileVersion.of(file);
+        watch(version.realFile.getParent());
+        final KeyStore trustStore = loader.loadTrustStore(file.toString(), trustStoreType, trustStorePassword);
+        return new LoadedTrustStore(file, version, trustStoreType, trustStorePassword, trustStore,
+                TrustStoreManager.createSSLContext(trustStore));
+    }
+
+    private void watch(Path directory) throws IOException {
+        watchLock.lock();
+        try {
+            final WatchKey key = watchedDirectories.get(directory);
+            // a key turns invalid once its directory is deleted, e.g. the previous target of a swapped link
+            if (key == null || !key.isValid()) {
+                // ENTRY_CREATE covers TrustStores replaced by an atomic move or a swapped link
+                watchedDirectories.put(directory, directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+        } finally {
+            watchLock.unlock();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                final Path directory = (Path) key.watchable();
+                boolean changed = false;
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() != StandardWatchEventKinds.OVERFLOW) {
+                        changed = true;
+                    } else {
+                        overflow = true;
+                    }
+                }
+                if (overflow) {
+                    reloadAll();
+                } else if (changed) {
+                    reloadChanged(directory);
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            logger.log(Level.FINE, "Stopped watching TrustStore files");
+        }
+    }
+
+    private void reloadAll() {
+        for (AtomicReference<LoadedTrustStore> current : trustStores.values()) {
+            reload(current);
+        }
+    }
+
+    /**
+     * Reloads the TrustStores within the given directory, or resolving to a file within it, whose file changed.
+     */
+    private void reloadChanged(Path directory) {
+        for (AtomicReference<LoadedTrustStore> current : trustStores.values()) {
+            final LoadedTrustStore loaded = current.get();
+            if (!directory.equals(loaded.file.getParent()) && !directory.equals(loaded.version.realFile.getParent())) {
+                continue;
+            }
+            final FileVersion version;
+            try {
+                version = FileVersion.of(loaded.file);
+            } catch (IOException e) {
+                // e.g. a link pointing nowhere while it is swapped, the next event tells
+                logger.log(Level.FINE, String.format("Could not read the TrustStore '%s'", loaded.file), e);
+                continue;
+            }
+            if (!version.equals(loaded.version)) {
+                reload(current);
+            }
+        }
+    }
+
+    private void reload(AtomicReference<LoadedTrustStore> current) {
+        final LoadedTrustStore previous = current.get();
+        try {
+            current.set(load(previous.file, previous.trustStoreType, previous.trustStorePassword));
+            logger.log(Level.INFO, String.format("Reloaded TrustStore '%s'", previous.file));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, String.format("Could not reload TrustStore '%s', keeping the previous one", previous.file), e);
+        }
+    }
+
+    /**
+     * An immutable snapshot of a parsed TrustStore file.
+     */
+    private static final class LoadedTrustStore {
+
+        private final Path file;
+        private final FileVersion version;
+        private final String trustStoreType;
+        private final String trustStorePassword;
+        private final KeyStore trustStore;
+        private final SSLContext sslContext;
+        private final SSLSocketFactory socketFactory;
+
+        private LoadedTrustStore(Path file, FileVersion version, String trustStoreType, String trustStorePassword,
+                                 KeyStore trustStore, SSLContext sslContext) {
+            this.file = file;
+            this.version = version;
+            this.trustStoreType = trustStoreType;
+            this.trustStorePassword = trustStorePassword;
+            this.trustStore = trustStore;
+            this.sslContext = sslContext;
+            this.socketFactory = sslContext.getSocketFactory();
+        }
+    }
+
+    /**
+     * The file a TrustStore path resolves to, following any symbolic links, with its size and modification time.
+     */
+    private static final class FileVersion {
+
+        private final Path realFile;
+        private final long size;
+        private final FileTime lastModified;
+
+        private FileVersion(Path realFile, long size, FileTime lastModified) {
+            this.realFile = realFile;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private static FileVersion of(Path file) throws IOException {
+            final Path realFile = file.toRealPath();
+            final BasicFileAttributes attributes = Files.readAttributes(realFile, BasicFileAttributes.class);
+            return new FileVersion(realFile, attributes.size(), attributes.lastModifiedTime());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileVersion)) {
+                return false;
+            }
+            final FileVersion other = (FileVersion) o;
+            return size == other.size && realFile.equals(other.realFile) && lastModified.equals(other.lastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realFile, size, lastModified);
+        }
+    }
+}
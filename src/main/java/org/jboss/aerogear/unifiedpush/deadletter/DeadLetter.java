@@ -0,0 +1,85 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.deadletter;
+
+import java.time.Instant;
+
+/**
+ * A push delivery request that failed for good, after the last attempt allowed by the retry policy.
+ */
+public final class DeadLetter {
+
+    private final String url;
+    private final byte[] payload;
+    private final int statusCode;
+    private final int attempts;
+    private final Instant firstAttemptAt;
+    private final Instant failedAt;
+
+    /**
+     * @param url the URL the request was sent to
+     * @param payload the JSON payload of the request, not compressed
+     * @param statusCode the status code of the last response, or -1 if no response was received
+     * @param attempts the number of attempts
+     * @param firstAttemptAt when the request was sent the first time
+     * @param failedAt when the last attempt failed
+     */
+    public DeadLetter(String url, byte[] payload, int statusCode, int attempts, Instant firstAttemptAt, Instant failedAt) {
+        this.url = url;
+        this.payload = payload;
+        this.statusCode = statusCode;
+        this.attempts = attempts;
+        this.firstAttemptAt = firstAttemptAt;
+        this.failedAt = failedAt;
+    }
+
+    /**
+     * @return the URL the request was sent to, the single or the batch endpoint of the Push Server
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the JSON payload of the request, a message or an array of messages, which must not be modified
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the status code of the last response, or -1 if no response was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the number of attempts, 0 if the request could not even be sent once
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public Instant getFirstAttemptAt() {
+        return firstAttemptAt;
+    }
+
+    public Instant getFailedAt() {
+        return failedAt;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.deadletter;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * Keeps the push delivery requests that failed for good, so they can be replayed later, e.g. once an outage of the
+ * Push Server is over.
+ * <p>
+ * Implementations must be thread-safe, dead letters are written by the threads sending the requests.
+ *
+ * @see FileDeadLetterSink
+ */
+public interface DeadLetterSink {
+
+    /**
+     * Stores a failed request.
+     *
+     * @param deadLetter the failed request
+     * @throws IOException if it can not be stored
+     */
+    void write(DeadLetter deadLetter) throws IOException;
+
+    /**
+     * Hands the stored dead letters to the given consumer one after another, without holding all of them in memory,
+     * and removes them once every stage returned by the consumer completed, e.g. once the dead letters were resent.
+     * Dead letters written while draining are kept for the next call. If a stage completes exceptionally, or the
+     * consumer or reading fails, the dead letters not removed yet are handed out again by the next call, possibly
+     * together with some that were settled already.
+     *
+     * @param consumer the consumer of the dead letters, returning a stage completing once a dead letter is settled
+     * @return the number of dead letters handed out
+     * @throws IOException if the dead letters can not be read, or a stage completed exceptionally
+     */
+    long drain(Function<DeadLetter, ? extends CompletionStage<?>> consumer) throws IOException;
+}
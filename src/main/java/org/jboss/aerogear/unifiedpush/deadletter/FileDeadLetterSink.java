@@ -0,0 +1,264 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.deadletter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * A {@link DeadLetterSink} appending the dead letters to a file, one JSON object per line (NDJSON), e.g.
+ *
+ * <pre>
+ * {"url":"https://ups.example.com/rest/sender/","statusCode":503,"attempts":3,"firstAttemptAt":"2016-05-04T10:15:30Z","failedAt":"2016-05-04T10:15:32Z","payload":{"message":{"alert":"Hello"}}}
+ * </pre>
+ * <p>
+ * Every dead letter is flushed to the file when written, so it survives a crash of the JVM. To drain the dead letters,
+ * the file is renamed by adding {@code .draining} to its name and read line by line, while new dead letters go to a new
+ * file, which is deleted once all of its dead letters were settled. A file left over by an interrupted or failed drain
+ * is drained first by the next call.
+ */
+public class FileDeadLetterSink implements DeadLetterSink, Closeable {
+
+    private static final Logger logger = Logger.getLogger(FileDeadLetterSink.class.getName());
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final Path file;
+    private final Path drainingFile;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private OutputStream out;
+
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    /**
+     * @param file the file the dead letters are appended to, created if needed
+     */
+    public FileDeadLetterSink(Path file) {
+        this.file = file;
+        this.drainingFile = file.resolveSibling(file.getFileName() + ".draining");
+    }
+
+    @Override
+    public void write(DeadLetter deadLetter) throws IOException {
+        final byte[] line = toLine(deadLetter);
+        writeLock.lock();
+        try {
+            if (out == null) {
+                out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                if (endsWithTornLine()) {
+                    // keep the first new dead letter apart from the garbage
+                    out.write('\n');
+                }
+            }
+            out.write(line);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long drain(Function<DeadLetter, ? extends CompletionStage<?>> consumer) throws IOException {
+        drainLock.lock();
+        try {
+            long drained = 0;
+            if (Files.exists(drainingFile)) {
+                drained += drainFile(consumer);
+            }
+            writeLock.lock();
+            try {
+                closeFile();
+                if (!Files.exists(file)) {
+                    return drained;
+                }
+                Files.move(file, drainingFile, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                writeLock.unlock();
+            }
+            return drained + drainFile(consumer);
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            closeFile();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private boolean endsWithTornLine() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return false;
+            }
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private long drainFile(Function<DeadLetter, ? extends CompletionStage<?>> consumer) throws IOException {
+        // one more than the dead letters being settled, until all of them were handed out
+        final AtomicLong pending = new AtomicLong(1);
+        final AtomicReference<Throwable> failed = new AtomicReference<>();
+        final CompletableFuture<Void> settled = new CompletableFuture<>();
+        long drained = 0;
+        try (BufferedReader reader = Files.newBufferedReader(drainingFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final DeadLetter deadLetter;
+                try {
+                    deadLetter = fromLine(line);
+                } catch (IOException | DateTimeParseException e) {
+                    // e.g. the last line, torn by a crash while it was written
+                    logger.log(Level.WARNING, "Skipping unreadable dead letter in " + drainingFile, e);
+                    continue;
+                }
+                pending.incrementAndGet();
+                consumer.apply(deadLetter).whenComplete((ignored, failure) -> {
+                    if (failure != null) {
+                        failed.compareAndSet(null, failure);
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        settled.complete(null);
+                    }
+                });
+                drained++;
+            }
+        }
+        if (pending.decrementAndGet() == 0) {
+            settled.complete(null);
+        }
+        settled.join();
+        if (failed.get() != null) {
+            throw new IOException("Could not settle the dead letters of " + drainingFile, failed.get());
+        }
+        Files.delete(drainingFile);
+        return drained;
+    }
+
+    private static byte[] toLine(DeadLetter deadLetter) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(deadLetter.getPayload().length + 256);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(line);
+             JsonParser payload = JSON_FACTORY.createParser(deadLetter.getPayload())) {
+            generator.writeStartObject();
+            generator.writeStringField("url", deadLetter.getUrl());
+            generator.writeNumberField("statusCode", deadLetter.getStatusCode());
+            generator.writeNumberField("attempts", deadLetter.getAttempts());
+            generator.writeStringField("firstAttemptAt", deadLetter.getFirstAttemptAt().toString());
+            generator.writeStringField("failedAt", deadLetter.getFailedAt().toString());
+            // copied rather than written raw, so the line never breaks
+            generator.writeFieldName("payload");
+            payload.nextToken();
+            generator.copyCurrentStructure(payload);
+            generator.writeEndObject();
+        }
+        line.write('\n');
+        return line.toByteArray();
+    }
+
+    private static DeadLetter fromLine(String line) throws IOException {
+        String url = null;
+        byte[] payload = null;
+        int statusCode = -1;
+        int attempts = 0;
+        Instant firstAttemptAt = null;
+        Instant failedAt = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Dead letter is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "url":
+                        url = parser.getText();
+                        break;
+                    case "statusCode":
+                        statusCode = parser.getIntValue();
+                        break;
+                    case "attempts":
+                        attempts = parser.getIntValue();
+                        break;
+                    case "firstAttemptAt":
+                        firstAttemptAt = Instant.parse(parser.getText());
+                        break;
+                    case "failedAt":
+                        failedAt = Instant.parse(parser.getText());
+                        break;
+                    case "payload":
+                        final ByteArrayOutputStream json = new ByteArrayOutputStream(line.length());
+                        try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+                            generator.copyCurrentStructure(parser);
+                        }
+                        payload = json.toByteArray();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+        if (url == null || payload == null) {
+            throw new IOException("Dead letter without url or payload");
+        }
+        return new DeadLetter(url, payload, statusCode, attempts, firstAttemptAt, failedAt);
+    }
+}
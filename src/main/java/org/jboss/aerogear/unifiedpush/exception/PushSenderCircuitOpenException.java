@@ -0,0 +1,44 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.exception;
+
+/**
+ * Thrown without contacting the Push Server, when the circuit breaker of its endpoint is open because of previous
+ * failures.
+ */
+public class PushSenderCircuitOpenException extends PushSenderException {
+
+    static final long serialVersionUID = -1334897190745766939L;
+
+    private final String endpoint;
+
+    /**
+     * Constructs a new push sender runtime exception for the given endpoint.
+     * @param endpoint the Push Server URL whose circuit breaker is open
+     */
+    public PushSenderCircuitOpenException(String endpoint) {
+        super("Circuit breaker is open for " + endpoint + ", the push delivery request was not sent");
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return the Push Server URL whose circuit breaker is open
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
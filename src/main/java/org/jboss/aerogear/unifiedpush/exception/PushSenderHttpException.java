@@ -25,6 +25,8 @@ public class PushSenderHttpException extends PushSenderException {
 
     private int statusCode = -1;
 
+    private long retryAfterMillis = -1;
+
     /**
      * Constructs a new push sender runtime exception with the given http status code.
      * @param statusCode
@@ -33,6 +35,17 @@ public class PushSenderHttpException extends PushSenderException {
         this.statusCode = statusCode;
     }
 
+    /**
+     * Constructs a new push sender runtime exception with the given http status code and the delay requested by the
+     * {@code Retry-After} header of the response.
+     * @param statusCode the http status code
+     * @param retryAfterMillis the requested delay in ms, or -1 if the response had no {@code Retry-After} header
+     */
+    public PushSenderHttpException(int statusCode, long retryAfterMillis) {
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
     /**
      * If present, returns the error status code from the Unified Push server
      * @return if present, the status code, otherwise -1
@@ -45,4 +58,12 @@ public class PushSenderHttpException extends PushSenderException {
         this.statusCode = httpErrorStatusCode;
     }
 
+    /**
+     * If present, returns the delay the Unified Push server asked for with a {@code Retry-After} header
+     * @return if present, the delay in ms, otherwise -1
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
 }
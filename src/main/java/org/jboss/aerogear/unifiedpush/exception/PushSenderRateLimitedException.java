@@ -0,0 +1,53 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.exception;
+
+/**
+ * Thrown without contacting the Push Server, when a send exceeds the client-side rate limit of its push application.
+ */
+public class PushSenderRateLimitedException extends PushSenderException {
+
+    static final long serialVersionUID = -5534897190745766939L;
+
+    private final String pushApplicationId;
+    private final long retryAfterMillis;
+
+    /**
+     * Constructs a new push sender runtime exception for the given push application.
+     * @param pushApplicationId the push application whose rate limit was exceeded
+     * @param retryAfterMillis the time in ms until the send would have been permitted
+     */
+    public PushSenderRateLimitedException(String pushApplicationId, long retryAfterMillis) {
+        super("Rate limit exceeded for push application " + pushApplicationId + ", retry in " + retryAfterMillis + " ms");
+        this.pushApplicationId = pushApplicationId;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return the push application whose rate limit was exceeded
+     */
+    public String getPushApplicationId() {
+        return pushApplicationId;
+    }
+
+    /**
+     * @return the time in ms until the send would have been permitted
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.aerogear.unifiedpush.utils.JsonUtils;
+
+/**
+ * A {@link UnifiedMessage} compiled once into its JSON form, with named placeholders substituted per recipient.
+ * <p>
+ * Placeholders are written as {@code ${name}} into any string of the message, e.g. the alert, a {@code userData}
+ * value or an alias. The constant parts of the JSON are kept as pre-encoded UTF-8 segments, and rendering a message
+ * only copies these segments and the JSON-escaped values, without building and serializing a message per recipient:
+ *
+ * <pre>
+ * {@code
+ *     MessageTemplate template = MessageTemplate.compile(UnifiedMessage.withMessage()
+ *             .alert("Hello ${name}")
+ *             .userData("orderId", "${orderId}")
+ *             .criteria()
+ *                  .aliases("${alias}")
+ *             .build());
+ *
+ *     Map<String, String> values = new HashMap<>();
+ *     values.put("name", "Mike");
+ *     values.put("orderId", "42");
+ *     values.put("alias", "mike@example.com");
+ *     byte[] json = template.render(values);
+ * }
+ * </pre>
+ *
+ * Placeholders can only stand for strings, not for numbers or booleans. A template is immutable and can be shared
+ * between threads.
+ */
+public final class MessageTemplate {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[][] segments;
+    private final String[] placeholders;
+    private final Set<String> placeholderNames;
+    private final int constantLength;
+
+    private MessageTemplate(byte[][] segments, String[] placeholders) {
+        this.segments = segments;
+        this.placeholders = placeholders;
+        this.placeholderNames = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(placeholders)));
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        this.constantLength = length;
+    }
+
+    /**
+     * Compiles the given message into a template.
+     *
+     * @param unifiedMessage the message holding {@code ${name}} placeholders
+     * @return the compiled {@link MessageTemplate}
+     * @throws IllegalArgumentException if the message can not be serialized
+     */
+    public static MessageTemplate compile(UnifiedMessage unifiedMessage) {
+        final byte[] json;
+        try {
+            json = JsonUtils.toJsonBytes(unifiedMessage);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not serialize the template message", e);
+        }
+
+        // '$', '{' and '}' are never escaped and can only occur within JSON strings, so every match is a placeholder
+        // within a string value or key
+        final List<byte[]> segments = new ArrayList<>();
+        final List<String> placeholders = new ArrayList<>();
+        int segmentStart = 0;
+        int i = 0;
+        while (i < json.length - 2) {
+            if (json[i] == '$' && json[i + 1] == '{') {
+                final int nameEnd = nameEnd(json, i + 2);
+                if (nameEnd > i + 2 && nameEnd < json.length && json[nameEnd] == '}') {
+                    segments.add(Arrays.copyOfRange(json, segmentStart, i));
+                    placeholders.add(new String(json, i + 2, nameEnd - i - 2));
+                    i = nameEnd + 1;
+                    segmentStart = i;
+                    continue;
+                }
+            }
+            i++;
+        }
+        segments.add(Arrays.copyOfRange(json, segmentStart, json.length));
+        return new MessageTemplate(segments.toArray(new byte[0][]), placeholders.toArray(new String[0]));
+    }
+
+    private static int nameEnd(byte[] json, int from) {
+        int i = from;
+        while (i < json.length && isNameCharacter(json[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isNameCharacter(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '_' || b == '-' || b == '.';
+    }
+
+    /**
+     * @return the names of the placeholders, in the order of their first occurrence
+     */
+    public Set<String> getPlaceholderNames() {
+        return placeholderNames;
+    }
+
+    /**
+     * Renders the JSON of a message, substituting the placeholders by the given values.
+     *
+     * @param values the values by placeholder name, converted with {@link String#valueOf(Object)}
+     * @return the UTF-8 encoded JSON of the message
+     * @throws IllegalArgumentException if a placeholder has no value
+     */
+    public byte[] render(Map<String, ?> values) {
+        final Encoder encoder = new Encoder(constantLength + 16 * placeholders.length);
+        try {
+            writeTo(values, encoder);
+        } catch (IOException e) {
+            // not thrown by the encoder
+            throw new IllegalStateException(e);
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Renders the JSON of a message to the given stream. The constant segments and the escaped values are written
+     * straight to the stream, the values byte by byte, so the stream should be buffered. Nothing is written if a
+     * placeholder has no value.
+     *
+     * @param values the values by placeholder name, converted with {@link String#valueOf(Object)}
+     * @param out the stream to write to, which is not closed
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if a placeholder has no value
+     * @see #render(Map)
+     */
+    public void writeTo(Map<String, ?> values, OutputStream out) throws IOException {
+        for (String placeholder : placeholders) {
+            if (values.get(placeholder) == null) {
+                throw new IllegalArgumentException("No value for placeholder '" + placeholder + "'");
+            }
+        }
+        for (int i = 0; i < placeholders.length; i++) {
+            out.write(segments[i]);
+            writeEscaped(String.valueOf(values.get(placeholders[i])), out);
+        }
+        out.write(segments[placeholders.length]);
+    }
+
+    /**
+     * Writes the given string as the content of a JSON string in UTF-8, escaped the same way as by {@link JsonUtils}.
+     */
+    private static void writeEscaped(String value, OutputStream out) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                }
+                out.write(c);
+            } else if (c < 0x20) {
+                writeControl(c, out);
+            } else if (c < 0x800) {
+                out.write(0xc0 | c >> 6);
+                out.write(0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // escaped like Jackson does, which also keeps lone surrogates valid
+                writeUnicodeEscape(c, out);
+            } else {
+                out.write(0xe0 | c >> 12);
+                out.write(0x80 | c >> 6 & 0x3f);
+                out.write(0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    private static void writeControl(char c, OutputStream out) throws IOException {
+        switch (c) {
+            case '\b':
+                writeShortEscape('b', out);
+                break;
+            case '\f':
+                writeShortEscape('f', out);
+                break;
+            case '\n':
+                writeShortEscape('n', out);
+                break;
+            case '\r':
+                writeShortEscape('r', out);
+                break;
+            case '\t':
+                writeShortEscape('t', out);
+                break;
+            default:
+                writeUnicodeEscape(c, out);
+        }
+    }
+
+    private static void writeShortEscape(char escape, OutputStream out) throws IOException {
+        out.write('\\');
+        out.write(escape);
+    }
+
+    private static void writeUnicodeEscape(char c, OutputStream out) throws IOException {
+        out.write('\\');
+        out.write('u');
+        out.write(HEX[c >> 12 & 0xf]);
+        out.write(HEX[c >> 8 & 0xf]);
+        out.write(HEX[c >> 4 & 0xf]);
+        out.write(HEX[c & 0xf]);
+    }
+
+    /**
+     * A growable byte buffer, which unlike {@link java.io.ByteArrayOutputStream} is neither synchronized nor copied
+     * if it was sized exactly.
+     */
+    private static final class Encoder extends OutputStream {
+
+        private byte[] buffer;
+        private int size;
+
+        private Encoder(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            if (size == buffer.length) {
+                grow(1);
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (size + len > buffer.length) {
+                grow(len);
+            }
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        private void grow(int additional) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+
+        private byte[] toByteArray() {
+            return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+}
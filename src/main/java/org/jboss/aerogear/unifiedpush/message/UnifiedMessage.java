@@ -17,13 +17,17 @@
 
 package org.jboss.aerogear.unifiedpush.message;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.jboss.aerogear.unifiedpush.message.apns.APNs;
+import org.jboss.aerogear.unifiedpush.utils.JsonUtils;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
 
 /**
  * A UnifiedMessage represents a message in the format expected from the Unified Push Server.
@@ -49,10 +53,12 @@ import org.jboss.aerogear.unifiedpush.message.apns.APNs;
  */
 public class UnifiedMessage {
 
-    private final UnifiedPushMessage unifiedPushMessage = new UnifiedPushMessage();
     private final MessageBuilder message;
     private final CriteriaBuilder criteria;
     private final ConfigBuilder config;
+    // only set for snapshots, which keep nothing but their JSON
+    private final byte[] json;
+    private final RequestBody jsonBody;
 
     public static MessageBuilder withMessage() {
         return new Builder().message();
@@ -524,22 +530,163 @@ public class UnifiedMessage {
         criteria = builder.criteriaBuilder;
         config = builder.configBuilder;
         message = builder.messageBuilder;
+        json = null;
+        jsonBody = null;
     }
 
+    private UnifiedMessage(byte[] json) {
+        criteria = null;
+        config = null;
+        message = null;
+        this.json = json;
+        jsonBody = RequestBody.of(json);
+    }
+
+    /**
+     * Returns an immutable snapshot of this message. The snapshot holds the serialized JSON of the message, which is
+     * computed once, here, and then reused by every send of the snapshot, including retries, broadcasts and resends.
+     * Later changes through the builders of this message do not affect the snapshot, and a snapshot can be shared
+     * between threads.
+     *
+     * @return a snapshot of this message, or this message if it is a snapshot already
+     * @throws IllegalStateException if the message can not be serialized
+     */
+    public UnifiedMessage snapshot() {
+        if (json != null) {
+            return this;
+        }
+        try {
+            return new UnifiedMessage(JsonUtils.toJsonBytes(this));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not serialize the message", e);
+        }
+    }
+
+    /**
+     * Splits this message into snapshots with the same content, each sent to a disjoint shard of the aliases and of
+     * the variants of its criteria, so a message targeting a huge number of aliases does not become a single request
+     * the Push Server may reject. If both the aliases and the variants are split, there is a message for every alias
+     * shard and variant shard, so every alias is still targeted in every variant.
+     *
+     * @param maxAliases the maximum number of aliases of a message, or 0 to not split them
+     * @param maxVariants the maximum number of variants of a message, or 0 to not split them
+     * @return the snapshots of the shards, or a list holding only this message if it does not exceed the limits
+     * @throws IllegalStateException if the shards can not be serialized
+     */
+    public List<UnifiedMessage> shard(int maxAliases, int maxVariants) {
+        final UnifiedPushMessage unifiedPushMessage = getObject();
+        final Criteria criteria = unifiedPushMessage.getCriteria();
+        if (criteria == null) {
+            return Collections.singletonList(this);
+        }
+        final List<List<String>> aliasShards = partition(criteria.getAliases(), maxAliases);
+        final List<List<String>> variantShards = partition(criteria.getVariants(), maxVariants);
+        if (aliasShards.size() == 1 && variantShards.size() == 1) {
+            return Collections.singletonList(this);
+        }
+
+        final List<UnifiedMessage> shards = new ArrayList<>(aliasShards.size() * variantShards.size());
+        try {
+            for (List<String> aliases : aliasShards) {
+                for (List<String> variants : variantShards) {
+                    final Criteria shardCriteria = new Criteria();
+                    shardCriteria.setAliases(aliases);
+                    shardCriteria.setVariants(variants);
+                    shardCriteria.setCategories(criteria.getCategories());
+                    shardCriteria.setDeviceTypes(criteria.getDeviceTypes());
+                    // the model is a new instance, replacing its criteria does not affect this message
+                    unifiedPushMessage.setCriteria(shardCriteria);
+                    shards.add(new UnifiedMessage(JsonUtils.toJsonBytes(unifiedPushMessage)));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not serialize the message", e);
+        }
+        return shards;
+    }
+
+    private static List<List<String>> partition(List<String> values, int max) {
+        if (values == null || max <= 0 || values.size() <= max) {
+            return Collections.singletonList(values);
+        }
+        final List<List<String>> partitions = new ArrayList<>((values.size() + max - 1) / max);
+        for (int from = 0; from < values.size(); from += max) {
+            partitions.add(values.subList(from, Math.min(from + max, values.size())));
+        }
+        return partitions;
+    }
+
+    /**
+     * @return {@code true} if this message is an immutable snapshot
+     * @see #snapshot()
+     */
+    public boolean isSnapshot() {
+        return json != null;
+    }
+
+    /**
+     * Returns a copy of the serialized JSON of a snapshot. Use {@link #getJsonBody()} to write it without copying.
+     *
+     * @return the UTF-8 encoded JSON, or {@code null} if this message is not a snapshot
+     */
+    public byte[] getJsonBytes() {
+        return json == null ? null : json.clone();
+    }
+
+    /**
+     * Returns the serialized JSON of a snapshot as a request body of known length, which writes the JSON without
+     * copying it. The body is shared by every send of the snapshot.
+     *
+     * @return the {@link RequestBody} of the UTF-8 encoded JSON, or {@code null} if this message is not a snapshot
+     */
+    public RequestBody getJsonBody() {
+        return jsonBody;
+    }
+
+    /**
+     * @return the message builder
+     * @throws IllegalStateException if this message is a snapshot, which is read through {@link #getObject()}
+     */
     public MessageBuilder getMessage() {
+        checkNotSnapshot();
         return message;
     }
 
+    /**
+     * @return the criteria builder
+     * @throws IllegalStateException if this message is a snapshot, which is read through {@link #getObject()}
+     */
     public CriteriaBuilder getCriteria() {
+        checkNotSnapshot();
         return criteria;
-
     }
 
+    /**
+     * @return the config builder
+     * @throws IllegalStateException if this message is a snapshot, which is read through {@link #getObject()}
+     */
     public ConfigBuilder getConfig() {
+        checkNotSnapshot();
         return config;
     }
 
+    private void checkNotSnapshot() {
+        if (json != null) {
+            throw new IllegalStateException("A snapshot can not be changed, use getObject() to read it");
+        }
+    }
+
+    /**
+     * Creates the message model sent to the Push Server. Every call returns a new instance, so calls from several
+     * threads do not interfere.
+     *
+     * @return the {@link UnifiedPushMessage}, a copy for a snapshot
+     */
     public UnifiedPushMessage getObject() {
+        if (json != null) {
+            return parse();
+        }
+        final UnifiedPushMessage unifiedPushMessage = new UnifiedPushMessage();
         if (message != null) {
             unifiedPushMessage.setMessage(message.getObject());
         }
@@ -551,4 +698,12 @@ public class UnifiedMessage {
         }
         return unifiedPushMessage;
     }
+
+    private UnifiedPushMessage parse() {
+        try {
+            return JsonUtils.fromJsonBytes(json);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not parse the message snapshot", e);
+        }
+    }
 }
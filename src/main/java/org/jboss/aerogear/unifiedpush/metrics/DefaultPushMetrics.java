@@ -0,0 +1,217 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+
+/**
+ * Dependency-free {@link PushMetrics} keeping lock-free counters and {@link LatencyHistogram}s in memory, e.g. to be
+ * polled and exported by the application:
+ *
+ * <pre>
+ * {@code
+ *     DefaultPushMetrics metrics = new DefaultPushMetrics();
+ *     PushSender sender = DefaultPushSender.withRootServerURL("http://localhost:8080/ag-push")
+ *             .metrics(metrics)
+ *             ...
+ *     LatencyHistogram.Snapshot latency = metrics.getRequestLatency().snapshot();
+ *     log.info("p50={}ns p99={}ns p999={}ns", latency.getP50(), latency.getP99(), latency.getP999());
+ * }
+ * </pre>
+ */
+public class DefaultPushMetrics implements PushMetrics {
+
+    private static final int MAX_STATUS_CODE = 599;
+
+    private final LatencyHistogram serializationTime = new LatencyHistogram();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    private final LongAdder serializedMessages = new LongAdder();
+    private final LongAdder serializedBytes = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder droppedDuplicates = new LongAdder();
+    private final AtomicLongArray statusCodes = new AtomicLongArray(MAX_STATUS_CODE + 1);
+
+    @Override
+    public void serialized(long durationNanos, int messages, long bytes) {
+        serializationTime.record(durationNanos);
+        serializedMessages.add(messages);
+        serializedBytes.add(bytes);
+    }
+
+    @Override
+    public void connected(String url, long durationNanos) {
+        connectTime.record(durationNanos);
+    }
+
+    @Override
+    public void firstByteReceived(String url, long durationNanos) {
+        timeToFirstByte.record(durationNanos);
+    }
+
+    @Override
+    public void responseReceived(String url, int statusCode, long durationNanos, long requestBytes) {
+        requestLatency.record(durationNanos);
+        requests.increment();
+        if (requestBytes > 0) {
+            this.requestBytes.add(requestBytes);
+        }
+        if (statusCode >= 0 && statusCode <= MAX_STATUS_CODE) {
+            statusCodes.incrementAndGet(statusCode);
+        }
+    }
+
+    @Override
+    public void requestFailed(String url, PushSenderException failure, long durationNanos) {
+        requestLatency.record(durationNanos);
+        requests.increment();
+        failedRequests.increment();
+    }
+
+    @Override
+    public void retried(int attempt, long delayMillis, PushSenderException failure) {
+        retries.increment();
+    }
+
+    @Override
+    public void redirected(String url, int statusCode, String location) {
+        redirects.increment();
+    }
+
+    @Override
+    public void duplicateDropped() {
+        droppedDuplicates.increment();
+    }
+
+    /**
+     * @return the serialization times in ns
+     */
+    public LatencyHistogram getSerializationTime() {
+        return serializationTime;
+    }
+
+    /**
+     * @return the connect times in ns
+     */
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * @return the times to the first byte of the responses in ns
+     */
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * @return the total times of the requests in ns, including the failed ones
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * @return the number of messages serialized upfront
+     */
+    public long getSerializedMessages() {
+        return serializedMessages.sum();
+    }
+
+    /**
+     * @return the number of bytes serialized upfront
+     */
+    public long getSerializedBytes() {
+        return serializedBytes.sum();
+    }
+
+    /**
+     * @return the number of requests, including the failed ones
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of request body bytes sent
+     */
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    /**
+     * @return the number of requests failed without a response
+     */
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    /**
+     * @return the number of retries
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the number of redirects followed
+     */
+    public long getRedirects() {
+        return redirects.sum();
+    }
+
+    /**
+     * @return the number of messages dropped as duplicates
+     */
+    public long getDroppedDuplicates() {
+        return droppedDuplicates.sum();
+    }
+
+    /**
+     * @param statusCode an HTTP status code
+     * @return the number of responses with the given status code
+     */
+    public long getStatusCodeCount(int statusCode) {
+        return statusCode >= 0 && statusCode <= MAX_STATUS_CODE ? statusCodes.get(statusCode) : 0;
+    }
+
+    /**
+     * @return the number of responses per status code, for the status codes received at least once
+     */
+    public Map<Integer, Long> getStatusCodeCounts() {
+        final Map<Integer, Long> counts = new TreeMap<>();
+        for (int statusCode = 0; statusCode <= MAX_STATUS_CODE; statusCode++) {
+            final long count = statusCodes.get(statusCode);
+            if (count > 0) {
+                counts.put(statusCode, count);
+            }
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+}
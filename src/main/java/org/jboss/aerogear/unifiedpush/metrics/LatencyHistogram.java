@@ -0,0 +1,179 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of positive values, e.g. latencies in nanoseconds, with log-linear buckets: every power of two
+ * is divided into {@value #SUB_BUCKETS} linear buckets, so a recorded value is reported with a relative error of at
+ * most 1/{@value #SUB_BUCKETS} (about 3%), from a single nanosecond up to several days, in a fixed amount of memory.
+ * <p>
+ * Recording is a single atomic increment and may happen concurrently with {@link #snapshot()}, so a snapshot is
+ * consistent only to within the values recorded while it is taken.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as zero.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        final long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        long current;
+        while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+            // retry, another thread recorded a larger value concurrently
+        }
+    }
+
+    /**
+     * @return an immutable view of the values recorded so far
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Values below {@value #SUB_BUCKETS} have a bucket each; above, the bucket is given by the position of the highest
+     * bit (the power of two) and the {@value #SUB_BUCKET_BITS} bits following it.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the highest value falling into the given bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * The values recorded by a {@link LatencyHistogram} up to a point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean of the recorded values, or 0 if none was recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return the largest recorded value
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return the value below or at which the given percentage of the recorded values fall, or 0 if none was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @return the median
+         */
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        /**
+         * @return the 99th percentile
+         */
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        /**
+         * @return the 99.9th percentile
+         */
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) getMean() + ", p50=" + getP50() + ", p99=" + getP99()
+                    + ", p999=" + getP999() + ", max=" + max;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.metrics;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+
+/**
+ * Listener receiving timing and size events of the push delivery requests of a sender, to feed a monitoring system.
+ * All methods do nothing by default, implementations override the events they are interested in.
+ * <p>
+ * The methods are called on the sending threads, so implementations must be thread-safe, fast and must not throw.
+ * Durations are measured with {@link System#nanoTime()}.
+ *
+ * @see DefaultPushMetrics
+ */
+public interface PushMetrics {
+
+    /**
+     * Does not record anything.
+     */
+    PushMetrics NOOP = new PushMetrics() {
+    };
+
+    /**
+     * A message or a chunk of a batch was serialized before being sent. Batches sent without a size limit are
+     * serialized while being written to the request and are not reported.
+     *
+     * @param durationNanos the serialization time
+     * @param messages the number of messages serialized
+     * @param bytes the size of the serialized JSON
+     */
+    default void serialized(long durationNanos, int messages, long bytes) {
+    }
+
+    /**
+     * The connection to the Push Server was established, or taken from the keep-alive cache.
+     *
+     * @param url the requested URL
+     * @param durationNanos the connect time
+     */
+    default void connected(String url, long durationNanos) {
+    }
+
+    /**
+     * The status line of the response was received.
+     *
+     * @param url the requested URL
+     * @param durationNanos the time since the request was started
+     */
+    default void firstByteReceived(String url, long durationNanos) {
+    }
+
+    /**
+     * A request completed with a response, whatever its status code.
+     *
+     * @param url the requested URL
+     * @param statusCode the status code of the response
+     * @param durationNanos the total time of the request, until the response was consumed
+     * @param requestBytes the size of the request body
+     */
+    default void responseReceived(String url, int statusCode, long durationNanos, long requestBytes) {
+    }
+
+    /**
+     * A request failed without a response, e.g. because the connection could not be established or timed out.
+     *
+     * @param url the requested URL
+     * @param failure the failure
+     * @param durationNanos the time until the request failed
+     */
+    default void requestFailed(String url, PushSenderException failure, long durationNanos) {
+    }
+
+    /**
+     * A failed request is going to be sent again.
+     *
+     * @param attempt the number of the attempt that failed, starting with 1
+     * @param delayMillis the delay before the next attempt
+     * @param failure the failure of the attempt
+     */
+    default void retried(int attempt, long delayMillis, PushSenderException failure) {
+    }
+
+    /**
+     * The Push Server redirected a request.
+     *
+     * @param url the requested URL
+     * @param statusCode the redirect status code
+     * @param location the redirect target
+     */
+    default void redirected(String url, int statusCode, String location) {
+    }
+
+    /**
+     * A message was dropped because the same message was sent shortly before.
+     *
+     * @see org.jboss.aerogear.unifiedpush.DuplicateFilter
+     */
+    default void duplicateDropped() {
+    }
+}
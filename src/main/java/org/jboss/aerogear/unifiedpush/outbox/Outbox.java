@@ -0,0 +1,634 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A durable outbox keeping the serialized payloads of pushes on disk until they were delivered.
+ * <p>
+ * Payloads are appended to a write-ahead log made of memory-mapped segment files. Every appended payload gets a
+ * sequence number, which is {@link #acknowledge(long) acknowledged} once the Push Server accepted it. Every segment
+ * tracks which of its payloads were acknowledged and stores them next to it, and a segment is deleted as soon as all
+ * of its payloads were acknowledged, even if a payload of an older segment is still pending. The checkpoint, the
+ * sequence number below which every payload was acknowledged, is stored next to the segments as well. When the outbox
+ * is opened again, e.g. after a crash, the payloads that were not acknowledged are handed out again by
+ * {@link #forEachPending(Consumer)}. Payloads acknowledged after the last sync may be handed out again, so delivery is
+ * at-least-once.
+ * <p>
+ * A payload written to the mapped segment survives a crash of the JVM right away. To also survive a crash of the
+ * operating system, the segments are flushed to the disk by a background thread every {@code syncInterval}, so a
+ * single {@code fsync} covers all payloads appended in the meantime. With {@link Builder#awaitSync(boolean)},
+ * {@link #append(byte[])} only returns once its payload was flushed.
+ * <p>
+ * The mapping of a deleted segment is released right away, unless its payloads are being handed out by
+ * {@link #forEachPending(Consumer)} at that time; it is then released by a later sync, or by the garbage collector.
+ * <p>
+ * To use it with a sender:
+ *
+ * <pre>
+ * {@code
+ *     Outbox outbox = Outbox.withDirectory(Paths.get("/var/lib/myapp/push-outbox")).build();
+ *     DefaultPushSender defaultPushSender = DefaultPushSender.withConfig("pushConfig.json")
+ *             .outbox(outbox)
+ *             .build();
+ *     defaultPushSender.replayOutbox();
+ * }
+ * </pre>
+ */
+public class Outbox implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 10;
+
+    private static final Logger logger = Logger.getLogger(Outbox.class.getName());
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean awaitSync;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // by first sequence number, changed while holding the append lock
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private long nextSequence;
+    private boolean closed;
+
+    // guards the acknowledgements of the segments as well
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private volatile long checkpoint;
+    private long storedCheckpoint;
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // held for reading while the mapped segments are read, so they are only unmapped once no one reads them
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+    // deleted segments still to be unmapped, guarded by the flush lock
+    private final List<Segment> unmappable = new ArrayList<>();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncedCondition = syncLock.newCondition();
+    private long syncedSequence = -1;
+    private final ScheduledExecutorService syncer;
+
+    private Outbox(Builder builder) throws IOException {
+        directory = builder.directory;
+        segmentSize = builder.segmentSize;
+        awaitSync = builder.awaitSync;
+
+        Files.createDirectories(directory);
+        checkpoint = storedCheckpoint = readCheckpoint();
+        recover();
+        advanceCheckpoint();
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "unifiedpush-outbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::syncQuietly, builder.syncIntervalMillis, builder.syncIntervalMillis, TimeUnit.MILLISECONDS);
+        syncer = executor;
+    }
+
+    /**
+     * Starts a {@link Builder} for an outbox stored in the given directory, which is created if needed.
+     * The directory must not be shared by several outboxes.
+     *
+     * @param directory the directory holding the segment and checkpoint files
+     * @return a {@link Builder} instance
+     */
+    public static Builder withDirectory(Path directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * Builder of {@link Outbox}.
+     */
+    public static class Builder {
+
+        private final Path directory;
+        private int segmentSize = DEFAULT_SEGMENT_SIZE;
+        private long syncIntervalMillis = DEFAULT_SYNC_INTERVAL;
+        private boolean awaitSync;
+
+        private Builder(Path directory) {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory can not be null");
+            }
+            this.directory = directory;
+        }
+
+        /**
+         * The size of a segment file, which is mapped into memory as a whole. A payload larger than a segment gets a
+         * segment of its own. Defaults to {@value Outbox#DEFAULT_SEGMENT_SIZE} bytes.
+         *
+         * @param segmentSize the size of a segment in bytes
+         * @return the current {@link Builder} instance
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < Segment.HEADER_SIZE + 1) {
+                throw new IllegalArgumentException("segmentSize must be greater than " + Segment.HEADER_SIZE);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * The time between two flushes of the appended payloads to the disk, which also stores the checkpoint and
+         * deletes the acknowledged segments. Defaults to {@value Outbox#DEFAULT_SYNC_INTERVAL} ms.
+         *
+         * @param syncIntervalMillis the interval in ms
+         * @return the current {@link Builder} instance
+         */
+        public Builder syncInterval(long syncIntervalMillis) {
+            if (syncIntervalMillis < 1) {
+                throw new IllegalArgumentException("syncInterval must be greater than zero");
+            }
+            this.syncIntervalMillis = syncIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Whether {@link #append(byte[])} waits for the next flush, so an appended payload also survives a crash of
+         * the operating system, at the cost of up to one sync interval of latency. Disabled by default.
+         *
+         * @param awaitSync {@code true} to wait for the flush
+         * @return the current {@link Builder} instance
+         */
+        public Builder awaitSync(boolean awaitSync) {
+            this.awaitSync = awaitSync;
+            return this;
+        }
+
+        /**
+         * Opens the outbox, recovering the payloads stored by a previous instance.
+         *
+         * @return the opened {@link Outbox}
+         * @throws IOException if the files can not be read or created
+         */
+        public Outbox build() throws IOException {
+            return new Outbox(this);
+        }
+    }
+
+    /**
+     * Appends a payload to the log.
+     *
+     * @param payload the serialized message, not empty
+     * @return the sequence number to {@link #acknowledge(long)} or {@link #release(long)} the payload with
+     * @throws IOException if the payload can not be written
+     */
+    public long append(byte[] payload) throws IOException {
+        if (payload == null || payload.length == 0) {
+            throw new IllegalArgumentException("payload can not be empty");
+        }
+        final long sequence;
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The outbox has been closed");
+            }
+            if (!active.hasRoom(payload.length)) {
+                roll(payload.length);
+            }
+            sequence = nextSequence++;
+            inFlight.add(sequence);
+            active.append(sequence, payload);
+        } finally {
+            appendLock.unlock();
+        }
+
+        if (awaitSync) {
+            awaitSynced(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Marks a payload as delivered, so it is not handed out again.
+     *
+     * @param sequence the sequence number returned by {@link #append(byte[])} or of a pending {@link Entry}
+     */
+    public void acknowledge(long sequence) {
+        inFlight.remove(sequence);
+        checkpointLock.lock();
+        try {
+            final Map.Entry<Long, Segment> segment = segments.floorEntry(sequence);
+            // a segment that is gone was fully acknowledged
+            if (segment != null && segment.getValue().acknowledge(sequence) && sequence == checkpoint) {
+                advanceCheckpoint();
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the checkpoint past the acknowledged payloads following it, skipping the segments that were deleted.
+     */
+    private void advanceCheckpoint() {
+        checkpointLock.lock();
+        try {
+            long next = checkpoint;
+            while (true) {
+                final Map.Entry<Long, Segment> entry = segments.floorEntry(next);
+                if (entry == null || next > entry.getValue().getLastSequence()) {
+                    // the next payload was either not appended yet, or in a deleted segment
+                    final Long following = segments.higherKey(next);
+                    if (following == null) {
+                        break;
+                    }
+                    next = following;
+                    continue;
+                }
+                final Segment segment = entry.getValue();
+                while (next <= segment.getLastSequence() && segment.isAcknowledged(next)) {
+                    next++;
+                }
+                if (next <= segment.getLastSequence()) {
+                    break;
+                }
+            }
+            checkpoint = next;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private boolean isAcknowledged(Segment segment, long sequence) {
+        checkpointLock.lock();
+        try {
+            return segment.isAcknowledged(sequence);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Marks a payload as not delivered, e.g. because the Push Server is unreachable, so it is handed out again by the
+     * next {@link #forEachPending(Consumer)}.
+     *
+     * @param sequence the sequence number returned by {@link #append(byte[])} or of a pending {@link Entry}
+     */
+    public void release(long sequence) {
+        inFlight.remove(sequence);
+    }
+
+    /**
+     * Hands out the payloads that were neither acknowledged nor are being sent, in the order they were appended.
+     * Each of them is marked as being sent before it is passed to the given consumer, which has to
+     * {@link #acknowledge(long)} or {@link #release(long)} it eventually. The payloads are read from the segments one
+     * after another, so they are not held in memory all at once.
+     *
+     * @param consumer receives the pending entries
+     * @return the number of entries handed out
+     */
+    public long forEachPending(Consumer<Entry> consumer) {
+        final List<Segment> snapshot;
+        final long end;
+        appendLock.lock();
+        try {
+            snapshot = new ArrayList<>(segments.values());
+            end = nextSequence;
+        } finally {
+            appendLock.unlock();
+        }
+
+        long count = 0;
+        mappingLock.readLock().lock();
+        try {
+            for (Segment segment : snapshot) {
+                if (segment.isEmpty() || segment.getLastSequence() < checkpoint || segment.isFullyAcknowledged()) {
+                    continue;
+                }
+                final ByteBuffer records = segment.read();
+                while (records.remaining() >= Segment.HEADER_SIZE) {
+                    final int length = records.getInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    records.getInt();
+                    final long sequence = records.getLong();
+                    if (sequence >= end) {
+                        break;
+                    }
+                    if (sequence < checkpoint || isAcknowledged(segment, sequence) || !inFlight.add(sequence)) {
+                        ((Buffer) records).position(records.position() + length);
+                        continue;
+                    }
+                    final byte[] payload = new byte[length];
+                    records.get(payload);
+                    consumer.accept(new Entry(sequence, payload));
+                    count++;
+                }
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sequence number below which every payload was acknowledged
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Flushes the appended payloads and acknowledgements to the disk, stores the checkpoint and deletes the segments
+     * holding only acknowledged payloads. Called periodically by the background thread, and by {@link #close()}.
+     *
+     * @throws IOException if the files can not be written or deleted
+     */
+    public void sync() throws IOException {
+        flushLock.lock();
+        try {
+            flush();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flush() throws IOException {
+        final List<Segment> dirty = new ArrayList<>();
+        final long appended;
+        appendLock.lock();
+        try {
+            appended = nextSequence - 1;
+            for (Segment segment : segments.values()) {
+                if (segment.isDirty()) {
+                    dirty.add(segment);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+
+        for (Segment segment : dirty) {
+            segment.force();
+        }
+        syncLock.lock();
+        try {
+            syncedSequence = Math.max(syncedSequence, appended);
+            syncedCondition.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+
+        final List<Segment> acknowledging = new ArrayList<>();
+        final List<BitSet> acknowledgements = new ArrayList<>();
+        checkpointLock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment.hasUnsyncedAcknowledgements()) {
+                    acknowledging.add(segment);
+                    acknowledgements.add(segment.takeUnsyncedAcknowledgements());
+                }
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+        for (int i = 0; i < acknowledging.size(); i++) {
+            acknowledging.get(i).writeAcknowledged(acknowledgements.get(i));
+        }
+
+        final long current = checkpoint;
+        if (current != storedCheckpoint) {
+            writeCheckpoint(current);
+            storedCheckpoint = current;
+        }
+        compact(current);
+    }
+
+    /**
+     * Stops the background thread, flushes the appended payloads and closes the segment files. Payloads that were not
+     * acknowledged yet are handed out again when the outbox is opened the next time.
+     */
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sync();
+        } finally {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not sync the outbox in " + directory, e);
+        }
+    }
+
+    private void awaitSynced(long sequence) throws IOException {
+        syncLock.lock();
+        try {
+            while (syncedSequence < sequence) {
+                syncedCondition.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the outbox to be synced", e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void roll(int payloadLength) throws IOException {
+        final int size = Math.max(segmentSize, Segment.HEADER_SIZE + payloadLength);
+        active = Segment.create(directory, nextSequence, size);
+        segments.put(active.getFirstSequence(), active);
+    }
+
+    /**
+     * Opens the existing segments, stopping at the first incomplete record, which was being written during a crash.
+     */
+    private void recover() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + Segment.SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        nextSequence = checkpoint;
+        for (Path file : files) {
+            final Segment segment = Segment.open(file);
+            if (!segment.isEmpty() && segment.getLastSequence() < checkpoint) {
+                segment.delete();
+                segment.unmap();
+                continue;
+            }
+            segments.put(segment.getFirstSequence(), segment);
+            if (!segment.isEmpty()) {
+                nextSequence = Math.max(nextSequence, segment.getLastSequence() + 1);
+            }
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            active = segments.lastEntry().getValue();
+            active.truncateAfterLastRecord();
+        }
+
+        // left over by segments deleted during a crash
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + Segment.ACKNOWLEDGED_SUFFIX)) {
+            for (Path file : stream) {
+                final String name = file.getFileName().toString();
+                final Path segment = file.resolveSibling(name.substring(0, name.length() - Segment.ACKNOWLEDGED_SUFFIX.length()) + Segment.SUFFIX);
+                if (!Files.exists(segment)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private void compact(long current) throws IOException {
+        final List<Segment> deletable = new ArrayList<>();
+        appendLock.lock();
+        checkpointLock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && (segment.isEmpty() || segment.getLastSequence() < current || segment.isFullyAcknowledged())) {
+                    deletable.add(segment);
+                }
+            }
+            for (Segment segment : deletable) {
+                segments.remove(segment.getFirstSequence());
+            }
+        } finally {
+            checkpointLock.unlock();
+            appendLock.unlock();
+        }
+        for (Segment segment : deletable) {
+            segment.delete();
+            unmappable.add(segment);
+        }
+        // never waits for the consumers of forEachPending, which may even sync from within
+        if (!unmappable.isEmpty() && mappingLock.writeLock().tryLock()) {
+            try {
+                for (Segment segment : unmappable) {
+                    segment.unmap();
+                }
+                unmappable.clear();
+            } finally {
+                mappingLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        final Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        final byte[] content = Files.readAllBytes(file);
+        if (content.length != Long.BYTES) {
+            throw new IOException("Corrupt outbox checkpoint " + file);
+        }
+        return ByteBuffer.wrap(content).getLong();
+    }
+
+    private void writeCheckpoint(long value) throws IOException {
+        final Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer content = ByteBuffer.allocate(Long.BYTES).putLong(value);
+            ((Buffer) content).flip();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A payload handed out by {@link #forEachPending(Consumer)}.
+     */
+    public static final class Entry {
+
+        private final long sequence;
+        private final byte[] payload;
+
+        Entry(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the sequence number to acknowledge or release the entry with
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the serialized message
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+}
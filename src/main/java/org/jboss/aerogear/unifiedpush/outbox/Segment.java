@@ -0,0 +1,350 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.outbox;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped segment file of the {@link Outbox} log.
+ * <p>
+ * A record is made of the payload length, a CRC32 checksum of the sequence number and payload, the sequence number and
+ * the payload. The length is written last, and the rest of the file is zero, so a record only becomes visible once it
+ * was fully written and a record torn by a crash fails the checksum. Appends are serialized by the {@link Outbox}.
+ * <p>
+ * The sequence numbers of a segment follow each other, starting with the one in its file name. The acknowledged ones
+ * are tracked in a bitmap, and stored in a file next to the segment as the offsets from the first sequence number, so
+ * the segment can be deleted once all of its records were acknowledged. Acknowledgements are guarded by the
+ * {@link Outbox} as well.
+ */
+final class Segment {
+
+    static final String SUFFIX = ".wal";
+    static final String ACKNOWLEDGED_SUFFIX = ".ack";
+    static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+    private static final Logger logger = Logger.getLogger(Segment.class.getName());
+    private static final Unmapper UNMAPPER = unmapper();
+
+    private final Path file;
+    private final Path acknowledgedFile;
+    private final long firstSequence;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private volatile long lastSequence = -1;
+    private volatile boolean dirty;
+
+    private final BitSet acknowledged = new BitSet();
+    private final BitSet unsyncedAcknowledged = new BitSet();
+    private int acknowledgedCount;
+
+    private Segment(Path file, long firstSequence, FileChannel channel, MappedByteBuffer buffer) {
+        this.file = file;
+        this.acknowledgedFile = acknowledgedFile(file);
+        this.firstSequence = firstSequence;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a new, empty segment whose first record will have the given sequence number.
+     */
+    static Segment create(Path directory, long firstSequence, int size) throws IOException {
+        final Path file = directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+        // left over by a segment deleted during a crash
+        Files.deleteIfExists(acknowledgedFile(file));
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new Segment(file, firstSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment, positioned after its last valid record, with the acknowledgements stored next to it.
+     */
+    static Segment open(Path file) throws IOException {
+        final String name = file.getFileName().toString();
+        final long firstSequence;
+        try {
+            firstSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected outbox segment " + file, e);
+        }
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final Segment segment;
+        try {
+            segment = new Segment(file, firstSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        segment.scan();
+        segment.readAcknowledged();
+        return segment;
+    }
+
+    /**
+     * @return the file holding the acknowledgements of the given segment file
+     */
+    static Path acknowledgedFile(Path file) {
+        final String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + ACKNOWLEDGED_SUFFIX);
+    }
+
+    boolean hasRoom(int payloadLength) {
+        return buffer.capacity() - position >= HEADER_SIZE + payloadLength;
+    }
+
+    void append(long sequence, byte[] payload) {
+        ((Buffer) buffer).position(position + Integer.BYTES);
+        buffer.putInt(checksum(sequence, payload, 0, payload.length));
+        buffer.putLong(sequence);
+        buffer.put(payload);
+        buffer.putInt(position, payload.length);
+        position = buffer.position();
+        lastSequence = sequence;
+        dirty = true;
+    }
+
+    /**
+     * @return a view of the records, whose position and limit are independent of the segment
+     */
+    ByteBuffer read() {
+        final ByteBuffer records = buffer.duplicate();
+        ((Buffer) records).clear();
+        return records;
+    }
+
+    boolean isEmpty() {
+        return lastSequence < 0;
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Marks the record with the given sequence number as acknowledged.
+     *
+     * @return {@code false} if the record is not part of this segment or was acknowledged already
+     */
+    boolean acknowledge(long sequence) {
+        if (sequence < firstSequence || sequence > lastSequence) {
+            return false;
+        }
+        final int offset = (int) (sequence - firstSequence);
+        if (acknowledged.get(offset)) {
+            return false;
+        }
+        acknowledged.set(offset);
+        unsyncedAcknowledged.set(offset);
+        acknowledgedCount++;
+        return true;
+    }
+
+    boolean isAcknowledged(long sequence) {
+        return sequence >= firstSequence && sequence <= lastSequence && acknowledged.get((int) (sequence - firstSequence));
+    }
+
+    boolean isFullyAcknowledged() {
+        return !isEmpty() && acknowledgedCount == lastSequence - firstSequence + 1;
+    }
+
+    boolean hasUnsyncedAcknowledgements() {
+        return !unsyncedAcknowledged.isEmpty();
+    }
+
+    /**
+     * @return the acknowledgements made since the last call, as offsets from the first sequence number
+     */
+    BitSet takeUnsyncedAcknowledgements() {
+        final BitSet taken = (BitSet) unsyncedAcknowledged.clone();
+        unsyncedAcknowledged.clear();
+        return taken;
+    }
+
+    /**
+     * Appends the given acknowledgements to the file next to the segment and flushes it to the disk.
+     */
+    void writeAcknowledged(BitSet offsets) throws IOException {
+        final ByteBuffer content = ByteBuffer.allocate(offsets.cardinality() * Integer.BYTES);
+        for (int offset = offsets.nextSetBit(0); offset >= 0; offset = offsets.nextSetBit(offset + 1)) {
+            content.putInt(offset);
+        }
+        ((Buffer) content).flip();
+        try (FileChannel acknowledgedChannel = FileChannel.open(acknowledgedFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (content.hasRemaining()) {
+                acknowledgedChannel.write(content);
+            }
+            acknowledgedChannel.force(false);
+        }
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void force() {
+        dirty = false;
+        buffer.force();
+    }
+
+    /**
+     * Zeroes whatever follows the last valid record, e.g. a torn record, so it is not mistaken for a record once
+     * new ones were appended in front of it.
+     */
+    void truncateAfterLastRecord() {
+        final ByteBuffer rest = read();
+        ((Buffer) rest).position(position);
+        final byte[] chunk = new byte[8192];
+        while (rest.hasRemaining()) {
+            final int start = rest.position();
+            final int length = Math.min(chunk.length, rest.remaining());
+            rest.get(chunk, 0, length);
+            // only the pages holding garbage are written
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] != 0) {
+                    ((Buffer) rest).position(start);
+                    rest.put(new byte[length]);
+                    dirty = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes and deletes the file. The mapping stays valid until {@link #unmap()} is called, or else until the buffer
+     * is garbage collected.
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(acknowledgedFile);
+    }
+
+    /**
+     * Releases the mapping of a deleted segment right away, instead of leaving the memory and the deleted file to the
+     * garbage collector. The buffer must no longer be read by anyone, as accessing an unmapped buffer crashes the JVM.
+     * If the JDK does not allow to release a mapping explicitly, it is still released once garbage collected.
+     */
+    void unmap() {
+        if (UNMAPPER == null) {
+            return;
+        }
+        try {
+            UNMAPPER.unmap(buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.FINE, "Could not unmap the outbox segment " + file + ", leaving it to the garbage collector", e);
+        }
+    }
+
+    private void readAcknowledged() throws IOException {
+        if (!Files.exists(acknowledgedFile)) {
+            return;
+        }
+        // an offset torn by a crash is ignored, the record is handed out again
+        final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(acknowledgedFile));
+        while (content.remaining() >= Integer.BYTES) {
+            acknowledge(firstSequence + content.getInt());
+        }
+        unsyncedAcknowledged.clear();
+    }
+
+    private void scan() {
+        final ByteBuffer records = read();
+        int end = 0;
+        while (records.remaining() >= HEADER_SIZE) {
+            final int length = records.getInt();
+            if (length <= 0 || length > records.remaining() - Integer.BYTES - Long.BYTES) {
+                break;
+            }
+            final int checksum = records.getInt();
+            final long sequence = records.getLong();
+            final byte[] payload = new byte[length];
+            records.get(payload);
+            if (checksum != checksum(sequence, payload, 0, length)) {
+                break;
+            }
+            lastSequence = sequence;
+            end = records.position();
+        }
+        position = end;
+    }
+
+    private static int checksum(long sequence, byte[] payload, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(sequence).array());
+        crc.update(payload, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static Unmapper unmapper() {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                // Java 8
+                final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> clean.invoke(cleaner.invoke(buffer));
+            } catch (ReflectiveOperationException | RuntimeException e8) {
+                logger.log(Level.FINE, "Outbox segments are unmapped by the garbage collector", e8);
+                return null;
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.FINE, "Outbox segments are unmapped by the garbage collector", e);
+            return null;
+        }
+    }
+
+    private interface Unmapper {
+
+        void unmap(MappedByteBuffer buffer) throws ReflectiveOperationException;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+/**
+ * The response of the Push Server to a request, limited to what the sender acts upon.
+ */
+public final class PushResponse {
+
+    private final int statusCode;
+    private final String location;
+    private final String retryAfter;
+
+    /**
+     * @param statusCode the HTTP status code
+     * @param location the value of the {@code Location} header, or {@code null}
+     * @param retryAfter the value of the {@code Retry-After} header, or {@code null}
+     */
+    public PushResponse(int statusCode, String location, String retryAfter) {
+        this.statusCode = statusCode;
+        this.location = location;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return the HTTP status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the value of the {@code Location} header, or {@code null} if there is none
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return the value of the {@code Retry-After} header, or {@code null} if there is none
+     */
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+}
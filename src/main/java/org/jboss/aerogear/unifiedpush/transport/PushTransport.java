@@ -0,0 +1,79 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.jboss.aerogear.unifiedpush.metrics.PushMetrics;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
+
+/**
+ * Performs the HTTP requests of a {@link org.jboss.aerogear.unifiedpush.DefaultPushSender}.
+ * <p>
+ * A transport only posts a request and returns the response, redirects, retries and error handling are left to the
+ * sender. The default {@link UrlConnectionTransport} is based on {@link java.net.HttpURLConnection}; on Java 11 and
+ * later, {@code HttpClientTransport} uses {@code java.net.http.HttpClient} to multiplex concurrent requests over a
+ * single HTTP/2 connection.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface PushTransport extends Closeable {
+
+    /**
+     * Posts the given body and waits for the response. The response body is discarded.
+     *
+     * @param url the URL to post to
+     * @param headers the request headers
+     * @param body the request body, which may be written more than once
+     * @param metrics receives the connect time and the time to first byte, if the transport can tell them
+     * @return the {@link PushResponse}
+     * @throws Exception if the request could not be performed
+     */
+    PushResponse post(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) throws Exception;
+
+    /**
+     * Posts the given body without waiting for the response.
+     * <p>
+     * The default implementation calls {@link #post(String, Map, RequestBody, PushMetrics)} on the calling thread,
+     * transports with a non-blocking client are expected to override it.
+     *
+     * @param url the URL to post to
+     * @param headers the request headers
+     * @param body the request body, which may be written more than once
+     * @param metrics receives the connect time and the time to first byte, if the transport can tell them
+     * @return a future completing with the {@link PushResponse}, or exceptionally if the request could not be performed
+     */
+    default CompletableFuture<PushResponse> postAsync(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) {
+        final CompletableFuture<PushResponse> response = new CompletableFuture<>();
+        try {
+            response.complete(post(url, headers, body, metrics));
+        } catch (Exception e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /**
+     * Releases the resources of the transport, e.g. its connections. Does nothing by default.
+     */
+    @Override
+    default void close() {
+        // no-op
+    }
+}
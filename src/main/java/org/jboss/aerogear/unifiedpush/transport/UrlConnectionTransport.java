@@ -0,0 +1,74 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import org.jboss.aerogear.unifiedpush.metrics.PushMetrics;
+import org.jboss.aerogear.unifiedpush.model.ProxyConfig;
+import org.jboss.aerogear.unifiedpush.model.TrustStoreConfig;
+import org.jboss.aerogear.unifiedpush.utils.ConnectionPool;
+import org.jboss.aerogear.unifiedpush.utils.HttpRequestUtil;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
+
+/**
+ * A {@link PushTransport} based on {@link HttpURLConnection}, sending each request over a persistent HTTP/1.1
+ * connection of the JDK's keep-alive cache, limited per route by a {@link ConnectionPool}.
+ */
+public class UrlConnectionTransport implements PushTransport {
+
+    private final ProxyConfig proxy;
+    private final TrustStoreConfig customTrustStore;
+    private final HttpRequestUtil.ConnectionSettings connectionSettings;
+    private final ConnectionPool connectionPool;
+
+    /**
+     * @param proxy the proxy configuration, or {@code null} to connect directly
+     * @param customTrustStore the TrustStore configuration, or {@code null} to use the default one
+     * @param connectionSettings the timeouts and connection limits
+     */
+    public UrlConnectionTransport(ProxyConfig proxy, TrustStoreConfig customTrustStore, HttpRequestUtil.ConnectionSettings connectionSettings) {
+        if (connectionSettings == null) {
+            throw new IllegalArgumentException("connectionSettings can not be null");
+        }
+        this.proxy = proxy;
+        this.customTrustStore = customTrustStore;
+        this.connectionSettings = connectionSettings;
+        this.connectionPool = new ConnectionPool(connectionSettings.getMaxConnectionsPerRoute());
+    }
+
+    @Override
+    public PushResponse post(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) throws Exception {
+        final long start = System.nanoTime();
+        HttpURLConnection httpURLConnection = null;
+        final ConnectionPool.Lease lease = connectionPool.lease(url, connectionSettings.getConnectTimeout());
+        try {
+            httpURLConnection = (HttpURLConnection) HttpRequestUtil.post(url, headers, body, proxy, customTrustStore,
+                    connectionSettings, metrics);
+
+            final int statusCode = httpURLConnection.getResponseCode();
+            metrics.firstByteReceived(url, System.nanoTime() - start);
+            return new PushResponse(statusCode, httpURLConnection.getHeaderField("Location"),
+                    httpURLConnection.getHeaderField("Retry-After"));
+        } finally {
+            // consume the response, so the connection can be reused for the next push
+            connectionPool.release(httpURLConnection);
+            lease.close();
+        }
+    }
+}
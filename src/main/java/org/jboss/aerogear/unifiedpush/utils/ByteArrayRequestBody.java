@@ -0,0 +1,43 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link RequestBody} of a payload that is encoded already. The payload is not copied, and {@link JsonUtils} reads
+ * it back from the bodies holding the JSON of message snapshots.
+ */
+final class ByteArrayRequestBody implements RequestBody {
+
+    final byte[] payload;
+
+    ByteArrayRequestBody(byte[] payload) {
+        this.payload = payload;
+    }
+
+    @Override
+    public long getContentLength() {
+        return payload.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(payload);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of persistent HTTP connections owned by a sender.
+ * <p>
+ * The sockets themselves are kept alive by the keep-alive cache of {@link HttpURLConnection}, which reuses a socket
+ * once the response body was fully consumed and the stream closed (see {@link #release(URLConnection)}). On top of that,
+ * the pool limits the number of connections that can be in use per route (scheme, host and port), so that concurrent
+ * sends queue for a warm connection instead of opening new ones, which would not be kept alive once the keep-alive
+ * cache is full (see the {@code http.maxConnections} system property).
+ */
+public class ConnectionPool {
+
+    private static final Lease UNBOUNDED_LEASE = new Lease(null);
+
+    private final int maxConnectionsPerRoute;
+    private final ConcurrentMap<String, Semaphore> routes = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConnectionsPerRoute maximum number of connections in use per route, or {@code null} (or a value smaller
+     *                               than one) to not limit them.
+     */
+    public ConnectionPool(Integer maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute == null ? 0 : maxConnectionsPerRoute;
+    }
+
+    /**
+     * Leases a connection for the route of the given URL, waiting if all connections of that route are in use.
+     *
+     * @param url the URL about to be requested.
+     * @param timeoutMillis the maximum time to wait in ms, or {@code null} to wait indefinitely.
+     * @return a {@link Lease} that must be closed once the response was consumed.
+     * @throws IOException if no connection became available in time, or the thread was interrupted.
+     */
+    public Lease lease(String url, Integer timeoutMillis) throws IOException {
+        if (maxConnectionsPerRoute < 1) {
+            return UNBOUNDED_LEASE;
+        }
+
+        final String route = route(new URL(url));
+        final Semaphore permits = routes.computeIfAbsent(route, r -> new Semaphore(maxConnectionsPerRoute, true));
+        try {
+            if (timeoutMillis == null) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a pooled connection to " + route);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a pooled connection to " + route);
+        }
+        return new Lease(permits);
+    }
+
+    /**
+     * Consumes and closes the response body, so the underlying socket is handed back to the keep-alive cache.
+     * If the response can not be consumed, the connection is disconnected instead.
+     *
+     * @param connection the connection whose response has been processed, may be {@code null}.
+     */
+    public void release(URLConnection connection) {
+        if (!(connection instanceof HttpURLConnection)) {
+            return;
+        }
+        final HttpURLConnection httpURLConnection = (HttpURLConnection) connection;
+        InputStream in = null;
+        try {
+            in = httpURLConnection.getResponseCode() >= 400 ? httpURLConnection.getErrorStream() : httpURLConnection.getInputStream();
+            if (in != null) {
+                final byte[] buffer = new byte[512];
+                while (in.read(buffer) != -1) {
+                    // discard, the Push Server response body is not used
+                }
+            }
+        } catch (IOException e) {
+            httpURLConnection.disconnect();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    httpURLConnection.disconnect();
+                }
+            }
+        }
+    }
+
+    private static String route(URL url) {
+        final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ':' + port;
+    }
+
+    /**
+     * A connection slot of a route, to be closed once the connection was released.
+     */
+    public static final class Lease implements Closeable {
+
+        private final Semaphore permits;
+        private boolean closed;
+
+        private Lease(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() {
+            if (permits != null && !closed) {
+                closed = true;
+                permits.release();
+            }
+        }
+    }
+}
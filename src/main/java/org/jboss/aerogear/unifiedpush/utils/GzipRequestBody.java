@@ -0,0 +1,72 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link RequestBody} compressing another body with gzip while it is written, so the compressed payload is never
+ * held in memory. Its length is unknown upfront, so it is sent using chunked transfer encoding.
+ */
+final class GzipRequestBody implements RequestBody {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final RequestBody body;
+    private final int level;
+
+    GzipRequestBody(RequestBody body, int level) {
+        this.body = body;
+        this.level = level;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return "gzip";
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final LevelGZIPOutputStream gzip = new LevelGZIPOutputStream(out, level);
+        try {
+            body.writeTo(gzip);
+            gzip.finish();
+        } finally {
+            // releases the native memory of the deflater, without closing the request stream
+            gzip.end();
+        }
+    }
+
+    private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        private LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        private void end() {
+            def.end();
+        }
+    }
+}
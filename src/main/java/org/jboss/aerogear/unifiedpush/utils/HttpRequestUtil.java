@@ -18,6 +18,8 @@ package org.jboss.aerogear.unifiedpush.utils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.Authenticator;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
@@ -26,14 +28,21 @@ import java.net.Proxy;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.Charset;
-import java.security.KeyStore;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 import org.jboss.aerogear.unifiedpush.ca.TrustStoreManagerService;
+import org.jboss.aerogear.unifiedpush.metrics.PushMetrics;
 import org.jboss.aerogear.unifiedpush.model.ProxyConfig;
 import org.jboss.aerogear.unifiedpush.model.TrustStoreConfig;
 
@@ -41,12 +50,22 @@ import org.jboss.aerogear.unifiedpush.model.TrustStoreConfig;
  * Util class for URLConnection creation
  */
 public class HttpRequestUtil {
+
+    private static final int CHUNK_LENGTH = 8192;
+    private static final Method SET_AUTHENTICATOR = setAuthenticatorMethod();
+    // weak keys compared by identity, as ProxyConfig does not override equals, so an entry goes away with its sender;
+    // guarded by a lock rather than a monitor, which would pin the virtual threads sending through a proxy
+    private static final Map<ProxyConfig, ProxyAuthenticator> PROXY_AUTHENTICATORS = new WeakHashMap<>();
+    private static final ReentrantLock PROXY_AUTHENTICATORS_LOCK = new ReentrantLock();
+
     /**
      * Additional settings to use for {@link java.net.URLConnection} on submitting payload.
      */
     public static class ConnectionSettings {
         private Integer readTimeout;
         private Integer connectTimeout;
+        private Integer maxConnectionsPerRoute;
+        private Integer maxBufferedBodySize;
 
         /**
          * @return Timeout in ms or {@code null} if using default.
@@ -77,12 +96,93 @@ public class HttpRequestUtil {
         public void setConnectTimeout(Integer connectTimeout) {
             this.connectTimeout = connectTimeout;
         }
+
+        /**
+         * @return Maximum number of pooled connections in use per route or {@code null} if not limited.
+         */
+        public Integer getMaxConnectionsPerRoute() {
+            return maxConnectionsPerRoute;
+        }
+
+        /**
+         * @param maxConnectionsPerRoute Maximum number of pooled connections in use per route or {@code null} to not limit them.
+         * @see ConnectionPool
+         */
+        public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        }
+
+        /**
+         * @return Maximum size in bytes of request bodies sent in buffered mode or {@code null} if bodies are always streamed.
+         */
+        public Integer getMaxBufferedBodySize() {
+            return maxBufferedBodySize;
+        }
+
+        /**
+         * Request bodies up to the given size are buffered by {@link java.net.HttpURLConnection} and sent together with
+         * the headers. Streamed bodies are sent separately from the headers, and a small body then waits for the
+         * delayed ACK of the headers (Nagle's algorithm), which adds up to 40 ms to the request on many systems.
+         * <p>
+         * Note that the JDK silently retries a buffered POST once, if a reused connection fails before the response
+         * was received, unless the {@code sun.net.http.retryPost} system property is set to {@code false}. The Push
+         * Server may then receive the message twice.
+         *
+         * @param maxBufferedBodySize Maximum size in bytes of buffered bodies or {@code null} to always stream them.
+         */
+        public void setMaxBufferedBodySize(Integer maxBufferedBodySize) {
+            this.maxBufferedBodySize = maxBufferedBodySize;
+        }
     }
 
     private HttpRequestUtil() {
         // no-op
     }
 
+    /**
+     * Builds the immutable set of request headers sent with every push request.
+     *
+     * @param encodedCredentials the base64 encoded {@code pushApplicationId:masterSecret} pair
+     * @return an unmodifiable map of header names and values
+     */
+    public static Map<String, String> requestHeaders(String encodedCredentials) {
+        if (encodedCredentials == null) {
+            throw new IllegalArgumentException("arguments cannot be null");
+        }
+        final Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Authorization", "Basic " + encodedCredentials);
+        headers.put("Content-Type", "application/json");
+        headers.put("Accept", "application/json, text/plain");
+        // custom header, for UPS
+        headers.put("aerogear-sender", "AeroGear Java Sender");
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Parses the value of a {@code Retry-After} response header, given either in seconds or as an HTTP date.
+     *
+     * @param retryAfter the header value, may be {@code null}
+     * @return the delay in ms, or -1 if the value is missing or invalid
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        final String value = retryAfter.trim();
+        try {
+            final long seconds = Long.parseLong(value);
+            return seconds >= 0 ? TimeUnit.SECONDS.toMillis(seconds) : -1;
+        } catch (NumberFormatException e) {
+            // not a number of seconds, so it has to be a date
+        }
+        try {
+            final long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, date - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
     /**
      * Returns URLConnection that 'posts' the given JSON to the given UnifiedPush Server URL.
      *
@@ -103,29 +203,79 @@ public class HttpRequestUtil {
             throw new IllegalArgumentException("arguments cannot be null");
         }
 
-        byte[] bytes = jsonPayloadObject.getBytes(charset);
+        return post(url, requestHeaders(encodedCredentials), RequestBody.of(jsonPayloadObject.getBytes(charset)), proxy, customTrustStore, connectionSettings);
+    }
+
+    /**
+     * Returns URLConnection that 'posts' the given JSON to the given UnifiedPush Server URL, using precomputed headers.
+     * Bodies of unknown length are sent using chunked transfer encoding, encoded bodies with their
+     * {@code Content-Encoding} header.
+     *
+     * @param url
+     * @param headers the request headers, usually created once through {@link #requestHeaders(String)}
+     * @param body the JSON payload
+     * @param proxy
+     * @param customTrustStore
+     * @param connectionSettings
+     * @return {@link URLConnection}
+     * @throws Exception
+     */
+    public static URLConnection post(String url, Map<String, String> headers, RequestBody body,
+                                     ProxyConfig proxy, TrustStoreConfig customTrustStore, ConnectionSettings connectionSettings) throws Exception {
+        return post(url, headers, body, proxy, customTrustStore, connectionSettings, PushMetrics.NOOP);
+    }
+
+    /**
+     * Returns URLConnection that 'posts' the given JSON to the given UnifiedPush Server URL, using precomputed headers,
+     * and reports the connect time to the given {@link PushMetrics}.
+     *
+     * @param url
+     * @param headers the request headers, usually created once through {@link #requestHeaders(String)}
+     * @param body the JSON payload
+     * @param proxy
+     * @param customTrustStore
+     * @param connectionSettings
+     * @param metrics receives the connect time
+     * @return {@link URLConnection}
+     * @throws Exception
+     */
+    public static URLConnection post(String url, Map<String, String> headers, RequestBody body, ProxyConfig proxy,
+                                     TrustStoreConfig customTrustStore, ConnectionSettings connectionSettings,
+                                     PushMetrics metrics) throws Exception {
+
+        if (url == null || headers == null || body == null) {
+            throw new IllegalArgumentException("arguments cannot be null");
+        }
+
         URLConnection conn = getConnection(url, proxy);
 
         if (customTrustStore != null && customTrustStore.getTrustStorePath() != null && conn instanceof HttpsURLConnection) {
-            KeyStore trustStore = TrustStoreManagerService
+            // the socket factory is cached by the manager, so the TrustStore is not parsed on every push
+            SSLSocketFactory sslSocketFactory = TrustStoreManagerService
                     .getInstance()
                     .getTrustStoreManager()
-                    .loadTrustStore(customTrustStore.getTrustStorePath(), customTrustStore.getTrustStoreType(),
+                    .getSSLSocketFactory(customTrustStore.getTrustStorePath(), customTrustStore.getTrustStoreType(),
                             customTrustStore.getTrustStorePassword());
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmf.init(trustStore);
-            SSLContext ctx = SSLContext.getInstance("TLS");
-            ctx.init(null, tmf.getTrustManagers(), null);
-            SSLSocketFactory sslSocketFactory = ctx.getSocketFactory();
             ((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory);
         }
 
         conn.setDoOutput(true);
         conn.setUseCaches(false);
-        ((HttpURLConnection) conn).setFixedLengthStreamingMode(bytes.length);
-        conn.setRequestProperty("Authorization", "Basic " + encodedCredentials);
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("Accept", "application/json, text/plain");
+        final long contentLength = body.getContentLength();
+        final Integer maxBufferedBodySize = connectionSettings.getMaxBufferedBodySize();
+        if (contentLength >= 0 && maxBufferedBodySize != null && contentLength <= maxBufferedBodySize) {
+            // buffered by the connection and written along with the headers
+        } else if (contentLength >= 0) {
+            ((HttpURLConnection) conn).setFixedLengthStreamingMode(contentLength);
+        } else {
+            ((HttpURLConnection) conn).setChunkedStreamingMode(CHUNK_LENGTH);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (body.getContentEncoding() != null) {
+            conn.setRequestProperty("Content-Encoding", body.getContentEncoding());
+        }
         if(connectionSettings.getReadTimeout() != null) {
             conn.setReadTimeout(connectionSettings.getReadTimeout());
         }
@@ -133,20 +283,26 @@ public class HttpRequestUtil {
             conn.setConnectTimeout(connectionSettings.getConnectTimeout());
         }
 
-        // custom header, for UPS
-        conn.setRequestProperty("aerogear-sender", "AeroGear Java Sender");
         ((HttpURLConnection) conn).setRequestMethod("POST");
-        OutputStream out = null;
+        // redirects are followed by the sender, re-posting the payload; HttpURLConnection would either fail
+        // in streaming mode or turn the POST into a GET
+        ((HttpURLConnection) conn).setInstanceFollowRedirects(false);
+        if (metrics != PushMetrics.NOOP) {
+            // connect explicitly to tell the connect time apart from the time spent writing the body
+            final long connectStart = System.nanoTime();
+            conn.connect();
+            metrics.connected(url, System.nanoTime() - connectStart);
+        }
+        final OutputStream out = conn.getOutputStream();
         try {
-            out = conn.getOutputStream();
-            out.write(bytes);
-        } finally {
-            // in case something blows up, while writing
-            // the payload, we wanna close the stream:
-            if (out != null) {
-                out.close();
-            }
+            body.writeTo(out);
+        } catch (Throwable t) {
+            // closing the stream would complete a chunked body, and the server would process the partial payload,
+            // so the connection is dropped instead
+            ((HttpURLConnection) conn).disconnect();
+            throw t;
         }
+        out.close();
         return conn;
     }
 
@@ -161,16 +317,6 @@ public class HttpRequestUtil {
     private static URLConnection getConnection(String url, final ProxyConfig proxy) throws IOException {
         URLConnection conn = null;
 
-        if (proxy != null && proxy.getProxyUser() != null) {
-            Authenticator.setDefault(new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(proxy.getProxyUser(), proxy.getProxyPassword().toCharArray());
-                }
-
-            });
-        }
-
         if (proxy != null) {
             Proxy thisProxy = new Proxy(proxy.getProxyType(), new InetSocketAddress(proxy.getProxyHost(), proxy.getProxyPort()));
             conn = new URL(url).openConnection(thisProxy);
@@ -178,6 +324,74 @@ public class HttpRequestUtil {
             conn = new URL(url).openConnection();
         }
 
+        if (proxy != null && proxy.getProxyUser() != null) {
+            setAuthenticator(conn, proxy);
+        }
+
         return conn;
     }
+
+    /**
+     * Sets the proxy credentials on the connection only, on Java 9 and later. Replacing the JVM wide default
+     * {@link Authenticator} would race with concurrent sends using other credentials, and with the rest of the
+     * application. The {@link Authenticator} is reused per {@link ProxyConfig} as long as its credentials are the same,
+     * as it is part of the keep-alive cache key.
+     */
+    private static void setAuthenticator(URLConnection conn, ProxyConfig proxy) throws IOException {
+        final String user = proxy.getProxyUser();
+        final String password = proxy.getProxyPassword() != null ? proxy.getProxyPassword() : "";
+        ProxyAuthenticator authenticator;
+        PROXY_AUTHENTICATORS_LOCK.lock();
+        try {
+            authenticator = PROXY_AUTHENTICATORS.get(proxy);
+            if (authenticator == null || !authenticator.matches(user, password)) {
+                authenticator = new ProxyAuthenticator(user, password);
+                PROXY_AUTHENTICATORS.put(proxy, authenticator);
+            }
+        } finally {
+            PROXY_AUTHENTICATORS_LOCK.unlock();
+        }
+
+        if (SET_AUTHENTICATOR == null) {
+            Authenticator.setDefault(authenticator);
+            return;
+        }
+        try {
+            SET_AUTHENTICATOR.invoke(conn, authenticator);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("Could not set the proxy credentials", e);
+        }
+    }
+
+    /**
+     * Answers with the credentials of a proxy, without referencing its {@link ProxyConfig}.
+     */
+    private static final class ProxyAuthenticator extends Authenticator {
+
+        private final String user;
+        private final String password;
+
+        private ProxyAuthenticator(String user, String password) {
+            this.user = user;
+            this.password = password;
+        }
+
+        private boolean matches(String user, String password) {
+            return this.user.equals(user) && this.password.equals(password);
+        }
+
+        @Override
+        protected PasswordAuthentication getPasswordAuthentication() {
+            return new PasswordAuthentication(user, password.toCharArray());
+        }
+    }
+
+    private static Method setAuthenticatorMethod() {
+        try {
+            return HttpURLConnection.class.getMethod("setAuthenticator", Authenticator.class);
+        } catch (NoSuchMethodException e) {
+            // Java 8
+            return null;
+        }
+    }
 }
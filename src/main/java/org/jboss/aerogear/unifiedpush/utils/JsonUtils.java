@@ -0,0 +1,133 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.message.UnifiedPushMessage;
+
+/**
+ * Util class for serializing {@link UnifiedMessage}s into request bodies, producing the same JSON as
+ * {@link org.jboss.aerogear.unifiedpush.message.UnifiedPushMessage#toJsonString()}.
+ */
+public final class JsonUtils {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            // a flush on the chunked request stream would send a chunk per message
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+            .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private JsonUtils() {
+        // no-op
+    }
+
+    /**
+     * Serializes the given message into UTF-8 encoded JSON. The JSON of a snapshot is returned as is, without copying
+     * it, and must not be modified.
+     *
+     * @param unifiedMessage the {@link UnifiedMessage} to serialize
+     * @return the JSON bytes
+     * @throws IOException if the message can not be serialized
+     * @see UnifiedMessage#snapshot()
+     */
+    public static byte[] toJsonBytes(UnifiedMessage unifiedMessage) throws IOException {
+        if (unifiedMessage.isSnapshot()) {
+            return ((ByteArrayRequestBody) unifiedMessage.getJsonBody()).payload;
+        }
+        return toJsonBytes(unifiedMessage.getObject());
+    }
+
+    /**
+     * Serializes the given message model into UTF-8 encoded JSON.
+     *
+     * @param unifiedPushMessage the {@link UnifiedPushMessage} to serialize
+     * @return the JSON bytes
+     * @throws IOException if the message can not be serialized
+     */
+    public static byte[] toJsonBytes(UnifiedPushMessage unifiedPushMessage) throws IOException {
+        return OBJECT_MAPPER.writeValueAsBytes(unifiedPushMessage);
+    }
+
+    /**
+     * Parses the JSON of a message.
+     *
+     * @param json the UTF-8 encoded JSON
+     * @return a new {@link UnifiedPushMessage}
+     * @throws IOException if the JSON can not be parsed
+     */
+    public static UnifiedPushMessage fromJsonBytes(byte[] json) throws IOException {
+        return OBJECT_MAPPER.readValue(json, UnifiedPushMessage.class);
+    }
+
+    /**
+     * Creates a request body holding a single message. A snapshot is sent through its own, shared
+     * {@link UnifiedMessage#getJsonBody() body}.
+     *
+     * @param unifiedMessage the {@link UnifiedMessage} to send
+     * @return a {@link RequestBody} of known length
+     * @throws IOException if the message can not be serialized
+     */
+    public static RequestBody messageBody(UnifiedMessage unifiedMessage) throws IOException {
+        if (unifiedMessage.isSnapshot()) {
+            return unifiedMessage.getJsonBody();
+        }
+        return RequestBody.of(toJsonBytes(unifiedMessage));
+    }
+
+    /**
+     * Creates a request body holding the JSON array of the given messages. The messages are serialized one after the
+     * other straight into the request stream while it is written, so the batch is never held in memory as a whole.
+     * Snapshots are written as they are.
+     *
+     * @param unifiedMessages the {@link UnifiedMessage}s to send
+     * @return a {@link RequestBody} of unknown length
+     */
+    public static RequestBody batchBody(final List<UnifiedMessage> unifiedMessages) {
+        return new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write('[');
+                boolean first = true;
+                for (UnifiedMessage unifiedMessage : unifiedMessages) {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    if (unifiedMessage.isSnapshot()) {
+                        unifiedMessage.getJsonBody().writeTo(out);
+                    } else {
+                        // neither closes nor flushes the request stream, so no chunk is sent per message
+                        OBJECT_MAPPER.writeValue(out, unifiedMessage.getObject());
+                    }
+                }
+                out.write(']');
+            }
+        };
+    }
+}
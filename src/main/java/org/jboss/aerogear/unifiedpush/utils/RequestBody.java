@@ -0,0 +1,69 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a push request, written straight into the connection's output stream.
+ * <p>
+ * A body may be written more than once, e.g. when a redirect is followed.
+ */
+public interface RequestBody {
+
+    /**
+     * @return the length of the body in bytes, or {@code -1} if it is not known before writing it.
+     */
+    long getContentLength();
+
+    /**
+     * Writes the body to the given stream, without closing it.
+     *
+     * @param out the request output stream
+     * @throws IOException if writing fails
+     */
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @return the value of the {@code Content-Encoding} header, or {@code null} if the body is not encoded.
+     */
+    default String getContentEncoding() {
+        return null;
+    }
+
+    /**
+     * Creates a body of a known, already encoded payload, which is not copied.
+     *
+     * @param payload the encoded payload
+     * @return a {@link RequestBody} writing the given bytes
+     */
+    static RequestBody of(byte[] payload) {
+        return new ByteArrayRequestBody(payload);
+    }
+
+    /**
+     * Creates a body compressing the given one with gzip while it is written.
+     *
+     * @param body the body to compress
+     * @param level the compression level, from 0 (none) to 9 (best), or -1 for the default level
+     * @return a {@link RequestBody} of unknown length, sent with {@code Content-Encoding: gzip}
+     */
+    static RequestBody gzip(RequestBody body, int level) {
+        return new GzipRequestBody(body, level);
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+
+/**
+ * A {@link Flow.Processor} sending the messages of a reactive stream as batches through a {@link DefaultPushSender},
+ * and publishing the outcome of every batch. Available on Java 11 and later.
+ * <p>
+ * The processor never holds more than {@code batchSize * maxInFlightBatches} messages: it requests that many from
+ * upstream when subscribed, and requests more only once a batch was sent and its {@link Result} was handed to the
+ * downstream subscriber. A fast producer is therefore slowed down to the pace of the Push Server (and of the
+ * downstream subscriber), instead of filling up the heap.
+ * <p>
+ * A batch is sent as soon as one of the in-flight slots is free, so a slow stream is sent right away while a fast
+ * one fills up the batches during the earlier sends. Batches are sent with {@link DefaultPushSender#sendBatchAsync(List)},
+ * so the chunking, retry and rate limiting settings of the sender apply. A batch that could not be sent at all is
+ * published as a {@link Result} holding a single failed chunk, the stream itself only fails if upstream does.
+ * <p>
+ * Only one subscriber is supported, further ones fail with an {@link IllegalStateException}. Without a subscriber, the
+ * results are dropped; a subscriber cancelling its subscription cancels the upstream one, while the messages already
+ * received are still sent.
+ *
+ * <pre>
+ * {@code
+ *     PushProcessor processor = PushProcessor.withSender(defaultPushSender)
+ *             .batchSize(500)
+ *             .build();
+ *     processor.subscribe(resultSubscriber);
+ *     messagePublisher.subscribe(processor);
+ * }
+ * </pre>
+ */
+public class PushProcessor implements Flow.Processor<UnifiedMessage, PushProcessor.Result> {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 4;
+
+    private final DefaultPushSender sender;
+    private final int batchSize;
+    private final int maxInFlightBatches;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private Flow.Subscription upstream;
+    private List<UnifiedMessage> buffer = new ArrayList<>();
+    private int inFlightBatches;
+    private final ArrayDeque<Result> results = new ArrayDeque<>();
+    private boolean upstreamDone;
+    private Throwable upstreamFailure;
+    private Flow.Subscriber<? super Result> downstream;
+    // set once onSubscribe returned, nothing else is signalled before
+    private boolean downstreamReady;
+    private long downstreamDemand;
+    private boolean downstreamCancelled;
+    private boolean terminated;
+
+    private PushProcessor(Builder builder) {
+        sender = builder.sender;
+        batchSize = builder.batchSize;
+        maxInFlightBatches = builder.maxInFlightBatches;
+    }
+
+    /**
+     * Starts a {@link Builder} for a processor sending through the given sender.
+     *
+     * @param sender the {@link DefaultPushSender} sending the batches
+     * @return a {@link Builder} instance
+     */
+    public static Builder withSender(DefaultPushSender sender) {
+        return new Builder(sender);
+    }
+
+    /**
+     * Builder of {@link PushProcessor}.
+     */
+    public static class Builder {
+
+        private final DefaultPushSender sender;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private int maxInFlightBatches = DEFAULT_MAX_IN_FLIGHT_BATCHES;
+
+        private Builder(DefaultPushSender sender) {
+            if (sender == null) {
+                throw new IllegalArgumentException("sender can not be null");
+            }
+            this.sender = sender;
+        }
+
+        /**
+         * The maximum number of messages sent with one batch. Defaults to {@value PushProcessor#DEFAULT_BATCH_SIZE}.
+         *
+         * @param batchSize the maximum number of messages per batch
+         * @return the current {@link Builder} instance
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be greater than zero");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * The maximum number of batches being sent, or waiting for the downstream subscriber, at the same time.
+         * Defaults to {@value PushProcessor#DEFAULT_MAX_IN_FLIGHT_BATCHES}.
+         *
+         * @param maxInFlightBatches the maximum number of in-flight batches
+         * @return the current {@link Builder} instance
+         */
+        public Builder maxInFlightBatches(int maxInFlightBatches) {
+            if (maxInFlightBatches < 1) {
+                throw new IllegalArgumentException("maxInFlightBatches must be greater than zero");
+            }
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * Build the {@link PushProcessor}.
+         *
+         * @return the built up {@link PushProcessor}
+         */
+        public PushProcessor build() {
+            return new PushProcessor(this);
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (subscription == null) {
+            throw new NullPointerException("subscription can not be null");
+        }
+        final boolean accepted;
+        lock.lock();
+        try {
+            accepted = upstream == null;
+            if (accepted) {
+                upstream = subscription;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!accepted) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request((long) batchSize * maxInFlightBatches);
+    }
+
+    @Override
+    public void onNext(UnifiedMessage unifiedMessage) {
+        if (unifiedMessage == null) {
+            throw new NullPointerException("unifiedMessage can not be null");
+        }
+        lock.lock();
+        try {
+            buffer.add(unifiedMessage);
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (throwable == null) {
+            throw new NullPointerException("throwable can not be null");
+        }
+        lock.lock();
+        try {
+            upstreamDone = true;
+            upstreamFailure = throwable;
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        lock.lock();
+        try {
+            upstreamDone = true;
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber can not be null");
+        }
+        final boolean accepted;
+        final boolean alreadyTerminated;
+        final Throwable failure;
+        lock.lock();
+        try {
+            accepted = downstream == null;
+            if (accepted) {
+                downstream = subscriber;
+            }
+            alreadyTerminated = terminated;
+            failure = upstreamFailure;
+        } finally {
+            lock.unlock();
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new RejectedSubscription());
+            subscriber.onError(new IllegalStateException("The PushProcessor only supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new ResultSubscription());
+        if (alreadyTerminated && failure != null) {
+            subscriber.onError(failure);
+        } else if (alreadyTerminated) {
+            subscriber.onComplete();
+        } else {
+            lock.lock();
+            try {
+                downstreamReady = true;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Sends the buffered messages, publishes the results and completes the stream, on whichever thread signals first,
+     * while never calling upstream or downstream with the lock held.
+     */
+    private void drain() {
+        if (pendingDrains.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (step()) {
+                // keep going until nothing is left to do
+            }
+            missed = pendingDrains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Performs the next pending action.
+     *
+     * @return {@code false} if there was nothing to do
+     */
+    private boolean step() {
+        Result result = null;
+        Flow.Subscriber<? super Result> receiver = null;
+        Flow.Subscription subscription = null;
+        List<UnifiedMessage> batch = null;
+        boolean complete = false;
+        Throwable failure = null;
+
+        lock.lock();
+        try {
+            final boolean dropResults = downstream == null || downstreamCancelled;
+            final boolean signalResults = dropResults || downstreamReady;
+            if (!results.isEmpty() && (dropResults || downstreamReady && downstreamDemand > 0)) {
+                result = results.poll();
+                if (!dropResults) {
+                    downstreamDemand--;
+                    receiver = downstream;
+                }
+                subscription = upstreamDone ? null : upstream;
+            } else if (!buffer.isEmpty() && inFlightBatches + results.size() < maxInFlightBatches) {
+                if (buffer.size() <= batchSize) {
+                    batch = buffer;
+                    buffer = new ArrayList<>();
+                } else {
+                    final List<UnifiedMessage> head = buffer.subList(0, batchSize);
+                    batch = new ArrayList<>(head);
+                    head.clear();
+                }
+                inFlightBatches++;
+            } else if (upstreamDone && signalResults && !terminated && buffer.isEmpty() && inFlightBatches == 0 && results.isEmpty()) {
+                terminated = true;
+                complete = true;
+                failure = upstreamFailure;
+                receiver = downstreamCancelled ? null : downstream;
+            } else {
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (result != null) {
+            if (receiver != null) {
+                receiver.onNext(result);
+            }
+            if (subscription != null) {
+                // the messages of the batch left the processor, make room for as many new ones
+                subscription.request(result.getMessages().size());
+            }
+        } else if (batch != null) {
+            send(batch);
+        } else if (complete && receiver != null) {
+            if (failure != null) {
+                receiver.onError(failure);
+            } else {
+                receiver.onComplete();
+            }
+        }
+        return true;
+    }
+
+    private void send(List<UnifiedMessage> batch) {
+        CompletableFuture<BatchResult> future;
+        try {
+            future = sender.sendBatchAsync(batch);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((batchResult, throwable) -> {
+            final BatchResult outcome = throwable == null ? batchResult : failedBatch(batch.size(), throwable);
+            lock.lock();
+            try {
+                inFlightBatches--;
+                results.add(new Result(batch, outcome));
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        });
+    }
+
+    private static BatchResult failedBatch(int messageCount, Throwable throwable) {
+        final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        final PushSenderException failure = cause instanceof PushSenderException ? (PushSenderException) cause
+                : new PushSenderException(cause.getMessage(), cause);
+        return new BatchResult(Collections.singletonList(new BatchResult.ChunkResult(0, messageCount, -1, failure)));
+    }
+
+    /**
+     * The subscription handed to a subscriber that was rejected, ignoring its requests.
+     */
+    private static final class RejectedSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+    /**
+     * The subscription of the downstream subscriber to the results.
+     */
+    private final class ResultSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelWith(new IllegalArgumentException("The number of requested results must be positive, but was " + n));
+                return;
+            }
+            lock.lock();
+            try {
+                downstreamDemand = downstreamDemand + n < 0 ? Long.MAX_VALUE : downstreamDemand + n;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelWith(null);
+        }
+
+        private void cancelWith(Throwable failure) {
+            final Flow.Subscription subscription;
+            final Flow.Subscriber<? super Result> receiver;
+            lock.lock();
+            try {
+                if (downstream == null || downstreamCancelled) {
+                    return;
+                }
+                downstreamCancelled = true;
+                receiver = downstream;
+                subscription = upstreamDone ? null : upstream;
+                upstreamDone = true;
+            } finally {
+                lock.unlock();
+            }
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            if (failure != null) {
+                receiver.onError(failure);
+            }
+            drain();
+        }
+    }
+
+    /**
+     * The outcome of sending a batch of messages received from upstream.
+     */
+    public static class Result {
+
+        private final List<UnifiedMessage> messages;
+        private final BatchResult batchResult;
+
+        Result(List<UnifiedMessage> messages, BatchResult batchResult) {
+            this.messages = Collections.unmodifiableList(messages);
+            this.batchResult = batchResult;
+        }
+
+        /**
+         * @return the messages sent with this batch, in the order they were received
+         */
+        public List<UnifiedMessage> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return the outcome of the requests of this batch, indexing into {@link #getMessages()}
+         */
+        public BatchResult getBatchResult() {
+            return batchResult;
+        }
+
+        /**
+         * @return {@code true} if all messages of the batch were accepted by the Push Server
+         */
+        public boolean isSuccess() {
+            return batchResult.isSuccess();
+        }
+    }
+}
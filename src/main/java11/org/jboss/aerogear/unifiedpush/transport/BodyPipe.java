@@ -0,0 +1,180 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
+
+/**
+ * Turns a {@link RequestBody}, which writes itself into a stream, into a stream read by the {@link java.net.http.HttpClient}.
+ * <p>
+ * The body is written on a thread of the given executor into chunks of {@value #CHUNK_SIZE} bytes, and at most
+ * {@value #MAX_CHUNKS} chunks wait to be read, so a large body is never held in memory as a whole. The writer stops
+ * once the stream is closed, or gives up if the chunks are not read for {@value #STALL_TIMEOUT_SECONDS} seconds, e.g.
+ * because the request was abandoned.
+ */
+final class BodyPipe extends InputStream {
+
+    static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_CHUNKS = 4;
+    private static final long STALL_TIMEOUT_SECONDS = 60;
+
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private byte[] current;
+    private int position;
+
+    private BodyPipe() {
+    }
+
+    /**
+     * Starts writing the given body on the given executor.
+     *
+     * @return the stream to read the body from
+     */
+    static InputStream open(RequestBody body, Executor executor) {
+        final BodyPipe pipe = new BodyPipe();
+        executor.execute(() -> pipe.write(body));
+        return pipe;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (current == null || current != END && position == current.length) {
+            current = take();
+            position = 0;
+        }
+        if (current == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return -1;
+        }
+        final int read = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // wakes up the writer
+        chunks.clear();
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the request body", e);
+        }
+    }
+
+    private void write(RequestBody body) {
+        // not closed on failure, which would end the body as if it was complete
+        final ChunkOutputStream out = new ChunkOutputStream();
+        try {
+            body.writeTo(out);
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException("Could not write the request body", e);
+            try {
+                put(END);
+            } catch (IOException ignored) {
+                // nobody is reading anymore
+            }
+        }
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            if (closed || !chunks.offer(chunk, STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS) || closed) {
+                throw new IOException("The request body is not read anymore");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the request body", e);
+        }
+    }
+
+    /**
+     * Hands the written bytes to the reader chunk by chunk.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        private byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                handOver();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    handOver();
+                }
+                final int written = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, written);
+                count += written;
+                off += written;
+                len -= written;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                put(Arrays.copyOf(buffer, count));
+            }
+            put(END);
+        }
+
+        private void handOver() throws IOException {
+            put(buffer);
+            buffer = new byte[CHUNK_SIZE];
+            count = 0;
+        }
+    }
+}
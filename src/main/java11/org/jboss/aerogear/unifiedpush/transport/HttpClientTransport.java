@@ -0,0 +1,292 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+
+import org.jboss.aerogear.unifiedpush.ca.TrustStoreManager;
+import org.jboss.aerogear.unifiedpush.ca.TrustStoreManagerService;
+import org.jboss.aerogear.unifiedpush.ca.WatchingTrustStoreManager;
+import org.jboss.aerogear.unifiedpush.metrics.PushMetrics;
+import org.jboss.aerogear.unifiedpush.model.ProxyConfig;
+import org.jboss.aerogear.unifiedpush.model.TrustStoreConfig;
+import org.jboss.aerogear.unifiedpush.utils.HttpRequestUtil;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
+
+/**
+ * A {@link PushTransport} based on {@link HttpClient}, available on Java 11 and later.
+ * <p>
+ * Against a Push Server supporting HTTP/2 (over TLS, or cleartext after an upgrade), all concurrent requests are
+ * multiplexed over a single connection. Asynchronous sends do not block a thread while waiting for the response.
+ * As {@link HttpClient} pulls the body instead of letting it be written into a stream, request bodies are written on
+ * a separate daemon thread into a small bounded buffer the client reads from, so a large batch is never held in memory
+ * as a whole. Bodies of a known length fitting into that buffer are written straight into an array of their size.
+ * <p>
+ * The connections are managed by the {@link HttpClient}, so {@code maxConnectionsPerRoute} does not apply.
+ * <p>
+ * A custom TrustStore is taken from the {@link TrustStoreManagerService}, like for the other transports. As the
+ * {@link SSLContext} of a {@link HttpClient} is fixed, the client is rebuilt once the {@link TrustStoreManager} hands
+ * out a new context, e.g. after the {@link WatchingTrustStoreManager} reloaded the TrustStore.
+ */
+public class HttpClientTransport implements PushTransport {
+
+    private final Duration requestTimeout;
+    // only set if the client follows a custom TrustStore
+    private final HttpClient.Builder builder;
+    private final TrustStoreConfig customTrustStore;
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+    private volatile Client client;
+    private final ExecutorService bodyWriters = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "unifiedpush-body-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param client the {@link HttpClient} to use, which should not follow redirects, as the sender does so
+     * @param requestTimeout the maximum time to wait for a response, or {@code null} to wait indefinitely
+     */
+    public HttpClientTransport(HttpClient client, Duration requestTimeout) {
+        if (client == null) {
+            throw new IllegalArgumentException("client can not be null");
+        }
+        this.client = new Client(client, null);
+        this.requestTimeout = requestTimeout;
+        this.builder = null;
+        this.customTrustStore = null;
+    }
+
+    private HttpClientTransport(HttpClient.Builder builder, TrustStoreConfig customTrustStore, Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        this.builder = builder;
+        this.customTrustStore = customTrustStore;
+        try {
+            final SSLContext sslContext = sslContext(customTrustStore);
+            this.client = new Client(builder.sslContext(sslContext).build(), sslContext);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Creates a transport preferring HTTP/2, configured like the default {@link UrlConnectionTransport}.
+     * <p>
+     * The read timeout of the connection settings limits the time to wait for each response. Unlike with
+     * {@link java.net.HttpURLConnection}, proxy credentials are only used for this client, and SOCKS proxies are not
+     * supported.
+     *
+     * @param proxy the proxy configuration, or {@code null} to connect directly
+     * @param customTrustStore the TrustStore configuration, or {@code null} to use the default one
+     * @param connectionSettings the timeouts
+     * @return the {@link HttpClientTransport}
+     */
+    public static HttpClientTransport create(ProxyConfig proxy, TrustStoreConfig customTrustStore,
+                                             HttpRequestUtil.ConnectionSettings connectionSettings) {
+        final HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER);
+
+        if (connectionSettings.getConnectTimeout() != null) {
+            builder.connectTimeout(Duration.ofMillis(connectionSettings.getConnectTimeout()));
+        }
+        if (proxy != null && proxy.getProxyType() != Proxy.Type.DIRECT) {
+            if (proxy.getProxyType() != Proxy.Type.HTTP) {
+                throw new IllegalArgumentException("The HTTP/2 transport only supports HTTP proxies");
+            }
+            builder.proxy(ProxySelector.of(new InetSocketAddress(proxy.getProxyHost(), proxy.getProxyPort())));
+            if (proxy.getProxyUser() != null) {
+                builder.authenticator(new ProxyAuthenticator(proxy.getProxyUser(), proxy.getProxyPassword()));
+            }
+        }
+        final Integer readTimeout = connectionSettings.getReadTimeout();
+        final Duration requestTimeout = readTimeout != null ? Duration.ofMillis(readTimeout) : null;
+        if (customTrustStore != null && customTrustStore.getTrustStorePath() != null) {
+            return new HttpClientTransport(builder, customTrustStore, requestTimeout);
+        }
+        return new HttpClientTransport(builder.build(), requestTimeout);
+    }
+
+    private static SSLContext sslContext(TrustStoreConfig customTrustStore) throws IOException {
+        try {
+            return TrustStoreManagerService.getInstance().getTrustStoreManager()
+                    .getSSLContext(customTrustStore.getTrustStorePath(), customTrustStore.getTrustStoreType(),
+                            customTrustStore.getTrustStorePassword());
+        } catch (Exception e) {
+            throw new IOException("Could not load the TrustStore " + customTrustStore.getTrustStorePath(), e);
+        }
+    }
+
+    /**
+     * Returns the client, rebuilt first if the TrustStore manager hands out a new {@link SSLContext}.
+     */
+    private HttpClient client() throws IOException {
+        final Client current = client;
+        if (customTrustStore == null) {
+            return current.httpClient;
+        }
+        final SSLContext sslContext = sslContext(customTrustStore);
+        if (current.sslContext == sslContext) {
+            return current.httpClient;
+        }
+        rebuildLock.lock();
+        try {
+            if (client.sslContext != sslContext) {
+                // the connections of the previous client are closed once they are idle
+                client = new Client(builder.sslContext(sslContext).build(), sslContext);
+            }
+            return client.httpClient;
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    @Override
+    public PushResponse post(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) throws Exception {
+        final long start = System.nanoTime();
+        final HttpResponse<Void> response = client().send(request(url, headers, body), HttpResponse.BodyHandlers.discarding());
+        metrics.firstByteReceived(url, System.nanoTime() - start);
+        return pushResponse(response);
+    }
+
+    @Override
+    public CompletableFuture<PushResponse> postAsync(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) {
+        final long start = System.nanoTime();
+        final HttpClient httpClient;
+        final HttpRequest request;
+        try {
+            httpClient = client();
+            request = request(url, headers, body);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(response -> {
+            metrics.firstByteReceived(url, System.nanoTime() - start);
+            return pushResponse(response);
+        });
+    }
+
+    private HttpRequest request(String url, Map<String, String> headers, RequestBody body) throws IOException {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).POST(bodyPublisher(body));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.header(header.getKey(), header.getValue());
+        }
+        if (body.getContentEncoding() != null) {
+            request.header("Content-Encoding", body.getContentEncoding());
+        }
+        if (requestTimeout != null) {
+            request.timeout(requestTimeout);
+        }
+        return request.build();
+    }
+
+    private static PushResponse pushResponse(HttpResponse<Void> response) {
+        return new PushResponse(response.statusCode(), response.headers().firstValue("Location").orElse(null),
+                response.headers().firstValue("Retry-After").orElse(null));
+    }
+
+    private HttpRequest.BodyPublisher bodyPublisher(RequestBody body) throws IOException {
+        final long contentLength = body.getContentLength();
+        if (contentLength >= 0 && contentLength <= BodyPipe.CHUNK_SIZE) {
+            return HttpRequest.BodyPublishers.ofByteArray(toBytes(body, (int) contentLength));
+        }
+        // written again for every attempt of the client
+        final HttpRequest.BodyPublisher streamed = HttpRequest.BodyPublishers.ofInputStream(() -> BodyPipe.open(body, bodyWriters));
+        return contentLength >= 0 ? HttpRequest.BodyPublishers.fromPublisher(streamed, contentLength) : streamed;
+    }
+
+    /**
+     * Writes a body of the given length into an array of the exact size, without copying it afterwards.
+     */
+    private static byte[] toBytes(RequestBody body, int contentLength) throws IOException {
+        final byte[] bytes = new byte[contentLength];
+        body.writeTo(new OutputStream() {
+            private int position;
+
+            @Override
+            public void write(int b) {
+                bytes[position++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                System.arraycopy(b, off, bytes, position, len);
+                position += len;
+            }
+        });
+        return bytes;
+    }
+
+    /**
+     * Stops the threads writing the request bodies. The connections of the {@link HttpClient} are closed once they are
+     * idle.
+     */
+    @Override
+    public void close() {
+        bodyWriters.shutdown();
+    }
+
+    /**
+     * A client together with the {@link SSLContext} it was built with, if any.
+     */
+    private static final class Client {
+
+        private final HttpClient httpClient;
+        private final SSLContext sslContext;
+
+        private Client(HttpClient httpClient, SSLContext sslContext) {
+            this.httpClient = httpClient;
+            this.sslContext = sslContext;
+        }
+    }
+
+    /**
+     * Answers the proxy authentication requests of this client only.
+     */
+    private static final class ProxyAuthenticator extends Authenticator {
+
+        private final String user;
+        private final char[] password;
+
+        private ProxyAuthenticator(String user, String password) {
+            this.user = user;
+            this.password = password != null ? password.toCharArray() : new char[0];
+        }
+
+        @Override
+        protected PasswordAuthentication getPasswordAuthentication() {
+            return getRequestorType() == RequestorType.PROXY ? new PasswordAuthentication(user, password) : null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.junit.Test;
+
+public class ChunkedBatchTest {
+
+    @Test
+    public void chunksRespectByteLimit() throws Exception {
+        List<UnifiedMessage> unifiedMessages = new ArrayList<UnifiedMessage>();
+        for (int i = 0; i < 10; i++) {
+            unifiedMessages.add(UnifiedMessage.withMessage().alert("message " + i).build());
+        }
+        int messageSize = unifiedMessages.get(0).getObject().toJsonString().length();
+
+        // room for three messages, their separators and the brackets
+        ChunkedBatch batch = new ChunkedBatch(unifiedMessages, 0, 3 * messageSize + 4);
+
+        int sent = 0;
+        ChunkedBatch.Chunk chunk;
+        while ((chunk = batch.nextChunk()) != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            chunk.getBody().writeTo(out);
+            assertTrue(out.size() <= 3 * messageSize + 4);
+            assertEquals(out.size(), chunk.getBody().getContentLength());
+            sent += new ObjectMapper().readTree(out.toByteArray()).size();
+            batch.complete(chunk, null);
+        }
+
+        BatchResult result = batch.getResult().get();
+        assertEquals(10, sent);
+        assertEquals(4, result.getChunks().size());
+        assertEquals(3, result.getChunks().get(0).getMessageCount());
+        assertEquals(1, result.getChunks().get(3).getMessageCount());
+    }
+
+    @Test
+    public void emptyBatchIsSentOnce() throws Exception {
+        ChunkedBatch batch = new ChunkedBatch(new ArrayList<UnifiedMessage>(), 10, 0);
+
+        ChunkedBatch.Chunk chunk = batch.nextChunk();
+        batch.complete(chunk, null);
+
+        assertNull(batch.nextChunk());
+        assertEquals(1, batch.getResult().get().getChunks().size());
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderCircuitOpenException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+    private static final String ENDPOINT = "http://aerogear.example.com/ag-push/";
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<String> transitions = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void opensOnFailureRate() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.withFailureRateThreshold(50)
+                .slidingWindowSize(4)
+                .minimumCalls(4)
+                .listener((endpoint, from, to) -> transitions.add(from + "->" + to))
+                .build();
+
+        record(circuitBreaker, null);
+        record(circuitBreaker, new PushSenderHttpException(401));
+        record(circuitBreaker, new PushSenderHttpException(503));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(ENDPOINT));
+
+        record(circuitBreaker, new PushSenderException("reset", new IOException()));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(ENDPOINT));
+        assertEquals("CLOSED->OPEN", transitions.get(0));
+        try {
+            circuitBreaker.acquirePermission(ENDPOINT);
+            fail("Expected the circuit to be open");
+        } catch (PushSenderCircuitOpenException e) {
+            assertEquals(ENDPOINT, e.getEndpoint());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("http://other.example.com/ag-push/"));
+    }
+
+    @Test
+    public void opensOnSlowCalls() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.withFailureRateThreshold(50)
+                .slowCallThreshold(50, 100)
+                .slidingWindowSize(2)
+                .build();
+
+        circuitBreaker.acquirePermission(ENDPOINT);
+        circuitBreaker.onResult(ENDPOINT, TimeUnit.MILLISECONDS.toNanos(500), null);
+        record(circuitBreaker, null);
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void halfOpenProbesTheEndpoint() throws Exception {
+        CircuitBreaker circuitBreaker = CircuitBreaker.withFailureRateThreshold(100)
+                .minimumCalls(1)
+                .openDuration(20)
+                .halfOpenCalls(2)
+                .listener((endpoint, from, to) -> transitions.add(from + "->" + to))
+                .build();
+
+        record(circuitBreaker, new PushSenderHttpException(502));
+        Thread.sleep(30);
+        record(circuitBreaker, new PushSenderHttpException(502));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(ENDPOINT));
+
+        Thread.sleep(30);
+        circuitBreaker.acquirePermission(ENDPOINT);
+        circuitBreaker.acquirePermission(ENDPOINT);
+        try {
+            circuitBreaker.acquirePermission(ENDPOINT);
+            fail("Expected only two trial calls");
+        } catch (PushSenderCircuitOpenException e) {
+            assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(ENDPOINT));
+        }
+        circuitBreaker.onResult(ENDPOINT, FAST, null);
+        circuitBreaker.onResult(ENDPOINT, FAST, null);
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(ENDPOINT));
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+    }
+
+    @Test
+    public void senderFailsFast() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).statusCode(503).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .retryPolicy(RetryPolicy.withMaxAttempts(3).initialBackoff(1).build())
+                     .circuitBreaker(CircuitBreaker.withFailureRateThreshold(50).minimumCalls(4).openDuration(50).halfOpenCalls(1).build())
+                     .build()) {
+
+            for (int i = 0; i < 3; i++) {
+                try {
+                    sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+                    fail("Expected a failure");
+                } catch (PushSenderCircuitOpenException e) {
+                    // the first attempt of the second send trips the circuit, its retry fails fast
+                } catch (PushSenderHttpException e) {
+                    assertEquals(503, e.getStatusCode());
+                }
+            }
+            assertEquals(4, server.getRequestCount());
+
+            server.statusCode(202);
+            Thread.sleep(60);
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            assertEquals(5, server.getRequestCount());
+        }
+    }
+
+    private static void record(CircuitBreaker circuitBreaker, PushSenderException failure) {
+        circuitBreaker.acquirePermission(ENDPOINT);
+        circuitBreaker.onResult(ENDPOINT, FAST, failure);
+    }
+}
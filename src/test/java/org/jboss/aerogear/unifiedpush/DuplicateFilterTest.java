@@ -0,0 +1,139 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.metrics.DefaultPushMetrics;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void fingerprintIsXxHash64() {
+        assertEquals(0xEF46DB3751D8E999L, DuplicateFilter.fingerprint(bytes("")));
+        assertEquals(0x44BC2CF5AD770999L, DuplicateFilter.fingerprint(bytes("abc")));
+        assertEquals(0xFBCEA83C8A378BF1L, DuplicateFilter.fingerprint(bytes("Nobody inspects the spammish repetition")));
+    }
+
+    @Test
+    public void repeatsWithinWindowAreDuplicates() throws Exception {
+        final DuplicateFilter duplicateFilter = DuplicateFilter.withWindow(100).build();
+
+        assertTrue(duplicateFilter.add(1));
+        assertFalse(duplicateFilter.add(1));
+        assertTrue(duplicateFilter.add(2));
+
+        duplicateFilter.remove(2);
+        assertTrue(duplicateFilter.add(2));
+
+        Thread.sleep(150);
+        assertTrue(duplicateFilter.add(1));
+    }
+
+    @Test
+    public void fullFilterEvictsOldestFingerprint() {
+        final DuplicateFilter duplicateFilter = DuplicateFilter.withWindow(60000).capacity(DuplicateFilter.PROBES).build();
+
+        // all land in the same slots
+        for (long fingerprint = 1; fingerprint <= DuplicateFilter.PROBES; fingerprint++) {
+            assertTrue(duplicateFilter.add(fingerprint));
+        }
+        assertTrue(duplicateFilter.add(DuplicateFilter.PROBES + 1));
+        assertTrue(duplicateFilter.add(1));
+        assertFalse(duplicateFilter.add(DuplicateFilter.PROBES));
+    }
+
+    @Test
+    public void senderDropsRepeatedMessages() throws Exception {
+        final DefaultPushMetrics metrics = new DefaultPushMetrics();
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .duplicateFilter(DuplicateFilter.withWindow(60000).build())
+                     .metrics(metrics)
+                     .build()) {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            sender.sendAsync(UnifiedMessage.withMessage().alert("Hello").build()).join();
+            sender.send(UnifiedMessage.withMessage().alert("Hello again").build());
+            assertEquals(2, server.getSingleRequestCount());
+            assertEquals(2, metrics.getDroppedDuplicates());
+
+            // a message that failed is not a duplicate
+            server.nextStatusCodes(503);
+            try {
+                sender.sendAsync(UnifiedMessage.withMessage().alert("Unavailable").build()).join();
+                fail("Expected the send to fail");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof PushSenderHttpException);
+            }
+            sender.send(UnifiedMessage.withMessage().alert("Unavailable").build());
+            assertEquals(3, server.getSingleRequestCount());
+        }
+    }
+
+    @Test
+    public void duplicateInFlightGetsOutcomeOfFirstSend() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).latency(200).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .duplicateFilter(DuplicateFilter.withWindow(60000).build())
+                     .build()) {
+            server.nextStatusCodes(503);
+            final CompletableFuture<Void> first = sender.sendAsync(UnifiedMessage.withMessage().alert("Hello").build());
+            final CompletableFuture<Void> duplicate = sender.sendAsync(UnifiedMessage.withMessage().alert("Hello").build());
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+                fail("Expected the duplicate to fail like the first send");
+            } catch (PushSenderHttpException expected) {
+                assertEquals(503, expected.getStatusCode());
+            }
+            try {
+                first.join();
+                fail("Expected the first send to fail");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof PushSenderHttpException);
+            }
+            try {
+                duplicate.join();
+                fail("Expected the duplicate to fail like the first send");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof PushSenderHttpException);
+            }
+            assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderRateLimitedException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void burstThenRate() {
+        RateLimiter rateLimiter = RateLimiter.withLimit(0, 1, 3).build();
+
+        assertTrue(rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 1));
+        assertTrue(rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 1));
+        assertTrue(rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 1));
+        assertFalse(rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 1));
+        // other applications have their own buckets
+        assertTrue(rateLimiter.tryAcquire("other", 1));
+    }
+
+    @Test
+    public void messagesAreLimitedPerApplication() {
+        RateLimiter rateLimiter = RateLimiter.withLimit(10, 0, 10)
+                .limit("small", 1, 0, 1)
+                .build();
+
+        // a batch larger than the burst passes once the bucket is full
+        assertTrue(rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 50));
+        assertFalse(rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 1));
+
+        assertTrue(rateLimiter.tryAcquire("small", 1));
+        assertFalse(rateLimiter.tryAcquire("small", 1));
+    }
+
+    @Test
+    public void rejectedPermitsAreNotConsumed() {
+        RateLimiter rateLimiter = RateLimiter.withLimit(1, 1, 2).mode(RateLimiter.Mode.REJECT).build();
+
+        rateLimiter.acquire(PUSH_APPLICATION_ID, 2);
+        try {
+            rateLimiter.acquire(PUSH_APPLICATION_ID, 1);
+            fail("Expected the limit to be exceeded");
+        } catch (PushSenderRateLimitedException e) {
+            assertEquals(PUSH_APPLICATION_ID, e.getPushApplicationId());
+            assertTrue(e.getRetryAfterMillis() > 0 && e.getRetryAfterMillis() <= 1000);
+        }
+    }
+
+    @Test
+    public void concurrentAcquiresNeverExceedTheBurst() throws Exception {
+        RateLimiter rateLimiter = RateLimiter.withLimit(0, 0.001, 100).build();
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 1000; j++) {
+                    if (rateLimiter.tryAcquire(PUSH_APPLICATION_ID, 1)) {
+                        acquired.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, acquired.get());
+    }
+
+    @Test
+    public void senderRejects() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = sender(server, RateLimiter.withLimit(0, 1, 1).mode(RateLimiter.Mode.REJECT).build())) {
+
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+                fail("Expected the limit to be exceeded");
+            } catch (PushSenderRateLimitedException e) {
+                assertEquals(1, server.getRequestCount());
+            }
+        }
+    }
+
+    @Test
+    public void senderDelaysAsyncSends() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = sender(server, RateLimiter.withLimit(0, 100, 1).mode(RateLimiter.Mode.DELAY).build())) {
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(sender.sendAsync(UnifiedMessage.withMessage().alert("Hello " + i).build()));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+            assertEquals(10, server.getMessageCount());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        }
+    }
+
+    private static DefaultPushSender sender(StubUnifiedPushServer server, RateLimiter rateLimiter) {
+        return DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .rateLimiter(rateLimiter)
+                .build();
+    }
+}
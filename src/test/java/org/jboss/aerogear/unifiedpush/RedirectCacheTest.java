@@ -0,0 +1,126 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class RedirectCacheTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void resolvesChains() {
+        RedirectCache cache = new RedirectCache(60000, 10);
+        cache.put("http://a/", "http://b/");
+        cache.put("http://b/", "http://c/");
+        cache.put("http://c/", "http://c/");
+
+        assertEquals("http://c/", cache.resolve("http://a/"));
+        assertEquals("http://x/", cache.resolve("http://x/"));
+
+        cache.invalidate("http://a/");
+        assertEquals("http://a/", cache.resolve("http://a/"));
+        assertEquals("http://b/", cache.resolve("http://b/"));
+
+        cache.put("http://a/", "http://b/");
+        cache.put("http://b/", "http://c/");
+        cache.invalidateRedirectsTo("http://c/");
+        assertEquals("http://b/", cache.resolve("http://a/"));
+    }
+
+    @Test
+    public void boundsLoops() {
+        RedirectCache cache = new RedirectCache(60000, 3);
+        cache.put("http://a/", "http://b/");
+        cache.put("http://b/", "http://a/");
+
+        assertEquals("http://b/", cache.resolve("http://a/"));
+    }
+
+    @Test
+    public void expires() throws Exception {
+        RedirectCache cache = new RedirectCache(10, 10);
+        cache.put("http://a/", "http://b/");
+        Thread.sleep(20);
+
+        assertEquals("http://a/", cache.resolve("http://a/"));
+        new RedirectCache(0, 10).put("http://a/", "http://b/");
+    }
+
+    @Test
+    public void senderGoesStraightToPermanentTarget() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET)
+                .redirect("/ag-push/rest/sender/", 301, "/ag-push/v2/rest/sender/")
+                .start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .build()) {
+
+            for (int i = 0; i < 3; i++) {
+                sender.send(UnifiedMessage.withMessage().alert("Hello " + i).build());
+            }
+            assertEquals(1, server.getStatusCodeCount(301));
+            assertEquals(4, server.getRequestCount());
+
+            // a busy target is kept
+            server.nextStatusCodes(503);
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+                fail("Expected a PushSenderHttpException");
+            } catch (PushSenderHttpException e) {
+                assertEquals(503, e.getStatusCode());
+            }
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            assertEquals(1, server.getStatusCodeCount(301));
+
+            // a target that is gone is forgotten, the next send follows the redirect again
+            server.nextStatusCodes(410);
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+                fail("Expected a PushSenderHttpException");
+            } catch (PushSenderHttpException e) {
+                assertEquals(410, e.getStatusCode());
+            }
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            assertEquals(2, server.getStatusCodeCount(301));
+        }
+    }
+
+    @Test
+    public void temporaryRedirectsAreNotCached() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET)
+                .redirect("/ag-push/rest/sender/", 302, "/ag-push/v2/rest/sender/")
+                .start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .build()) {
+
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            assertEquals(2, server.getStatusCodeCount(302));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.jboss.aerogear.unifiedpush.utils.HttpRequestUtil;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void retryableFailures() {
+        RetryPolicy policy = RetryPolicy.withMaxAttempts(3).build();
+
+        assertTrue(policy.isRetryable(new PushSenderHttpException(503)));
+        assertTrue(policy.isRetryable(new PushSenderHttpException(429)));
+        assertFalse(policy.isRetryable(new PushSenderHttpException(401)));
+        assertTrue(policy.isRetryable(new PushSenderException("timeout", new SocketTimeoutException())));
+        assertFalse(policy.isRetryable(new PushSenderException("The site contains an infinite redirect loop!")));
+    }
+
+    @Test
+    public void backoffIsJitteredAndBounded() {
+        RetryPolicy policy = RetryPolicy.withMaxAttempts(10).initialBackoff(100).maxBackoff(1000).build();
+        PushSenderException failure = new PushSenderException("reset", new IOException());
+
+        for (int i = 0; i < 100; i++) {
+            long first = policy.retryDelay(1, failure);
+            long late = policy.retryDelay(8, failure);
+            assertTrue(first >= 0 && first <= 100);
+            assertTrue(late >= 0 && late <= 1000);
+        }
+        assertEquals(-1, policy.retryDelay(10, failure));
+        assertEquals(-1, RetryPolicy.NONE.retryDelay(1, failure));
+    }
+
+    @Test
+    public void retryAfterIsHonored() {
+        RetryPolicy policy = RetryPolicy.withMaxAttempts(3).maxBackoff(5000).build();
+
+        assertEquals(2000, policy.retryDelay(1, new PushSenderHttpException(503, 2000)));
+        assertEquals(-1, policy.retryDelay(1, new PushSenderHttpException(503, 60000)));
+        assertTrue(RetryPolicy.withMaxAttempts(3).honorRetryAfter(false).initialBackoff(10).build()
+                .retryDelay(1, new PushSenderHttpException(503, 2000)) <= 10);
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        assertEquals(120000, HttpRequestUtil.parseRetryAfter("120"));
+        assertEquals(0, HttpRequestUtil.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(-1, HttpRequestUtil.parseRetryAfter("soon"));
+        assertEquals(-1, HttpRequestUtil.parseRetryAfter(null));
+    }
+
+    @Test
+    public void sendIsRetried() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = sender(server, RetryPolicy.withMaxAttempts(3).initialBackoff(10).build())) {
+
+            server.nextStatusCodes(503, 502);
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            assertEquals(3, server.getRequestCount());
+            assertEquals(1, server.getMessageCount());
+
+            server.nextStatusCodes(503, 503, 503);
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            } catch (PushSenderHttpException e) {
+                assertEquals(503, e.getStatusCode());
+            }
+            assertEquals(6, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void sendAsyncIsRetriedWithRetryAfter() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).retryAfter("0").start();
+             DefaultPushSender sender = sender(server, RetryPolicy.withMaxAttempts(2).initialBackoff(60000).maxBackoff(60000).build())) {
+
+            server.nextStatusCodes(429);
+            // the Retry-After of 0 replaces the long backoff
+            sender.sendAsync(UnifiedMessage.withMessage().alert("Hello").build()).get();
+            assertEquals(2, server.getRequestCount());
+
+            server.nextStatusCodes(401);
+            try {
+                sender.sendAsync(UnifiedMessage.withMessage().alert("Hello").build()).get();
+            } catch (ExecutionException e) {
+                assertEquals(401, ((PushSenderHttpException) e.getCause()).getStatusCode());
+            }
+            assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void failedChunksAreRetried() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .maxBatchMessages(2)
+                     .asyncThreads(1)
+                     .retryPolicy(RetryPolicy.withMaxAttempts(2).initialBackoff(10).build())
+                     .build()) {
+
+            List<UnifiedMessage> unifiedMessages = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                unifiedMessages.add(UnifiedMessage.withMessage().alert("Hello " + i).build());
+            }
+
+            server.nextStatusCodes(503);
+            assertTrue(sender.sendBatch(unifiedMessages).isSuccess());
+            assertEquals(6, server.getMessageCount());
+
+            // the single async thread sends the remaining chunks before running the retries
+            server.nextStatusCodes(503, 503);
+            CompletableFuture<BatchResult> result = sender.sendBatchAsync(unifiedMessages);
+            assertTrue(result.get().isSuccess());
+            assertEquals(12, server.getMessageCount());
+            assertEquals(4 + 5, server.getRequestCount());
+        }
+    }
+
+    private static DefaultPushSender sender(StubUnifiedPushServer server, RetryPolicy retryPolicy) {
+        return DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .retryPolicy(retryPolicy)
+                .build();
+    }
+}
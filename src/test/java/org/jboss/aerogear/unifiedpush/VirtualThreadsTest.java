@@ -0,0 +1,68 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void senderRunsSendsOnVirtualThreads() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start()) {
+            final DefaultPushSender.Builder builder = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                    .pushApplicationId(PUSH_APPLICATION_ID)
+                    .masterSecret(MASTER_SECRET)
+                    .maxConnectionsPerRoute(16)
+                    .virtualThreads();
+            final String javaVersion = System.getProperty("java.specification.version");
+            final boolean supported = !javaVersion.startsWith("1.") && Integer.parseInt(javaVersion) >= 21;
+            final DefaultPushSender sender;
+            try {
+                sender = builder.build();
+            } catch (IllegalStateException e) {
+                assertTrue("virtual threads should be available on Java 21", !supported);
+                return;
+            }
+            server.latency(2);
+
+            try {
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    futures.add(sender.sendAsync(UnifiedMessage.withMessage().alert("Hello " + i).build()));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+            } finally {
+                sender.close();
+            }
+
+            assertEquals(2000, server.getSingleRequestCount());
+            assertEquals(2000, server.getStatusCodeCount(202));
+            assertTrue(server.getMaxConcurrentRequests() > 1);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.ca;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.KeyStore;
+import javax.net.ssl.SSLSocketFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrustStoreManagerImplTest {
+
+    private static final String PASSWORD = "aerogear";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String trustStorePath;
+
+    @Before
+    public void createTrustStore() throws Exception {
+        final File file = folder.newFile("test.truststore");
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+        trustStorePath = file.getAbsolutePath();
+    }
+
+    @Test
+    public void socketFactoryIsCachedPerTrustStore() throws Exception {
+        final TrustStoreManager manager = new TrustStoreManagerImpl();
+
+        final SSLSocketFactory first = manager.getSSLSocketFactory(trustStorePath, "JKS", PASSWORD);
+        final SSLSocketFactory second = manager.getSSLSocketFactory(trustStorePath, "JKS", PASSWORD);
+        final SSLSocketFactory defaultType = manager.getSSLSocketFactory(trustStorePath, null, PASSWORD);
+
+        assertSame(first, second);
+        assertNotSame(first, defaultType);
+    }
+}
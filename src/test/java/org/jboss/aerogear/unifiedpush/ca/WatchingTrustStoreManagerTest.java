@@ -0,0 +1,111 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.ca;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WatchingTrustStoreManagerTest {
+
+    private static final String PASSWORD = "aerogear";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File trustStore;
+    private WatchingTrustStoreManager manager;
+
+    @Before
+    public void setup() throws Exception {
+        trustStore = folder.newFile("test.truststore");
+        writeTrustStore();
+        manager = new WatchingTrustStoreManager();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+    }
+
+    @Test
+    public void trustStoreIsReloadedWhenFileChanges() throws Exception {
+        final SSLSocketFactory initial = manager.getSSLSocketFactory(trustStore.getAbsolutePath(), "JKS", PASSWORD);
+        assertSame(initial, manager.getSSLSocketFactory(trustStore.getAbsolutePath(), "JKS", PASSWORD));
+        final SSLContext initialContext = manager.getSSLContext(trustStore.getAbsolutePath(), "JKS", PASSWORD);
+        assertSame(initialContext, manager.getSSLContext(trustStore.getAbsolutePath(), "JKS", PASSWORD));
+
+        writeTrustStore();
+
+        SSLSocketFactory reloaded = initial;
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (reloaded == initial && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            reloaded = manager.getSSLSocketFactory(trustStore.getAbsolutePath(), "JKS", PASSWORD);
+        }
+        assertNotSame(initial, reloaded);
+        assertNotSame(initialContext, manager.getSSLContext(trustStore.getAbsolutePath(), "JKS", PASSWORD));
+    }
+
+    @Test
+    public void trustStoreIsReloadedWhenLinkIsSwapped() throws Exception {
+        // the layout of a Kubernetes secret volume
+        final Path directory = folder.newFolder("secret").toPath();
+        writeTrustStore(Files.createDirectory(directory.resolve("..2016_05_04_10_15_30.1")).resolve("test.truststore").toFile());
+        Files.createSymbolicLink(directory.resolve("..data"), Paths.get("..2016_05_04_10_15_30.1"));
+        final Path link = Files.createSymbolicLink(directory.resolve("test.truststore"), Paths.get("..data", "test.truststore"));
+        final SSLContext initial = manager.getSSLContext(link.toString(), "JKS", PASSWORD);
+
+        writeTrustStore(Files.createDirectory(directory.resolve("..2016_05_04_11_15_30.2")).resolve("test.truststore").toFile());
+        Files.createSymbolicLink(directory.resolve("..data_tmp"), Paths.get("..2016_05_04_11_15_30.2"));
+        Files.move(directory.resolve("..data_tmp"), directory.resolve("..data"), StandardCopyOption.ATOMIC_MOVE);
+
+        SSLContext reloaded = initial;
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (reloaded == initial && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            reloaded = manager.getSSLContext(link.toString(), "JKS", PASSWORD);
+        }
+        assertNotSame(initial, reloaded);
+    }
+
+    private void writeTrustStore() throws Exception {
+        writeTrustStore(trustStore);
+    }
+
+    private static void writeTrustStore(File file) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.deadletter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.outbox.Outbox;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileDeadLetterSinkTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = folder.getRoot().toPath().resolve("dead-letters.ndjson");
+    }
+
+    @Test
+    public void drainsWrittenDeadLetters() throws Exception {
+        final Instant firstAttemptAt = Instant.parse("2016-05-04T10:15:30Z");
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            sink.write(new DeadLetter("http://localhost/rest/sender/", json("{\n  \"message\" : {\"alert\":\"Hello\"}\n}"),
+                    503, 3, firstAttemptAt, firstAttemptAt.plusSeconds(2)));
+            sink.write(new DeadLetter("http://localhost/rest/sender/batch/", json("[{\"message\":{\"alert\":\"Hi\"}}]"),
+                    -1, 1, firstAttemptAt, firstAttemptAt));
+        }
+        // one line per dead letter, even if the payload was pretty printed
+        assertEquals(2, Files.readAllLines(file).size());
+
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            final List<DeadLetter> deadLetters = drain(sink);
+            assertEquals(2, deadLetters.size());
+            final DeadLetter first = deadLetters.get(0);
+            assertEquals("http://localhost/rest/sender/", first.getUrl());
+            assertEquals("{\"message\":{\"alert\":\"Hello\"}}", text(first));
+            assertEquals(503, first.getStatusCode());
+            assertEquals(3, first.getAttempts());
+            assertEquals(firstAttemptAt, first.getFirstAttemptAt());
+            assertEquals(firstAttemptAt.plusSeconds(2), first.getFailedAt());
+            assertEquals("[{\"message\":{\"alert\":\"Hi\"}}]", text(deadLetters.get(1)));
+            assertEquals(-1, deadLetters.get(1).getStatusCode());
+
+            assertEquals(0, drain(sink).size());
+            assertFalse(Files.exists(file));
+        }
+    }
+
+    @Test
+    public void keepsDeadLettersWrittenWhileDraining() throws Exception {
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            sink.write(deadLetter("first"));
+            sink.write(deadLetter("second"));
+
+            final List<String> drained = new ArrayList<>();
+            assertEquals(2, sink.drain(deadLetter -> {
+                drained.add(text(deadLetter));
+                try {
+                    // e.g. failing again while being resent
+                    sink.write(deadLetter);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return CompletableFuture.completedFuture(null);
+            }));
+            assertEquals(2, drained.size());
+            assertEquals(2, drain(sink).size());
+        }
+    }
+
+    @Test
+    public void resumesInterruptedDrain() throws Exception {
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            sink.write(deadLetter("first"));
+            sink.write(deadLetter("second"));
+            try {
+                sink.drain(deadLetter -> {
+                    throw new IllegalStateException("crash");
+                });
+            } catch (IllegalStateException expected) {
+                // the dead letters stay where they are
+            }
+            sink.write(deadLetter("third"));
+
+            final List<DeadLetter> deadLetters = drain(sink);
+            assertEquals(3, deadLetters.size());
+            assertEquals("\"first\"", text(deadLetters.get(0)));
+            assertEquals("\"third\"", text(deadLetters.get(2)));
+        }
+    }
+
+    @Test
+    public void keepsDeadLettersUntilSettled() throws Exception {
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            sink.write(deadLetter("first"));
+            sink.write(deadLetter("second"));
+
+            final List<CompletableFuture<Void>> pending = new CopyOnWriteArrayList<>();
+            final CompletableFuture<Long> drained = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sink.drain(deadLetter -> {
+                        final CompletableFuture<Void> settled = new CompletableFuture<>();
+                        pending.add(settled);
+                        return settled;
+                    });
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Thread.sleep(100);
+            assertFalse(drained.isDone());
+            assertEquals(2, pending.size());
+            pending.get(0).complete(null);
+            pending.get(1).completeExceptionally(new IllegalStateException("failed again"));
+            try {
+                drained.join();
+                fail("Expected the drain to fail");
+            } catch (Exception expected) {
+                // the dead letters stay where they are
+            }
+
+            assertEquals(2, drain(sink).size());
+            assertEquals(0, drain(sink).size());
+        }
+    }
+
+    @Test
+    public void skipsLineTornByCrash() throws Exception {
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            sink.write(deadLetter("complete"));
+        }
+        Files.write(file, json("{\"url\":\"http://localhost/rest/sender/\",\"pay"), StandardOpenOption.APPEND);
+
+        try (FileDeadLetterSink sink = new FileDeadLetterSink(file)) {
+            sink.write(deadLetter("appended"));
+            final List<DeadLetter> deadLetters = drain(sink);
+            assertEquals(2, deadLetters.size());
+            assertEquals("\"complete\"", text(deadLetters.get(0)));
+            assertEquals("\"appended\"", text(deadLetters.get(1)));
+        }
+    }
+
+    @Test
+    public void senderReplaysDeadLetters() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             FileDeadLetterSink sink = new FileDeadLetterSink(file);
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .deadLetterSink(sink)
+                     .build()) {
+            server.nextStatusCodes(503, 502);
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("single").build());
+                fail("Expected a PushSenderHttpException");
+            } catch (PushSenderHttpException e) {
+                assertEquals(503, e.getStatusCode());
+            }
+            assertFalse(sender.sendBatch(Arrays.asList(UnifiedMessage.withMessage().alert("batch").build())).isSuccess());
+
+            server.resetCounters();
+            assertEquals(2, sender.replayDeadLetters(1000));
+            assertEquals(1, server.getSingleRequestCount());
+            assertEquals(1, server.getBatchRequestCount());
+            assertEquals(2, server.getMessageCount());
+            assertEquals(0, sender.replayDeadLetters(1000));
+        }
+    }
+
+    @Test
+    public void senderDoesNotDeadLetterOutboxMessages() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             Outbox outbox = Outbox.withDirectory(folder.newFolder("outbox").toPath()).build();
+             FileDeadLetterSink sink = new FileDeadLetterSink(file);
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .outbox(outbox)
+                     .deadLetterSink(sink)
+                     .build()) {
+            server.nextStatusCodes(503, 503, 503);
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("single").build());
+                fail("Expected a PushSenderHttpException");
+            } catch (PushSenderHttpException e) {
+                assertEquals(503, e.getStatusCode());
+            }
+            try {
+                sender.sendAsync(UnifiedMessage.withMessage().alert("async").build()).join();
+                fail("Expected the send to fail");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof PushSenderHttpException);
+            }
+            assertFalse(sender.sendBatch(Arrays.asList(UnifiedMessage.withMessage().alert("batch").build())).isSuccess());
+
+            server.resetCounters();
+            assertEquals(0, sender.replayDeadLetters(1000));
+            assertEquals(3, sender.replayOutbox());
+            assertEquals(3, server.getSingleRequestCount());
+        }
+    }
+
+    private static List<DeadLetter> drain(DeadLetterSink sink) throws Exception {
+        final List<DeadLetter> deadLetters = new ArrayList<>();
+        sink.drain(deadLetter -> {
+            deadLetters.add(deadLetter);
+            return CompletableFuture.completedFuture(null);
+        });
+        return deadLetters;
+    }
+
+    private static DeadLetter deadLetter(String alert) {
+        return new DeadLetter("http://localhost/rest/sender/", json('"' + alert + '"'), 500, 1, Instant.now(), Instant.now());
+    }
+
+    private static byte[] json(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(DeadLetter deadLetter) {
+        return new String(deadLetter.getPayload(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.jboss.aerogear.unifiedpush.utils.JsonUtils;
+import org.junit.Test;
+
+public class MessageTemplateTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    private final MessageTemplate template = MessageTemplate.compile(UnifiedMessage.withMessage()
+            .alert("Hello ${name}, ${name}!")
+            .userData("orderId", "${orderId}")
+            .criteria()
+                .aliases("${alias}")
+            .build());
+
+    @Test
+    public void placeholderNames() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("name", "orderId", "alias")), template.getPlaceholderNames());
+    }
+
+    @Test
+    public void rendersSameJsonAsSerializer() throws Exception {
+        final String[] names = {"Mike", "Jo\"hn\\", "tab\tnew\nline\u0001", "välue ☃ 😀", ""};
+        for (String name : names) {
+            final Map<String, Object> values = new HashMap<>();
+            values.put("name", name);
+            values.put("orderId", 42);
+            values.put("alias", name + "@example.com");
+
+            final UnifiedMessage expected = UnifiedMessage.withMessage()
+                    .alert("Hello " + name + ", " + name + "!")
+                    .userData("orderId", "42")
+                    .criteria()
+                        .aliases(name + "@example.com")
+                    .build();
+            assertArrayEquals(JsonUtils.toJsonBytes(expected), template.render(values));
+        }
+    }
+
+    @Test
+    public void writesSameJsonAsRendered() throws Exception {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("name", "välue ☃ 😀\t\"");
+        values.put("orderId", 42);
+        values.put("alias", "mike@example.com");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.writeTo(values, out);
+        assertArrayEquals(template.render(values), out.toByteArray());
+
+        values.remove("alias");
+        out.reset();
+        try {
+            template.writeTo(values, out);
+            fail("Expected the missing value to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // before writing anything
+            assertEquals(0, out.size());
+        }
+    }
+
+    @Test
+    public void withoutPlaceholders() throws Exception {
+        final UnifiedMessage unifiedMessage = UnifiedMessage.withMessage().alert("Costs $5 {or less}").build();
+
+        assertArrayEquals(JsonUtils.toJsonBytes(unifiedMessage),
+                MessageTemplate.compile(unifiedMessage).render(new HashMap<>()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValue() {
+        final Map<String, String> values = new HashMap<>();
+        values.put("name", "Mike");
+
+        template.render(values);
+    }
+
+    @Test
+    public void senderSendsTemplateBatch() throws Exception {
+        final MessageTemplate template = MessageTemplate.compile(UnifiedMessage.withMessage()
+                .alert("Hello ${name}")
+                .criteria()
+                    .aliases("${name}")
+                .build());
+        final List<Map<String, String>> values = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            values.add(Collections.singletonMap("name", "user" + i));
+        }
+
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .build()) {
+            assertTrue(sender.sendBatch(template, values).isSuccess());
+            assertEquals(1, server.getBatchRequestCount());
+            assertEquals(25, server.getMessageCount());
+        }
+    }
+
+    @Test
+    public void senderRejectsTemplateBatchWithMissingValue() throws Exception {
+        final MessageTemplate template = MessageTemplate.compile(UnifiedMessage.withMessage()
+                .alert("Hello ${name}")
+                .build());
+        final List<Map<String, String>> values = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            values.add(Collections.singletonMap(i == 12 ? "nickname" : "name", "user" + i));
+        }
+
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .maxBatchMessages(10)
+                     .build()) {
+            try {
+                sender.sendBatch(template, values);
+                fail("Expected the missing value to be rejected");
+            } catch (PushSenderException expected) {
+                // before the first chunk was sent
+                assertEquals(0, server.getRequestCount());
+            }
+
+            try {
+                sender.sendBatchAsync(template, values).get();
+                fail("Expected the missing value to be rejected");
+            } catch (ExecutionException expected) {
+                assertSame(PushSenderException.class, expected.getCause().getClass());
+                assertEquals(0, server.getRequestCount());
+            }
+        }
+    }
+}
@@ -20,17 +20,26 @@ import static org.jboss.aerogear.unifiedpush.message.Priority.HIGH;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
 import org.junit.Test;
 
 public class UnifiedMessageTest {
 
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
     @Test
     public void specialKeysTests() {
         UnifiedMessage unifiedMessage = UnifiedMessage.withMessage()
@@ -158,5 +167,111 @@ public class UnifiedMessageTest {
         assertEquals("bar-value", ((Map) unifiedMessage.getMessage().getObject().getUserData()).get("bar-key"));
     }
 
+    @Test
+    public void snapshotIsImmutable() throws Exception {
+        final UnifiedMessage unifiedMessage = UnifiedMessage.withMessage()
+                .alert("Hello")
+                .userData("key", "value")
+                .criteria()
+                    .aliases("mike")
+                .build();
+        final UnifiedMessage snapshot = unifiedMessage.snapshot();
+        final byte[] json = snapshot.getJsonBytes();
+
+        json[0] = ' ';
+        unifiedMessage.getMessage().alert("Changed");
+        try {
+            snapshot.getMessage();
+            fail("Expected the builders of a snapshot to be unavailable");
+        } catch (IllegalStateException expected) {
+            // read through getObject()
+        }
+        snapshot.getObject().getCriteria().setAliases(new ArrayList<String>());
+
+        assertTrue(snapshot.isSnapshot());
+        assertFalse(unifiedMessage.isSnapshot());
+        assertTrue(snapshot == snapshot.snapshot());
+        assertFalse(json == snapshot.getJsonBytes());
+        assertEquals('{', snapshot.getJsonBytes()[0]);
+        assertTrue(snapshot.getJsonBody() == snapshot.getJsonBody());
+        assertEquals("Hello", snapshot.getObject().getMessage().getAlert());
+        assertEquals("value", snapshot.getObject().getMessage().getUserData().get("key"));
+        assertEquals(1, snapshot.getObject().getCriteria().getAliases().size());
+        assertEquals("Changed", unifiedMessage.getObject().getMessage().getAlert());
+    }
+
+    @Test
+    public void getObjectReturnsNewInstances() {
+        final UnifiedMessage unifiedMessage = UnifiedMessage.withMessage().alert("Hello").build();
+
+        assertFalse(unifiedMessage.getObject() == unifiedMessage.getObject());
+    }
 
+    @Test
+    public void shardsAliasesAndVariants() {
+        final List<String> aliases = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            aliases.add("user" + i + "@example.com");
+        }
+        final UnifiedMessage unifiedMessage = UnifiedMessage.withMessage()
+                .alert("Hello")
+                .criteria()
+                    .aliases(aliases)
+                    .variants("android", "ios", "web")
+                    .categories("news")
+                .build();
+
+        // 3 alias shards times 2 variant shards
+        final List<UnifiedMessage> shards = unifiedMessage.shard(2, 2);
+        assertEquals(6, shards.size());
+        final List<String> shardedAliases = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            final UnifiedMessage shard = shards.get(i);
+            assertTrue(shard.isSnapshot());
+            assertEquals("Hello", shard.getObject().getMessage().getAlert());
+            assertEquals(Arrays.asList("news"), shard.getObject().getCriteria().getCategories());
+            assertEquals(i % 2 == 0 ? Arrays.asList("android", "ios") : Arrays.asList("web"),
+                    shard.getObject().getCriteria().getVariants());
+            if (i % 2 == 0) {
+                shardedAliases.addAll(shard.getObject().getCriteria().getAliases());
+            }
+        }
+        assertEquals(aliases, shardedAliases);
+        // the message itself is left untouched
+        assertEquals(5, unifiedMessage.getCriteria().getObject().getAliases().size());
+
+        assertEquals(1, unifiedMessage.shard(5, 0).size());
+        assertTrue(unifiedMessage.shard(5, 0).get(0) == unifiedMessage);
+    }
+
+    @Test
+    public void senderShardsHugeAliasLists() throws Exception {
+        final List<String> aliases = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            aliases.add("user" + i + "@example.com");
+        }
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .shardTargets(10, 0)
+                     .batchParallelism(3)
+                     .build()) {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").criteria().aliases(aliases).build());
+            assertEquals(0, server.getSingleRequestCount());
+            assertEquals(3, server.getBatchRequestCount());
+            assertEquals(3, server.getMessageCount());
+
+            // one failed shard fails the whole send
+            server.resetCounters();
+            server.nextStatusCodes(503);
+            try {
+                sender.sendAsync(UnifiedMessage.withMessage().alert("Hello").criteria().aliases(aliases).build()).join();
+                fail("Expected the send to fail");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof PushSenderHttpException);
+            }
+            assertEquals(2, server.getBatchRequestCount());
+        }
+    }
 }
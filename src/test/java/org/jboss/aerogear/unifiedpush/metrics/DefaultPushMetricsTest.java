@@ -0,0 +1,97 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.RetryPolicy;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class DefaultPushMetricsTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void recordsRequests() throws Exception {
+        DefaultPushMetrics metrics = new DefaultPushMetrics();
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .retryPolicy(RetryPolicy.withMaxAttempts(2).initialBackoff(1).build())
+                     .metrics(metrics)
+                     .build()) {
+
+            server.nextStatusCodes(503);
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+
+            List<UnifiedMessage> unifiedMessages = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                unifiedMessages.add(UnifiedMessage.withMessage().alert("Hello " + i).build());
+            }
+            sender.send(unifiedMessages, null);
+
+            server.redirect(301, "/ag-push/rest/sender/");
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+                fail("Expected a redirect loop");
+            } catch (PushSenderException e) {
+                assertTrue(e.getMessage().contains("infinite redirect loop"));
+            }
+        }
+
+        assertEquals(2, metrics.getSerializationTime().snapshot().getCount());
+        assertEquals(2, metrics.getSerializedMessages());
+        final int redirects = DefaultPushSender.MAX_REDIRECTS + 1;
+        assertEquals(3 + redirects, metrics.getRequests());
+        assertEquals(3 + redirects, metrics.getConnectTime().snapshot().getCount());
+        assertEquals(3 + redirects, metrics.getTimeToFirstByte().snapshot().getCount());
+        assertEquals(3 + redirects, metrics.getRequestLatency().snapshot().getCount());
+        assertEquals(1, metrics.getStatusCodeCount(503));
+        assertEquals(2, metrics.getStatusCodeCount(202));
+        assertEquals(redirects, metrics.getStatusCodeCount(301));
+        assertEquals(1, metrics.getRetries());
+        assertEquals(redirects, metrics.getRedirects());
+        assertEquals(0, metrics.getFailedRequests());
+        // the streamed batch is counted while being written
+        assertTrue(metrics.getRequestBytes() > 2 * metrics.getSerializedBytes());
+    }
+
+    @Test
+    public void recordsFailedRequests() {
+        DefaultPushMetrics metrics = new DefaultPushMetrics();
+        DefaultPushSender sender = DefaultPushSender.withRootServerURL("http://localhost:1/ag-push")
+                .metrics(metrics)
+                .build();
+        try {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            fail("Expected a connection failure");
+        } catch (PushSenderException e) {
+            assertEquals(1, metrics.getFailedRequests());
+            assertEquals(1, metrics.getRequestLatency().snapshot().getCount());
+        }
+    }
+}
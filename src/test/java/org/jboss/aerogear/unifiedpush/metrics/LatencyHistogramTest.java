@@ -0,0 +1,60 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int index = 1; index < 1888; index++) {
+            assertEquals(index, LatencyHistogram.index(LatencyHistogram.upperBound(index - 1) + 1));
+        }
+        assertEquals(1887, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesHaveBoundedError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000000, snapshot.getMax());
+        assertWithin(50000000, snapshot.getP50());
+        assertWithin(99000000, snapshot.getP99());
+        assertWithin(99900000, snapshot.getP999());
+        assertWithin(50000500, (long) snapshot.getMean());
+    }
+
+    @Test
+    public void emptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getP999());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 32);
+    }
+}
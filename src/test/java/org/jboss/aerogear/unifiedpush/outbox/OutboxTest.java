@@ -0,0 +1,251 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+    private static final Path MAPS = Paths.get("/proc/self/maps");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = folder.newFolder("outbox").toPath();
+    }
+
+    @Test
+    public void replaysUnacknowledgedPayloadsAfterReopening() throws Exception {
+        try (Outbox outbox = Outbox.withDirectory(directory).build()) {
+            outbox.acknowledge(outbox.append(payload("first")));
+            outbox.append(payload("second"));
+            outbox.acknowledge(outbox.append(payload("third")));
+            assertEquals(1, outbox.getCheckpoint());
+        }
+
+        try (Outbox outbox = Outbox.withDirectory(directory).build()) {
+            final List<Outbox.Entry> pending = pending(outbox);
+            assertEquals(1, pending.size());
+            assertEquals("second", text(pending.get(0)));
+            // handed out entries are in flight until acknowledged or released
+            assertEquals(0, pending(outbox).size());
+
+            outbox.release(pending.get(0).getSequence());
+            assertEquals(1, outbox.getCheckpoint());
+            final List<Outbox.Entry> released = pending(outbox);
+            assertEquals(1, released.size());
+            outbox.acknowledge(released.get(0).getSequence());
+            assertEquals(3, outbox.getCheckpoint());
+            assertEquals(3, outbox.append(payload("fourth")));
+        }
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() throws Exception {
+        try (Outbox outbox = Outbox.withDirectory(directory).segmentSize(32).build()) {
+            final List<Long> sequences = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                sequences.add(outbox.append(payload("message " + i)));
+            }
+            assertEquals(10, segmentFiles().length);
+
+            for (long sequence : sequences.subList(0, 9)) {
+                outbox.acknowledge(sequence);
+            }
+            outbox.sync();
+            assertEquals(1, segmentFiles().length);
+        }
+
+        try (Outbox outbox = Outbox.withDirectory(directory).segmentSize(32).build()) {
+            final List<Outbox.Entry> pending = pending(outbox);
+            assertEquals(1, pending.size());
+            assertEquals("message 9", text(pending.get(0)));
+        }
+    }
+
+    @Test
+    public void deletesAcknowledgedSegmentsBehindPendingPayload() throws Exception {
+        try (Outbox outbox = Outbox.withDirectory(directory).segmentSize(32).build()) {
+            final long released = outbox.append(payload("released"));
+            outbox.release(released);
+            for (int i = 0; i < 9; i++) {
+                outbox.acknowledge(outbox.append(payload("message " + i)));
+            }
+            outbox.sync();
+            // the released payload holds the checkpoint, but not the segments acknowledged after it
+            assertEquals(0, outbox.getCheckpoint());
+            assertEquals(2, segmentFiles().length);
+        }
+
+        try (Outbox outbox = Outbox.withDirectory(directory).segmentSize(32).build()) {
+            final List<Outbox.Entry> pending = pending(outbox);
+            assertEquals(1, pending.size());
+            assertEquals("released", text(pending.get(0)));
+
+            outbox.acknowledge(pending.get(0).getSequence());
+            assertEquals(10, outbox.getCheckpoint());
+            assertEquals(10, outbox.append(payload("appended")));
+        }
+    }
+
+    @Test
+    public void unmapsDeletedSegmentsOnceNotRead() throws Exception {
+        assumeTrue(Files.isReadable(MAPS));
+        try (Outbox outbox = Outbox.withDirectory(directory).segmentSize(32).build()) {
+            for (int i = 0; i < 10; i++) {
+                // handed out again, as if the sends had failed
+                outbox.release(outbox.append(payload("message " + i)));
+            }
+            assertEquals(10, mappedSegments());
+
+            final long[] mappedWhileReading = new long[1];
+            outbox.forEachPending(entry -> {
+                if (entry.getSequence() < 9) {
+                    outbox.acknowledge(entry.getSequence());
+                    return;
+                }
+                outbox.release(entry.getSequence());
+                try {
+                    outbox.sync();
+                    mappedWhileReading[0] = mappedSegments();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            // deleted, but still mapped for the reader
+            assertEquals(1, segmentFiles().length);
+            assertEquals(10, mappedWhileReading[0]);
+
+            outbox.sync();
+            assertEquals(1, mappedSegments());
+        }
+    }
+
+    @Test
+    public void ignoresRecordTornByCrash() throws Exception {
+        try (Outbox outbox = Outbox.withDirectory(directory).build()) {
+            outbox.append(payload("complete"));
+            outbox.append(payload("torn"));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            // the last byte of the second record
+            final long position = 2 * Segment.HEADER_SIZE + "complete".length() + "torn".length() - 1;
+            file.seek(position);
+            file.write('x');
+        }
+
+        try (Outbox outbox = Outbox.withDirectory(directory).build()) {
+            assertEquals(1, outbox.append(payload("appended")));
+        }
+        try (Outbox outbox = Outbox.withDirectory(directory).build()) {
+            final List<Outbox.Entry> pending = pending(outbox);
+            assertEquals(2, pending.size());
+            assertEquals("complete", text(pending.get(0)));
+            assertEquals("appended", text(pending.get(1)));
+        }
+    }
+
+    @Test
+    public void senderKeepsUndeliveredMessages() throws Exception {
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             Outbox outbox = Outbox.withDirectory(directory).build();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .outbox(outbox)
+                     .build()) {
+            sender.send(UnifiedMessage.withMessage().alert("delivered").build());
+            server.nextStatusCodes(503, 400);
+            try {
+                sender.sendAsync(UnifiedMessage.withMessage().alert("unavailable").build()).join();
+                fail("Expected the send to fail");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof PushSenderHttpException);
+            }
+            try {
+                sender.send(UnifiedMessage.withMessage().alert("rejected").build());
+                fail("Expected a PushSenderHttpException");
+            } catch (PushSenderHttpException e) {
+                assertEquals(400, e.getStatusCode());
+            }
+            assertTrue(sender.sendBatch(Arrays.asList(UnifiedMessage.withMessage().alert("batch").build())).isSuccess());
+            assertEquals(1, outbox.getCheckpoint());
+
+            server.resetCounters();
+            assertEquals(1, sender.replayOutbox());
+            assertEquals(1, server.getSingleRequestCount());
+            assertEquals(4, outbox.getCheckpoint());
+            assertEquals(0, sender.replayOutbox());
+        }
+    }
+
+    /**
+     * @return the number of segments of the outbox still mapped into the memory of this process
+     */
+    private long mappedSegments() throws IOException {
+        return Files.readAllLines(MAPS).stream()
+                .filter(line -> line.contains(directory.toString()) && line.contains(Segment.SUFFIX))
+                .count();
+    }
+
+    private File[] segmentFiles() {
+        return directory.toFile().listFiles((dir, name) -> name.endsWith(Segment.SUFFIX));
+    }
+
+    private static List<Outbox.Entry> pending(Outbox outbox) {
+        final List<Outbox.Entry> entries = new ArrayList<>();
+        outbox.forEachPending(entries::add);
+        return entries;
+    }
+
+    private static byte[] payload(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(Outbox.Entry entry) {
+        return new String(entry.getPayload(), StandardCharsets.UTF_8);
+    }
+}
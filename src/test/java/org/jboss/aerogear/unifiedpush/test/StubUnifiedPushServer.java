@@ -0,0 +1,405 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stub of the UnifiedPush Server, implementing the {@code rest/sender/} and {@code rest/sender/batch/}
+ * endpoints on top of {@code com.sun.net.httpserver}, for integration and load tests without a network or a real server.
+ * <p>
+ * Requests are checked for the configured basic auth credentials and answered with {@code 202 Accepted}, unless
+ * configured otherwise. The server counts requests, messages and bytes, to measure throughput.
+ *
+ * <pre>
+ * {@code
+ *     try (StubUnifiedPushServer server = new StubUnifiedPushServer(pushApplicationId, masterSecret).latency(5).start()) {
+ *         PushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+ *                 .pushApplicationId(pushApplicationId)
+ *                 .masterSecret(masterSecret)
+ *                 .build();
+ *         ...
+ *         assertEquals(1, server.getMessageCount());
+ *     }
+ * }
+ * </pre>
+ */
+public class StubUnifiedPushServer implements Closeable {
+
+    /**
+     * The context path the stub is deployed on.
+     */
+    public static final String CONTEXT = "/ag-push/";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String expectedAuthorization;
+
+    private volatile long latencyMillis;
+    private volatile int defaultStatusCode = 202;
+    private final Queue<Integer> nextStatusCodes = new ConcurrentLinkedQueue<>();
+    private volatile String redirectFrom;
+    private volatile String redirectLocation;
+    private volatile int redirectStatusCode;
+    private volatile String retryAfter;
+    private int threads = 16;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder singleRequests = new LongAdder();
+    private final LongAdder batchRequests = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder compressedRequests = new LongAdder();
+    private final LongAdder unauthorizedRequests = new LongAdder();
+    private final Map<Integer, AtomicInteger> statusCodes = new ConcurrentHashMap<>();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private long startNanos;
+
+    /**
+     * @param pushApplicationId the pushApplicationId senders have to authenticate with
+     * @param masterSecret the masterSecret senders have to authenticate with
+     */
+    public StubUnifiedPushServer(String pushApplicationId, String masterSecret) {
+        final String credentials = pushApplicationId + ':' + masterSecret;
+        expectedAuthorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Delays every response by the given time.
+     *
+     * @param latencyMillis the delay in ms
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer latency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Answers every authorized request with the given status code, {@code 202} by default.
+     *
+     * @param statusCode the status code to respond with
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer statusCode(int statusCode) {
+        this.defaultStatusCode = statusCode;
+        return this;
+    }
+
+    /**
+     * Answers the next authorized requests with the given status codes, one per request, before falling back to the
+     * default status code.
+     *
+     * @param statusCodes the status codes of the next responses
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer nextStatusCodes(int... statusCodes) {
+        for (int statusCode : statusCodes) {
+            nextStatusCodes.add(statusCode);
+        }
+        return this;
+    }
+
+    /**
+     * Sends the given {@code Retry-After} header with every {@code 429} and {@code 503} response.
+     *
+     * @param retryAfter the header value, in seconds or as HTTP date, or {@code null} to not send the header
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer retryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * Redirects every request to the given location, resolved against the server root if it is a path.
+     *
+     * @param statusCode the redirect status code, e.g. 301
+     * @param location the redirect target
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer redirect(int statusCode, String location) {
+        return redirect(null, statusCode, location);
+    }
+
+    /**
+     * Redirects the requests of the given path to the given location, resolved against the server root if it is a path.
+     *
+     * @param fromPath the redirected path, e.g. {@code /ag-push/rest/sender/}, or {@code null} to redirect every request
+     * @param statusCode the redirect status code, e.g. 301
+     * @param location the redirect target
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer redirect(String fromPath, int statusCode, String location) {
+        this.redirectFrom = fromPath;
+        this.redirectStatusCode = statusCode;
+        this.redirectLocation = location;
+        return this;
+    }
+
+    /**
+     * Stops redirecting requests.
+     *
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer noRedirect() {
+        this.redirectLocation = null;
+        return this;
+    }
+
+    /**
+     * Number of threads handling requests, 16 by default. Must be set before {@link #start()}.
+     *
+     * @param threads the number of threads
+     * @return the current {@link StubUnifiedPushServer} instance
+     */
+    public StubUnifiedPushServer threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @return the current {@link StubUnifiedPushServer} instance
+     * @throws IOException if the server can not be started
+     */
+    public StubUnifiedPushServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(CONTEXT, this::handle);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        startNanos = System.nanoTime();
+        server.start();
+        return this;
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the root URL to build a sender with, e.g. {@code http://localhost:4711/ag-push/}
+     */
+    public String getRootServerURL() {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    /**
+     * Resets all counters.
+     */
+    public void resetCounters() {
+        requests.reset();
+        singleRequests.reset();
+        batchRequests.reset();
+        messages.reset();
+        bytesReceived.reset();
+        compressedRequests.reset();
+        unauthorizedRequests.reset();
+        statusCodes.clear();
+        maxConcurrentRequests.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the number of requests received, including redirected and unauthorized ones
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of requests against {@code rest/sender/}
+     */
+    public long getSingleRequestCount() {
+        return singleRequests.sum();
+    }
+
+    /**
+     * @return the number of requests against {@code rest/sender/batch/}
+     */
+    public long getBatchRequestCount() {
+        return batchRequests.sum();
+    }
+
+    /**
+     * @return the number of messages accepted
+     */
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * @return the number of request body bytes received, as sent over the wire
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @return the number of requests with a gzip compressed body
+     */
+    public long getCompressedRequestCount() {
+        return compressedRequests.sum();
+    }
+
+    /**
+     * @return the number of requests rejected because of missing or wrong credentials
+     */
+    public long getUnauthorizedRequestCount() {
+        return unauthorizedRequests.sum();
+    }
+
+    /**
+     * @param statusCode a status code
+     * @return the number of responses sent with the given status code
+     */
+    public int getStatusCodeCount(int statusCode) {
+        final AtomicInteger count = statusCodes.get(statusCode);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the highest number of requests handled at the same time
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
+    }
+
+    /**
+     * @return the accepted messages per second since the server was started or the counters reset
+     */
+    public double getMessagesPerSecond() {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? messages.sum() / seconds : 0;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final int concurrent = concurrentRequests.incrementAndGet();
+        maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+        try {
+            requests.increment();
+            final byte[] received = readBody(exchange.getRequestBody());
+            bytesReceived.add(received.length);
+            final byte[] body;
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                compressedRequests.increment();
+                body = readBody(new GZIPInputStream(new ByteArrayInputStream(received)));
+            } else {
+                body = received;
+            }
+
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            final String path = exchange.getRequestURI().getPath();
+            final boolean batch = path.endsWith("/rest/sender/batch/") || path.endsWith("/rest/sender/batch");
+            if (!"POST".equals(exchange.getRequestMethod())
+                    || !(batch || path.endsWith("/rest/sender/") || path.endsWith("/rest/sender"))) {
+                respond(exchange, 404);
+            } else if (!expectedAuthorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                unauthorizedRequests.increment();
+                respond(exchange, 401);
+            } else if (redirectLocation != null && (redirectFrom == null || redirectFrom.equals(path))) {
+                final String location = redirectLocation.startsWith("/")
+                        ? "http://localhost:" + server.getAddress().getPort() + redirectLocation
+                        : redirectLocation;
+                exchange.getResponseHeaders().set("Location", location);
+                respond(exchange, redirectStatusCode);
+            } else {
+                final Integer next = nextStatusCodes.poll();
+                final int statusCode = next != null ? next : defaultStatusCode;
+                if (statusCode < 300) {
+                    if (batch) {
+                        batchRequests.increment();
+                    } else {
+                        singleRequests.increment();
+                    }
+                    messages.add(countMessages(body, batch));
+                } else if ((statusCode == 429 || statusCode == 503) && retryAfter != null) {
+                    exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                }
+                respond(exchange, statusCode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503);
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private static byte[] readBody(InputStream requestBody) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = requestBody) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static int countMessages(byte[] body, boolean batch) throws IOException {
+        if (!batch) {
+            return 1;
+        }
+        final JsonNode messages = OBJECT_MAPPER.readTree(body);
+        return messages == null ? 0 : messages.size();
+    }
+
+    private void respond(HttpExchange exchange, int statusCode) throws IOException {
+        statusCodes.computeIfAbsent(statusCode, code -> new AtomicInteger()).incrementAndGet();
+        exchange.sendResponseHeaders(statusCode, -1);
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderException;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StubUnifiedPushServerTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    private StubUnifiedPushServer server;
+    private DefaultPushSender sender;
+
+    @Before
+    public void start() throws Exception {
+        server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+        sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .asyncThreads(8)
+                .maxConnectionsPerRoute(8)
+                .build();
+    }
+
+    @After
+    public void stop() {
+        sender.close();
+        server.close();
+    }
+
+    @Test
+    public void concurrentSends() throws Exception {
+        server.latency(2);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(sender.sendAsync(UnifiedMessage.withMessage().alert("Hello " + i).build()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+        assertEquals(200, server.getSingleRequestCount());
+        assertEquals(200, server.getMessageCount());
+        assertEquals(200, server.getStatusCodeCount(202));
+        assertTrue(server.getMaxConcurrentRequests() > 1);
+        assertTrue(server.getMaxConcurrentRequests() <= 8);
+    }
+
+    @Test
+    public void bufferedSends() {
+        try (DefaultPushSender buffering = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .maxBufferedBodySize(8192)
+                .build()) {
+            for (int i = 0; i < 20; i++) {
+                buffering.send(UnifiedMessage.withMessage().alert("Hello " + i).build());
+            }
+        }
+
+        assertEquals(20, server.getSingleRequestCount());
+    }
+
+    @Test
+    public void batchSend() {
+        List<UnifiedMessage> unifiedMessages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            unifiedMessages.add(UnifiedMessage.withMessage().alert("Hello " + i).build());
+        }
+
+        sender.send(unifiedMessages, null);
+
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(10, server.getMessageCount());
+        assertTrue(server.getBytesReceived() > 0);
+    }
+
+    @Test
+    public void wrongCredentials() {
+        DefaultPushSender unauthorized = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret("wrong")
+                .build();
+        try {
+            unauthorized.send(UnifiedMessage.withMessage().alert("Hello").build());
+            fail("Expected a PushSenderHttpException");
+        } catch (PushSenderHttpException e) {
+            assertEquals(401, e.getStatusCode());
+        } finally {
+            unauthorized.close();
+        }
+        assertEquals(1, server.getUnauthorizedRequestCount());
+        assertEquals(0, server.getMessageCount());
+    }
+
+    @Test
+    public void statusCodesAndRedirects() {
+        server.nextStatusCodes(503);
+        try {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            fail("Expected a PushSenderHttpException");
+        } catch (PushSenderHttpException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+
+        server.redirect(301, "/ag-push/rest/sender/");
+        try {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            fail("Expected a redirect loop");
+        } catch (PushSenderException e) {
+            assertTrue(e.getMessage().contains("infinite redirect loop"));
+            assertEquals(DefaultPushSender.MAX_REDIRECTS + 1, server.getStatusCodeCount(301));
+        }
+
+        server.redirect(301, "/ag-push-moved/rest/sender/");
+        try {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            fail("Expected a PushSenderHttpException");
+        } catch (PushSenderHttpException e) {
+            // the stub is only deployed on /ag-push/
+            assertEquals(404, e.getStatusCode());
+        }
+
+        server.noRedirect();
+        sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+        assertEquals(1, server.getMessageCount());
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientTransportTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    private StubUnifiedPushServer server;
+    private DefaultPushSender sender;
+
+    @Before
+    public void start() throws Exception {
+        assumeTrue("requires Java 11", !System.getProperty("java.specification.version").startsWith("1."));
+        server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).threads(8).start();
+        sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .connectionReadTimeout(5000)
+                .http2()
+                .build();
+    }
+
+    @After
+    public void stop() {
+        if (sender != null) {
+            sender.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void sends() throws Exception {
+        sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(sender.sendAsync(UnifiedMessage.withMessage().alert("Hello " + i).build()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        final List<UnifiedMessage> unifiedMessages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            unifiedMessages.add(UnifiedMessage.withMessage().alert("Batch " + i).build());
+        }
+        assertTrue(sender.sendBatch(unifiedMessages).isSuccess());
+
+        assertEquals(101, server.getSingleRequestCount());
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(111, server.getMessageCount());
+    }
+
+    @Test
+    public void streamsLargeBodies() throws Exception {
+        final StringBuilder alert = new StringBuilder();
+        while (alert.length() < 40000) {
+            alert.append("Hello ");
+        }
+        // of a known length, once serialized
+        sender.send(UnifiedMessage.withMessage().alert(alert.toString()).build().snapshot());
+        sender.sendAsync(UnifiedMessage.withMessage().alert(alert.toString()).build()).get(10, TimeUnit.SECONDS);
+
+        final List<UnifiedMessage> unifiedMessages = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            unifiedMessages.add(UnifiedMessage.withMessage().alert("Batch " + i).build());
+        }
+        assertTrue(sender.sendBatch(unifiedMessages).isSuccess());
+
+        assertEquals(2, server.getSingleRequestCount());
+        assertEquals(1, server.getBatchRequestCount());
+        assertEquals(1002, server.getMessageCount());
+    }
+
+    @Test
+    public void followsRedirectsAndReportsErrors() {
+        server.redirect("/ag-push/rest/sender/", 301, "/ag-push/v2/rest/sender/");
+        sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+        sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+        assertEquals(1, server.getStatusCodeCount(301));
+        assertEquals(2, server.getMessageCount());
+
+        server.nextStatusCodes(503).retryAfter("7");
+        try {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            fail("Expected a PushSenderHttpException");
+        } catch (PushSenderHttpException e) {
+            assertEquals(503, e.getStatusCode());
+            assertEquals(7000, e.getRetryAfterMillis());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.exception.PushSenderHttpException;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.metrics.PushMetrics;
+import org.jboss.aerogear.unifiedpush.utils.RequestBody;
+import org.junit.Test;
+
+public class PushTransportTest {
+
+    @Test
+    public void senderDelegatesToTransport() throws Exception {
+        final RecordingTransport transport = new RecordingTransport();
+        transport.responses.add(new PushResponse(301, "/ag-push/v2/rest/sender/", null));
+        transport.responses.add(new PushResponse(202, null, null));
+
+        try (DefaultPushSender sender = DefaultPushSender.withRootServerURL("http://localhost:8080/ag-push/")
+                .pushApplicationId("app")
+                .masterSecret("secret")
+                .transport(transport)
+                .build()) {
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+        }
+
+        assertEquals(2, transport.urls.size());
+        assertEquals("http://localhost:8080/ag-push/rest/sender/", transport.urls.get(0));
+        assertEquals("http://localhost:8080/ag-push/v2/rest/sender/", transport.urls.get(1));
+        assertTrue(transport.bodies.get(1).contains("\"alert\":\"Hello\""));
+        assertEquals("Basic YXBwOnNlY3JldA==", transport.headers.get(0).get("Authorization"));
+        assertFalse(transport.closed);
+    }
+
+    @Test
+    public void asyncSendDoesNotWaitForTheResponse() throws Exception {
+        final CompletableFuture<PushResponse> response = new CompletableFuture<>();
+        final RecordingTransport transport = new RecordingTransport() {
+            @Override
+            public CompletableFuture<PushResponse> postAsync(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) {
+                urls.add(url);
+                return response;
+            }
+        };
+
+        try (DefaultPushSender sender = DefaultPushSender.withRootServerURL("http://localhost:8080/ag-push/")
+                .pushApplicationId("app")
+                .masterSecret("secret")
+                .asyncThreads(1)
+                .transport(transport)
+                .build()) {
+            final CompletableFuture<Void> first = sender.sendAsync(UnifiedMessage.withMessage().alert("one").build());
+            final CompletableFuture<Void> second = sender.sendAsync(UnifiedMessage.withMessage().alert("two").build());
+
+            // both requests are in flight on a single async thread
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (transport.urls.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, transport.urls.size());
+            assertFalse(first.isDone());
+
+            response.complete(new PushResponse(500, null, null));
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                fail("Expected an ExecutionException");
+            } catch (ExecutionException e) {
+                assertEquals(500, ((PushSenderHttpException) e.getCause()).getStatusCode());
+            }
+            assertTrue(second.isCompletedExceptionally());
+        }
+    }
+
+    private static class RecordingTransport implements PushTransport {
+
+        final List<String> urls = new CopyOnWriteArrayList<>();
+        final List<Map<String, String>> headers = new CopyOnWriteArrayList<>();
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        final List<PushResponse> responses = new CopyOnWriteArrayList<>();
+        volatile boolean closed;
+
+        @Override
+        public PushResponse post(String url, Map<String, String> headers, RequestBody body, PushMetrics metrics) throws Exception {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out);
+            this.urls.add(url);
+            this.headers.add(headers);
+            this.bodies.add(out.toString("UTF-8"));
+            return responses.remove(0);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.aerogear.unifiedpush.DefaultPushSender;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.Test;
+
+public class GzipRequestBodyTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    @Test
+    public void senderCompressesLargeBodies() throws Exception {
+        List<UnifiedMessage> unifiedMessages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            unifiedMessages.add(UnifiedMessage.withMessage().alert("Hello " + i)
+                    .userData("key", "a long and repetitive value, compressing well").build());
+        }
+
+        try (StubUnifiedPushServer server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).start();
+             DefaultPushSender sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                     .pushApplicationId(PUSH_APPLICATION_ID)
+                     .masterSecret(MASTER_SECRET)
+                     .maxBatchBytes(64 * 1024)
+                     .gzip(1024, 6)
+                     .build()) {
+
+            sender.send(UnifiedMessage.withMessage().alert("Hello").build());
+            assertEquals(0, server.getCompressedRequestCount());
+            final long uncompressed = server.getBytesReceived();
+
+            server.resetCounters();
+            sender.send(unifiedMessages, null);
+            assertEquals(1, server.getCompressedRequestCount());
+            assertEquals(100, server.getMessageCount());
+            assertTrue(server.getBytesReceived() < 100 * uncompressed / 4);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import org.jboss.aerogear.unifiedpush.utils.HttpRequestUtil.ConnectionSettings;
+import org.junit.Test;
+
+public class HttpRequestUtilTest {
+
+    @Test
+    public void dropsConnectionWhenBodyFailsMidStream() throws Exception {
+        final IOException failure = new IOException("Failed to render the next message");
+        final RequestBody body = new RequestBody() {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                // several chunks reach the wire before failing
+                out.write('[');
+                for (int i = 0; i < 32 * 1024; i++) {
+                    out.write(' ');
+                }
+                throw failure;
+            }
+        };
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final CompletableFuture<String> received = CompletableFuture.supplyAsync(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    socket.setSoTimeout(5000);
+                    final InputStream in = socket.getInputStream();
+                    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+                    final byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        request.write(buffer, 0, read);
+                    }
+                    return new String(request.toByteArray(), StandardCharsets.ISO_8859_1);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            try {
+                HttpRequestUtil.post("http://127.0.0.1:" + serverSocket.getLocalPort() + "/rest/sender/",
+                        Collections.emptyMap(), body, null, null, new ConnectionSettings());
+                fail("Expected the failure of the body to be rethrown");
+            } catch (IOException e) {
+                assertSame(failure, e);
+            }
+
+            // the connection is closed without the last chunk, which would complete the partial body
+            final String request = received.get();
+            assertTrue(request.contains("Transfer-Encoding: chunked"));
+            assertFalse(request.endsWith("\r\n0\r\n\r\n"));
+        }
+    }
+}
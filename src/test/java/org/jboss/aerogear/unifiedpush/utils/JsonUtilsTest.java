@@ -0,0 +1,79 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.junit.Test;
+
+public class JsonUtilsTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void messageBodyMatchesJsonString() throws Exception {
+        UnifiedMessage unifiedMessage = UnifiedMessage.withMessage()
+                .alert("Hello")
+                .userData("key", "välue")
+                .criteria().aliases("mike")
+                .build();
+
+        RequestBody body = JsonUtils.messageBody(unifiedMessage);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        assertEquals(out.size(), body.getContentLength());
+        assertEquals(unifiedMessage.getObject().toJsonString(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void batchBodyStreamsJsonArray() throws Exception {
+        List<UnifiedMessage> unifiedMessages = Arrays.asList(
+                UnifiedMessage.withMessage().alert("one").build(),
+                UnifiedMessage.withMessage().alert("two").criteria().aliases("john").build());
+
+        RequestBody body = JsonUtils.batchBody(unifiedMessages);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        assertEquals(-1, body.getContentLength());
+        assertEquals(mapper.readTree("[" + unifiedMessages.get(0).getObject().toJsonString() + ","
+                        + unifiedMessages.get(1).getObject().toJsonString() + "]"),
+                mapper.readTree(out.toByteArray()));
+    }
+
+    @Test
+    public void snapshotsAreWrittenAsSerialized() throws Exception {
+        UnifiedMessage snapshot = UnifiedMessage.withMessage().alert("one").userData("key", "välue").build().snapshot();
+        List<UnifiedMessage> unifiedMessages = Arrays.asList(snapshot, UnifiedMessage.withMessage().alert("two").build());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonUtils.batchBody(unifiedMessages).writeTo(out);
+
+        assertSame(JsonUtils.toJsonBytes(snapshot), JsonUtils.toJsonBytes(snapshot));
+        assertSame(snapshot.getJsonBody(), JsonUtils.messageBody(snapshot));
+        assertEquals(mapper.readTree("[" + new String(snapshot.getJsonBytes(), "UTF-8") + ","
+                        + unifiedMessages.get(1).getObject().toJsonString() + "]"),
+                mapper.readTree(out.toByteArray()));
+    }
+}
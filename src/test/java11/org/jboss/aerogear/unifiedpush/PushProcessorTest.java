@@ -0,0 +1,205 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.unifiedpush;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import org.jboss.aerogear.unifiedpush.message.UnifiedMessage;
+import org.jboss.aerogear.unifiedpush.test.StubUnifiedPushServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PushProcessorTest {
+
+    private static final String PUSH_APPLICATION_ID = "c7fc6525-5506-4ca9-9cf1-55cc261ddb9c";
+    private static final String MASTER_SECRET = "8b2f43a9-23c8-44fe-bee9-d6b0af9e316b";
+
+    private StubUnifiedPushServer server;
+    private DefaultPushSender sender;
+
+    @Before
+    public void start() throws Exception {
+        server = new StubUnifiedPushServer(PUSH_APPLICATION_ID, MASTER_SECRET).threads(8).start();
+        sender = DefaultPushSender.withRootServerURL(server.getRootServerURL())
+                .pushApplicationId(PUSH_APPLICATION_ID)
+                .masterSecret(MASTER_SECRET)
+                .asyncThreads(8)
+                .build();
+    }
+
+    @After
+    public void stop() {
+        sender.close();
+        server.close();
+    }
+
+    @Test
+    public void sendsStreamInBatches() throws Exception {
+        server.latency(5);
+        final PushProcessor processor = PushProcessor.withSender(sender)
+                .batchSize(50)
+                .maxInFlightBatches(2)
+                .build();
+        final ResultSubscriber results = new ResultSubscriber(Long.MAX_VALUE);
+        processor.subscribe(results);
+
+        try (SubmissionPublisher<UnifiedMessage> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(processor);
+            for (int i = 0; i < 1000; i++) {
+                // blocks once the processor stops requesting messages
+                publisher.submit(UnifiedMessage.withMessage().alert("Hello " + i).build());
+            }
+        }
+        results.completed.get(10, TimeUnit.SECONDS);
+
+        int messages = 0;
+        for (PushProcessor.Result result : results.received) {
+            assertTrue(result.isSuccess());
+            assertTrue(result.getMessages().size() <= 50);
+            messages += result.getMessages().size();
+        }
+        assertEquals(1000, messages);
+        assertEquals(1000, server.getMessageCount());
+        assertEquals(results.received.size(), server.getBatchRequestCount());
+        assertTrue(server.getMaxConcurrentRequests() <= 2);
+    }
+
+    @Test
+    public void slowSubscriberStopsUpstreamDemand() throws Exception {
+        final PushProcessor processor = PushProcessor.withSender(sender)
+                .batchSize(10)
+                .maxInFlightBatches(2)
+                .build();
+        final ResultSubscriber results = new ResultSubscriber(1);
+        processor.subscribe(results);
+        final CountingSubscription upstream = new CountingSubscription();
+        processor.onSubscribe(upstream);
+        assertEquals(20, upstream.requested.get());
+
+        for (int i = 0; i < 20; i++) {
+            processor.onNext(UnifiedMessage.withMessage().alert("Hello " + i).build());
+        }
+        // one result was handed downstream, the other batch waits for demand and keeps its slot
+        await(() -> results.received.size() == 1);
+        final int delivered = results.received.get(0).getMessages().size();
+        await(() -> upstream.requested.get() == 20 + delivered);
+        Thread.sleep(100);
+        assertEquals(1, results.received.size());
+        assertEquals(20 + delivered, upstream.requested.get());
+
+        results.subscription.request(Long.MAX_VALUE);
+        processor.onComplete();
+        results.completed.get(10, TimeUnit.SECONDS);
+        assertEquals(20, server.getMessageCount());
+        assertFalse(upstream.cancelled);
+    }
+
+    @Test
+    public void rejectsSecondSubscriber() throws Exception {
+        final PushProcessor processor = PushProcessor.withSender(sender).build();
+        final ResultSubscriber results = new ResultSubscriber(Long.MAX_VALUE);
+        processor.subscribe(results);
+        final ResultSubscriber rejected = new ResultSubscriber(Long.MAX_VALUE);
+        processor.subscribe(rejected);
+        try {
+            rejected.completed.get(10, TimeUnit.SECONDS);
+            fail("Expected the second subscriber to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // leaves the stream of the first subscriber alone
+        rejected.subscription.cancel();
+
+        final CountingSubscription upstream = new CountingSubscription();
+        processor.onSubscribe(upstream);
+        processor.onNext(UnifiedMessage.withMessage().alert("Hello").build());
+        processor.onComplete();
+        results.completed.get(10, TimeUnit.SECONDS);
+        assertEquals(1, results.received.size());
+        assertFalse(upstream.cancelled);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the processor", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static final class ResultSubscriber implements Flow.Subscriber<PushProcessor.Result> {
+
+        private final long initialDemand;
+        private final List<PushProcessor.Result> received = new CopyOnWriteArrayList<>();
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+        private volatile Flow.Subscription subscription;
+
+        private ResultSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialDemand);
+        }
+
+        @Override
+        public void onNext(PushProcessor.Result result) {
+            received.add(result);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            completed.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.complete(null);
+        }
+    }
+
+    private static final class CountingSubscription implements Flow.Subscription {
+
+        private final AtomicLong requested = new AtomicLong();
+        private volatile boolean cancelled;
+
+        @Override
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}